@@ -28,11 +28,14 @@ SET SQL_MODE="NO_AUTO_VALUE_ON_ZERO";
 CREATE TABLE `messages` (
   `id` bigint(20) NOT NULL AUTO_INCREMENT,
   `uid` bigint(20) unsigned NOT NULL,
-  `stanza` mediumtext NOT NULL,
+  `stanza` mediumblob NOT NULL,
   `timestamp` datetime NOT NULL,
   `expired` datetime DEFAULT NULL,
+  `format` tinyint unsigned NOT NULL DEFAULT 0,
+  `sender` varchar(3071) DEFAULT NULL,
   PRIMARY KEY (`id`),
-  KEY `uid` (`uid`)
+  KEY `uid` (`uid`),
+  KEY `expired` (`expired`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Offline message storage';
 
 --
@@ -0,0 +1,30 @@
+package org.kontalk.xmppserver;
+
+import tigase.util.TigaseStringprepException;
+import tigase.xmpp.JID;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+
+
+/**
+ * Creates authorized sessions for benchmarks, using the Tigase test fixtures.
+ */
+class BenchmarkSessions extends ProcessorTestCase {
+
+    BenchmarkSessions() throws Exception {
+        setUp();
+    }
+
+    XMPPResourceConnection createSession(String user, String resource)
+            throws TigaseStringprepException, NotAuthorizedException {
+        JID userJid = JID.jidInstanceNS(user + "/" + resource);
+        JID connId = JID.jidInstanceNS("c2s@localhost/" + user + "-" + resource);
+        return getSession(connId, userJid);
+    }
+
+    void close() throws Exception {
+        tearDown();
+    }
+
+}
@@ -0,0 +1,200 @@
+package org.kontalk.xmppserver;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.server.Packet;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for the CSI packet filter, which runs for every outgoing
+ * packet of every authorized session, and for queue flushes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientStateIndicationBenchmark {
+
+    private static final String RECIPIENT = "recipient@localhost";
+    private static final int PACKETS = 1024;
+
+    /** An inactive session with a pool of packets to be filtered. */
+    @State(Scope.Benchmark)
+    public static class FilterState {
+        /** Kind of packets going to the session. */
+        @Param({ "presence", "chatstate", "ping", "body", "mixed" })
+        public String mix;
+
+        ClientStateIndication csi;
+        BenchmarkSessions sessions;
+        XMPPResourceConnection session;
+        Packet[] packets;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            // default settings: the queue is flushed when full
+            csi = createProcessor(new HashMap<>());
+            sessions = new BenchmarkSessions();
+            session = sessions.createSession(RECIPIENT, "res");
+            setInactive(csi, session);
+
+            JID connId = session.getConnectionId();
+            packets = new Packet[PACKETS];
+            for (int i = 0; i < PACKETS; i++) {
+                String kind = "mixed".equals(mix) ? MIXED[i % MIXED.length] : mix;
+                packets[i] = createPacket(kind, i, connId);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            sessions.close();
+        }
+    }
+
+    /** Per-thread position in the packet pool. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+
+        Packet next(Packet[] packets) {
+            return packets[index++ & (PACKETS - 1)];
+        }
+    }
+
+    /** A session with a full queue to be flushed. */
+    @State(Scope.Benchmark)
+    public static class FlushState {
+        @Param({ "50", "500", "5000" })
+        public int queueSize;
+
+        ClientStateIndication csi;
+        BenchmarkSessions sessions;
+        XMPPResourceConnection session;
+        Packet[] packets;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Map<String, Object> settings = new HashMap<>();
+            // the queue must not be flushed while filling it
+            settings.put("max-queue-size", queueSize + 1);
+            settings.put("max-queue-bytes", Integer.MAX_VALUE);
+            // same presences every time, they must not be suppressed
+            settings.put("presence-diffing", false);
+            csi = createProcessor(settings);
+            sessions = new BenchmarkSessions();
+            session = sessions.createSession(RECIPIENT, "res");
+
+            // one presence per contact, so that none of them is replaced
+            JID connId = session.getConnectionId();
+            packets = new Packet[queueSize];
+            for (int i = 0; i < queueSize; i++) {
+                packets[i] = createPacket("presence", i, connId);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void fill() throws Exception {
+            setInactive(csi, session);
+            ArrayDeque<Packet> results = new ArrayDeque<>(1);
+            for (Packet p : packets) {
+                results.offer(p);
+                csi.filter(p, session, null, results);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            sessions.close();
+        }
+    }
+
+    private static final String[] MIXED = { "presence", "chatstate", "body", "presence", "ping", "chatstate" };
+
+    @Benchmark
+    public ArrayDeque<Packet> filter(FilterState state, Cursor cursor) {
+        return filterOne(state, cursor);
+    }
+
+    /** Several threads sending to the same session. */
+    @Benchmark
+    @Threads(4)
+    public ArrayDeque<Packet> filterContended(FilterState state, Cursor cursor) {
+        return filterOne(state, cursor);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void flush(FlushState state, Blackhole blackhole) throws Exception {
+        ArrayDeque<Packet> results = new ArrayDeque<>(state.queueSize);
+        state.csi.processFromUserToServerPacket(state.session.getConnectionId(),
+                createCSIPacket(ClientStateIndication.ELEM_ACTIVE), state.session, null, results, null);
+        blackhole.consume(results);
+    }
+
+    private static ArrayDeque<Packet> filterOne(FilterState state, Cursor cursor) {
+        ArrayDeque<Packet> results = new ArrayDeque<>(2);
+        Packet p = cursor.next(state.packets);
+        results.offer(p);
+        state.csi.filter(p, state.session, null, results);
+        return results;
+    }
+
+    private static ClientStateIndication createProcessor(Map<String, Object> settings) throws Exception {
+        ClientStateIndication csi = new ClientStateIndication();
+        csi.init(settings);
+        return csi;
+    }
+
+    private static void setInactive(ClientStateIndication csi, XMPPResourceConnection session) throws Exception {
+        csi.processFromUserToServerPacket(session.getConnectionId(),
+                createCSIPacket(ClientStateIndication.ELEM_INACTIVE), session, null, new ArrayDeque<>(), null);
+    }
+
+    private static Packet createCSIPacket(String name) throws TigaseStringprepException {
+        return Packet.packetInstance(new Element(name,
+                new String[] { "xmlns" }, new String[] { ClientStateIndication.XMLNS }));
+    }
+
+    private static Packet createPacket(String kind, int index, JID connId) throws TigaseStringprepException {
+        String from = "contact" + index + "@localhost/res";
+        String to = RECIPIENT + "/res";
+        Packet packet;
+        switch (kind) {
+            case "presence":
+                packet = Packet.packetInstance("presence", from, to, StanzaType.available);
+                packet.getElement().addChild(new Element("status", "Status of contact " + index));
+                break;
+            case "chatstate":
+                packet = Packet.packetInstance("message", from, to, StanzaType.chat);
+                packet.getElement().addChild(new Element("composing",
+                        new String[] { "xmlns" }, new String[] { "http://jabber.org/protocol/chatstates" }));
+                break;
+            case "ping":
+                packet = Packet.packetInstance("iq", "localhost", to, StanzaType.get);
+                packet.getElement().addChild(new Element("ping",
+                        new String[] { "xmlns" }, new String[] { "urn:xmpp:ping" }));
+                break;
+            case "body":
+                packet = Packet.packetInstance("message", from, to, StanzaType.chat);
+                packet.getElement().addChild(new Element("body", "Message number " + index));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown packet kind: " + kind);
+        }
+        packet.setPacketTo(connId);
+        return packet;
+    }
+
+}
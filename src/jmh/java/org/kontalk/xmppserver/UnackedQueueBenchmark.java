@@ -0,0 +1,123 @@
+package org.kontalk.xmppserver;
+
+import org.kontalk.xmppserver.messages.StanzaCodec;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.server.Packet;
+import tigase.server.xmppclient.StreamManagementIOProcessor;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Benchmarks for stream management unacked queues with and without
+ * serialized entries: filling the queue of a session and decoding it again
+ * for resending. The heap retained by a filled queue is measured once per
+ * trial and printed in the run log, together with the serialized size of a
+ * packet: codec {@code none} keeps whole packets and is the baseline. Run
+ * with {@code -prof gc} to compare the memory allocated per queue.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnackedQueueBenchmark {
+
+    @Param({ "none", "xml", "deflate" })
+    public String codec;
+
+    /** Unacked packets per session. */
+    @Param({ "20" })
+    public int packets;
+
+    /** Filled queues kept alive while measuring the retained heap. */
+    private static final int RETAINED_QUEUES = 2000;
+
+    private StanzaCodec stanzaCodec;
+    private Packet[] messages;
+    private KontalkIOProcessor.MyOutQueue filled;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stanzaCodec = "none".equals(codec) ? null : StanzaCodec.forName(codec);
+        JID to = JID.jidInstance("user@localhost/res");
+        messages = new Packet[packets];
+        for (int i = 0; i < packets; i++) {
+            messages[i] = createMessage(to, i);
+        }
+        filled = fill();
+
+        Element message = messages[0].getElement();
+        int xmlSize = message.toString().length();
+        int storedSize = stanzaCodec != null ? stanzaCodec.encode(message).length : xmlSize;
+        // printed in the run log, to compare the space savings
+        System.out.printf("%n%s codec: %d bytes XML, %d bytes serialized, %d bytes retained per queue%n",
+                codec, xmlSize, storedSize, retainedPerQueue());
+    }
+
+    /**
+     * Used heap difference after filling many queues, so that objects shared
+     * by all of them (JIDs, codecs) are not counted.
+     */
+    private long retainedPerQueue() {
+        long before = usedHeap();
+        KontalkIOProcessor.MyOutQueue[] queues = new KontalkIOProcessor.MyOutQueue[RETAINED_QUEUES];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = fill();
+        }
+        long after = usedHeap();
+        // keep the queues reachable until measured
+        if (queues[queues.length - 1].getQueue().size() != packets) {
+            throw new IllegalStateException("queue not filled");
+        }
+        return (after - before) / queues.length;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public Object append() {
+        return fill();
+    }
+
+    @Benchmark
+    public void resend(Blackhole bh) {
+        for (StreamManagementIOProcessor.OutQueue.Entry entry : filled.getQueue()) {
+            bh.consume(entry.getPacketWithStamp());
+        }
+    }
+
+    private KontalkIOProcessor.MyOutQueue fill() {
+        KontalkIOProcessor.MyOutQueue queue = new KontalkIOProcessor.MyOutQueue(stanzaCodec, new LongAdder());
+        for (Packet message : messages) {
+            // packets are marked once queued
+            queue.append(message.copyElementOnly());
+        }
+        return queue;
+    }
+
+    private static Packet createMessage(JID to, int index) throws TigaseStringprepException {
+        Element message = new Element("message", new String[] { "type", "from", "to", "id" },
+                new String[] { "chat", "sender@localhost/res", to.toString(), "msg-" + index });
+        message.addChild(new Element("body", "This is a test message, long enough to look like a real one. #" + index));
+        message.addChild(new Element("request", new String[] { "xmlns" }, new String[] { "urn:xmpp:receipts" }));
+        message.addChild(new Element("x", "-----BEGIN PGP MESSAGE-----\nhQEMA0Z8b2ZyZWFk...\n-----END PGP MESSAGE-----",
+                new String[] { "xmlns" }, new String[] { "jabber:x:encrypted" }));
+        Packet packet = Packet.packetInstance(message);
+        packet.setPacketTo(JID.jidInstance("c2s@localhost/" + to.getLocalpart()));
+        return packet;
+    }
+
+}
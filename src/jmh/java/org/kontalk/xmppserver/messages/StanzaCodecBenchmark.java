@@ -0,0 +1,80 @@
+package org.kontalk.xmppserver.messages;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xml.Element;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Benchmarks for storing and restoring offline messages with each stanza
+ * codec. The "text" codec is the path used before codecs were introduced:
+ * the stanza is stored as a string and parsed back from it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StanzaCodecBenchmark {
+
+    @Param({ "text", "xml", "deflate" })
+    public String codec;
+
+    /** Size of the encrypted payload in the message. */
+    @Param({ "256", "4096" })
+    public int payloadSize;
+
+    private StanzaCodec stanzaCodec;
+    private Element message;
+    private String encodedText;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stanzaCodec = "text".equals(codec) ? null : StanzaCodec.forName(codec);
+        message = createMessage(payloadSize);
+        encodedText = message.toString();
+        encoded = stanzaCodec != null ? stanzaCodec.encode(message) :
+                encodedText.getBytes(StandardCharsets.UTF_8);
+        // printed in the run log, to compare the space savings
+        System.out.printf("%n%s codec, %d bytes payload: %d bytes stored%n", codec, payloadSize, encoded.length);
+    }
+
+    @Benchmark
+    public Object store() {
+        if (stanzaCodec == null)
+            return message.toString();
+        return stanzaCodec.encode(message);
+    }
+
+    @Benchmark
+    public Element restore() {
+        if (stanzaCodec == null)
+            return StanzaParser.parse(encodedText);
+        return stanzaCodec.decode(encoded);
+    }
+
+    private static Element createMessage(int payloadSize) {
+        Element message = new Element("message", new String[] { "type", "from", "to", "id" },
+                new String[] { "chat", "sender@localhost/res", "recipient@localhost", "msg-1" });
+        message.addChild(new Element("request", new String[] { "xmlns" }, new String[] { "urn:xmpp:receipts" }));
+
+        // base64-like payload, barely compressible as real encrypted content
+        StringBuilder payload = new StringBuilder(payloadSize);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        long seed = 42;
+        for (int i = 0; i < payloadSize; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            payload.append(alphabet.charAt((int) ((seed >>> 33) & 63)));
+        }
+        message.addChild(new Element("x", "-----BEGIN PGP MESSAGE-----\n" + payload + "\n-----END PGP MESSAGE-----",
+                new String[] { "xmlns" }, new String[] { "jabber:x:encrypted" }));
+        message.addChild(new Element("delay", new String[] { "xmlns", "stamp" },
+                new String[] { "urn:xmpp:delay", "2017-01-01T00:00:00.000Z" }));
+        return message;
+    }
+
+}
@@ -18,17 +18,28 @@
 
 package org.kontalk.xmppserver;
 
+import org.kontalk.xmppserver.messages.OfflineMessages;
+import org.kontalk.xmppserver.util.HashedTimingWheel;
+import tigase.conf.Configurable;
 import tigase.db.NonAuthUserRepository;
+import tigase.db.TigaseDBException;
 import tigase.server.Iq;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.Presence;
+import tigase.server.XMPPServer;
+import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,9 +54,23 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
     static final String XMLNS = "urn:xmpp:csi:0";
     public static final String ID = "kontalk:" + XMLNS;
 
-    /** Max size of the packet queue. After reaching this point, data will be sent out to the client. */
-    // TODO make this a parameter
-    private static final int MAX_QUEUE_SIZE = 50;
+    /** Default max size of the packet queue. After reaching this point, data will be sent out to the client. */
+    private static final int DEFAULT_MAX_QUEUE_SIZE = 50;
+    /**
+     * Upper bound for max-queue-size. Queues are copied on every write and
+     * presences and receipts are looked up by scanning them, so filling a
+     * queue costs O(size^2): it must stay small.
+     */
+    static final int MAX_QUEUE_SIZE_LIMIT = 256;
+    /** Default max size in bytes of the packet queue (approximate). */
+    private static final int DEFAULT_MAX_QUEUE_BYTES = 64 * 1024;
+
+    /** Default max number of delivery receipts in the packet queue. */
+    private static final int DEFAULT_MAX_QUEUE_RECEIPTS = 20;
+
+    /** Resolution of max-delay flushes, in seconds. */
+    private static final int MAX_DELAY_TICK = 1;
+    private static final int MAX_DELAY_WHEEL_SIZE = 512;
 
     private static final String[] XMLNSS = {XMLNS, XMLNS};
 
@@ -60,8 +85,84 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
     private static final Element[] FEATURES = { new Element("csi", new String[] { "xmlns" }, new String[] { XMLNS }) };
 
     private static final String CHATSTATE_XMLNS = "http://jabber.org/protocol/chatstates";
+    private static final String RECEIPTS_XMLNS = "urn:xmpp:receipts";
 
     static final String SESSION_QUEUE = ID + ":queue";
+    static final String SESSION_PRESENCES = ID + ":presences";
+
+    private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+    private int maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+    /** Max number of delivery receipts in a queue; 0 to disable delaying receipts. */
+    private int maxQueueReceipts = DEFAULT_MAX_QUEUE_RECEIPTS;
+    /** True to skip flushing presences the client has already seen. */
+    private boolean presenceDiffing;
+    /** Max time a packet can wait in a queue, in seconds; 0 to disable. */
+    private int maxDelay;
+
+    /** Shared scheduler for max-delay flushes, null if disabled. */
+    private HashedTimingWheel<XMPPResourceConnection> flushScheduler;
+    /** Receives packets flushed by the scheduler. */
+    Consumer<Packet> asyncResultHandler;
+
+    /** Number of sessions currently in inactive state. */
+    private final LongAdder inactiveSessions = new LongAdder();
+    /** Packets currently queued across all sessions. */
+    private final LongAdder queuedPackets = new LongAdder();
+    /** Bytes currently queued across all sessions. */
+    private final LongAdder queuedBytes = new LongAdder();
+    /** Flushes caused by a queue reaching its budget. */
+    private final LongAdder budgetFlushes = new LongAdder();
+    /** Duplicate delivery receipts dropped. */
+    private final LongAdder duplicateReceipts = new LongAdder();
+    /** Queued presences sent on flush. */
+    private final LongAdder presencesSent = new LongAdder();
+    /** Queued presences dropped on flush because the client has already seen them. */
+    private final LongAdder presencesSuppressed = new LongAdder();
+    /** Flushes caused by a queue reaching its max delay. */
+    private final LongAdder timedFlushes = new LongAdder();
+
+    @Override
+    public void init(Map<String, Object> settings) throws TigaseDBException {
+        super.init(settings);
+        maxQueueSize = (int) settings.getOrDefault("max-queue-size", DEFAULT_MAX_QUEUE_SIZE);
+        if (maxQueueSize > MAX_QUEUE_SIZE_LIMIT) {
+            log.log(Level.WARNING, "max-queue-size can''t be more than {0}, limiting", MAX_QUEUE_SIZE_LIMIT);
+            maxQueueSize = MAX_QUEUE_SIZE_LIMIT;
+        }
+        maxQueueBytes = (int) settings.getOrDefault("max-queue-bytes", DEFAULT_MAX_QUEUE_BYTES);
+        maxQueueReceipts = (int) settings.getOrDefault("max-queue-receipts", DEFAULT_MAX_QUEUE_RECEIPTS);
+        presenceDiffing = (boolean) settings.getOrDefault("presence-diffing", false);
+        maxDelay = (int) settings.getOrDefault("max-delay", 0);
+        if (maxDelay > 0 && flushScheduler == null) {
+            flushScheduler = new HashedTimingWheel<>("CSI flush scheduler", MAX_DELAY_TICK, TimeUnit.SECONDS,
+                    MAX_DELAY_WHEEL_SIZE, this::flushExpired);
+        }
+    }
+
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        long sessions = inactiveSessions.sum();
+        long bytes = queuedBytes.sum();
+        list.add(getComponentInfo().getName(), "CSI inactive sessions", sessions, Level.INFO);
+        list.add(getComponentInfo().getName(), "CSI queued packets", queuedPackets.sum(), Level.INFO);
+        list.add(getComponentInfo().getName(), "CSI queued bytes", bytes, Level.INFO);
+        list.add(getComponentInfo().getName(), "CSI queued bytes per session", sessions > 0 ? bytes / sessions : 0, Level.INFO);
+        list.add(getComponentInfo().getName(), "CSI budget flushes", budgetFlushes.sum(), Level.FINE);
+        list.add(getComponentInfo().getName(), "CSI duplicate receipts", duplicateReceipts.sum(), Level.FINE);
+        if (presenceDiffing) {
+            long sent = presencesSent.sum();
+            long suppressed = presencesSuppressed.sum();
+            list.add(getComponentInfo().getName(), "CSI presences sent", sent, Level.FINE);
+            list.add(getComponentInfo().getName(), "CSI presences suppressed", suppressed, Level.FINE);
+            list.add(getComponentInfo().getName(), "CSI presences suppressed/sent ratio",
+                    sent > 0 ? (float) suppressed / sent : 0f, Level.INFO);
+        }
+        if (flushScheduler != null) {
+            list.add(getComponentInfo().getName(), "CSI timed flushes", timedFlushes.sum(), Level.FINE);
+            list.add(getComponentInfo().getName(), "CSI scheduled flushes", flushScheduler.getPendingCount(), Level.FINE);
+        }
+    }
 
     @Override
     public void processFromUserToServerPacket(JID connectionId, Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo, Queue<Packet> results, Map<String, Object> settings) throws PacketErrorTypeException {
@@ -100,8 +201,10 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
     private void setInactive(XMPPResourceConnection session) {
         // check if there is already a queue
         final InternalQueue queue = (InternalQueue) session.getSessionData(SESSION_QUEUE);
-        if (queue == null)
-            session.putSessionData(SESSION_QUEUE, new InternalQueue(MAX_QUEUE_SIZE));
+        if (queue == null) {
+            session.putSessionData(SESSION_QUEUE, new InternalQueue(maxQueueSize, maxQueueBytes, maxQueueReceipts, queuedPackets, queuedBytes));
+            inactiveSessions.increment();
+        }
     }
 
     /** Deactivates client state indication (that is, client going to active state). */
@@ -114,56 +217,90 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         if (queue == null)
             return;
 
-        synchronized (queue) {
-            if (flushPresence && queue.size() > 0) {
-                // send all pending presence data
-                try {
-                    JID connId = session.getConnectionId();
-                    Collection<Presence> values = queue.values();
-                    for (Presence p : values) {
+        if (remove)
+            session.removeSessionData(SESSION_QUEUE);
+
+        // take the queue contents (and close it if it's going away)
+        final InternalQueue.Snapshot queued = queue.drain(remove);
+        if (queued == null) {
+            // already closed by someone else
+            return;
+        }
+        if (remove)
+            inactiveSessions.decrement();
+        if (queued.isEmpty())
+            return;
+
+        if (flushPresence) {
+            // send all pending presence data
+            try {
+                JID connId = session.getConnectionId();
+                PresenceFingerprints seen = presenceDiffing ? getPresenceFingerprints(session) : null;
+                for (Packet p : queued.packets()) {
+                    if (p.getElemName() == Presence.ELEM_NAME) {
+                        if (seen != null) {
+                            if (!seen.update(p)) {
+                                if (log.isLoggable(Level.FINEST)) {
+                                    log.log(Level.FINEST, "Presence already seen by client, dropping {0}", p);
+                                }
+                                presencesSuppressed.increment();
+                                continue;
+                            }
+                            presencesSent.increment();
+                        }
                         p.setPacketTo(connId);
                         results.offer(p);
                     }
                 }
-                catch (NoConnectionIdException e) {
-                    log.log(Level.SEVERE, "this should not happen", e);
+            }
+            catch (NoConnectionIdException e) {
+                log.log(Level.SEVERE, "this should not happen", e);
+            }
+        }
+        // send all pending messages
+        if (stopped) {
+            // we are stopping, redeliver all stanzas
+            List<Packet> undelivered = new ArrayList<>(queued.size());
+            for (Packet p : queued.packets()) {
+                if (p.getElemName() == Message.ELEM_NAME) {
+                    undelivered.add(p);
                 }
             }
-            // send all pending messages
-            List<Message> msgs = queue.getMessages();
-            if (msgs != null && msgs.size() > 0) {
-                if (stopped) {
-                    // we are stopping, redeliver all stanzas
-                    for (Message p : msgs) {
-                        // we are redelivering, no connection id
+            // store them offline in one go if possible
+            OfflineMessages offline = OfflineMessages.getInstance();
+            if (offline != null) {
+                offline.saveUndelivered(session, undelivered);
+            }
+            for (Packet p : undelivered) {
+                // we are redelivering, no connection id
+                p.setPacketTo(null);
+                results.offer(p);
+            }
+        }
+        else {
+            JID connId;
+            try {
+                connId = session.getConnectionId();
+            }
+            catch (NoConnectionIdException e) {
+                log.log(Level.WARNING, "connection has vanished, sending messages to JID", e);
+                connId = null;
+            }
+            for (Packet p : queued.packets()) {
+                if (p.getElemName() == Message.ELEM_NAME) {
+                    if (connId != null) {
+                        // create a copy so we don't alter the original stanza
+                        Packet p2 = p.copyElementOnly();
+                        p2.setPacketFrom(p.getPacketFrom());
+                        p2.setPacketTo(connId);
+                        results.offer(p2);
+                    }
+                    else {
                         p.setPacketTo(null);
                         results.offer(p);
                     }
                 }
-                else {
-                    try {
-                        JID connId = session.getConnectionId();
-                        for (Message p : msgs) {
-                            // create a copy so we don't alter the original stanza
-                            Packet p2 = p.copyElementOnly();
-                            p2.setPacketFrom(p.getPacketFrom());
-                            p2.setPacketTo(connId);
-                            results.offer(p2);
-                        }
-                    }
-                    catch (NoConnectionIdException e) {
-                        log.log(Level.WARNING, "connection has vanished, sending messages to JID", e);
-                        for (Message p : msgs) {
-                            p.setPacketTo(null);
-                            results.offer(p);
-                        }
-                    }
-                }
             }
-            // destroy and remove stanza store
-            queue.clear();
-            if (remove)
-                session.removeSessionData(SESSION_QUEUE);
         }
     }
 
@@ -175,6 +312,9 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
 
         final InternalQueue queue = (InternalQueue) session.getSessionData(SESSION_QUEUE);
         if (queue == null) {
+            if (presenceDiffing) {
+                recordPresences(session, results);
+            }
             return;
         }
 
@@ -185,27 +325,26 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
             Packet res = it.next();
             try {
                 if (res.getPacketTo() != null && res.getPacketTo().equals(session.getConnectionId())) {
-                    synchronized (queue) {
-                        if (log.isLoggable(Level.FINEST)) {
-                            log.log(Level.FINEST, "Checking packet {0} for session {1}",
-                                    new Object[]{packet, session});
-                        }
-                        if (filterPacket(res, queue)) {
-                            it.remove();
-                            // queue is getting big, flush them all!
-                            if (queue.needsFlush()) {
-                                needsFlush = true;
-                                // since we are going to flush anyway, no need to continue
-                                // (fix for ConcurrentModificationException)
-                                break;
-                            }
-                        }
-                        else if (!isSilent(res)) {
-                            // this packet will go through
-                            // do a flush later since we are transmitting
+                    if (log.isLoggable(Level.FINEST)) {
+                        log.log(Level.FINEST, "Checking packet {0} for session {1}",
+                                new Object[]{packet, session});
+                    }
+                    if (filterPacket(res, queue)) {
+                        it.remove();
+                        // queue is getting big, flush them all!
+                        if (queue.needsFlush()) {
                             needsFlush = true;
+                            budgetFlushes.increment();
+                            // since we are going to flush anyway, no need to continue
+                            // (fix for ConcurrentModificationException)
+                            break;
                         }
                     }
+                    else if (!isSilent(res)) {
+                        // this packet will go through
+                        // do a flush later since we are transmitting
+                        needsFlush = true;
+                    }
                 }
             }
             catch (NoConnectionIdException e) {
@@ -216,6 +355,64 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         if (needsFlush) {
             flush(session, results, true, false, false);
         }
+        else if (flushScheduler != null && queue.size() > 0 && !queue.hasDeadline()) {
+            // first packets queued: start the max-delay countdown
+            HashedTimingWheel.Timeout<XMPPResourceConnection> deadline =
+                    flushScheduler.schedule(session, maxDelay, TimeUnit.SECONDS);
+            if (!queue.setDeadline(deadline))
+                deadline.cancel();
+        }
+    }
+
+    /** Records presences going through to an active session, for later diffing. */
+    private void recordPresences(XMPPResourceConnection session, Queue<Packet> results) {
+        PresenceFingerprints seen = null;
+        try {
+            for (Packet res : results) {
+                if (isPresence(res) && res.getPacketTo() != null && res.getPacketTo().equals(session.getConnectionId())) {
+                    if (seen == null)
+                        seen = getPresenceFingerprints(session);
+                    seen.update(res);
+                }
+            }
+        }
+        catch (NoConnectionIdException e) {
+            // ignore
+        }
+    }
+
+    private PresenceFingerprints getPresenceFingerprints(XMPPResourceConnection session) {
+        // also called by the flush scheduler thread
+        synchronized (session) {
+            PresenceFingerprints seen = (PresenceFingerprints) session.getSessionData(SESSION_PRESENCES);
+            if (seen == null) {
+                seen = new PresenceFingerprints();
+                session.putSessionData(SESSION_PRESENCES, seen);
+            }
+            return seen;
+        }
+    }
+
+    /** Flushes queues that reached their max delay. Called by the scheduler thread. */
+    private void flushExpired(List<XMPPResourceConnection> sessions) {
+        Queue<Packet> results = new ArrayDeque<>();
+        for (XMPPResourceConnection session : sessions) {
+            if (log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "Max delay reached, flushing session {0}", session);
+            }
+            flush(session, results, true, false, false);
+        }
+        timedFlushes.add(sessions.size());
+        results.forEach(asyncResultHandler());
+    }
+
+    /** Packets produced outside the processor threads are sent through the session manager. */
+    private Consumer<Packet> asyncResultHandler() {
+        if (asyncResultHandler == null) {
+            SessionManager sessMan = (SessionManager) XMPPServer.getComponent(Configurable.DEF_SM_NAME);
+            asyncResultHandler = sessMan::addOutPacket;
+        }
+        return asyncResultHandler;
     }
 
     private boolean filterPacket(Packet packet, InternalQueue queue) {
@@ -223,19 +420,24 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
             if (log.isLoggable(Level.FINEST)) {
                 log.log(Level.FINEST, "Delaying presence {0}", packet);
             }
-            queue.put(packet.getStanzaFrom(), (Presence) packet);
-            return true;
+            return queue.putPresence(packet);
         }
 
-        /*
-        if (isDeliveryReceipt(packet)) {
+        if (maxQueueReceipts > 0 && isDeliveryReceipt(packet)) {
             if (log.isLoggable(Level.FINEST)) {
                 log.log(Level.FINEST, "Delaying delivery receipt {0}", packet);
             }
-            queue.putMessage((Message) packet);
-            return true;
+            // receipts still require an ack when flushed (see KontalkIOProcessor)
+            switch (queue.putReceipt(packet, getReceiptId(packet))) {
+                case InternalQueue.RECEIPT_DUPLICATE:
+                    duplicateReceipts.increment();
+                    return true;
+                case InternalQueue.RECEIPT_QUEUED:
+                    return true;
+                default:
+                    return false;
+            }
         }
-        */
 
         if (isChatState(packet)) {
             if (log.isLoggable(Level.FINEST)) {
@@ -261,8 +463,17 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
     }
 
     private boolean isDeliveryReceipt(Packet packet) {
+        // receipts carrying a body are real messages
         return packet.getElemName() == Message.ELEM_NAME &&
-                packet.getElement().getChild("received", "urn:xmpp:receipts") != null;
+                packet.getElement().getChild("received", RECEIPTS_XMLNS) != null &&
+                packet.getElement().getChild("body") == null;
+    }
+
+    /** Returns the id of the message being acknowledged, or the receipt stanza id if missing. */
+    private static String getReceiptId(Packet packet) {
+        Element received = packet.getElement().getChild("received", RECEIPTS_XMLNS);
+        String id = received != null ? received.getAttributeStaticStr("id") : null;
+        return id != null ? id : packet.getStanzaId();
     }
 
     private boolean isChatState(Packet packet) {
@@ -303,39 +514,271 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
         return packet.getElemName() == ELEM_ACTIVE || packet.getElemName() == ELEM_INACTIVE;
     }
 
-    /** A typedef for the internal stanza queue for CSI. */
-    static final class InternalQueue extends LinkedHashMap<JID, Presence> {
+    /**
+     * The internal stanza queue for CSI.
+     * Queued packets are kept in a small immutable array which is replaced
+     * atomically on every change, so producers never block each other and a
+     * flush can take the whole queue in one step. Presence stanzas replace
+     * any queued presence from the same sender. The queue needs flushing when
+     * either the entry or the byte budget is reached; byte sizes are an
+     * estimate of the serialized stanza size.
+     */
+    static final class InternalQueue {
         private static final DateFormat formatter;
         static {
             formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
             formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
         }
 
-        private List<Message> messages;
-        private int maxSize;
+        static final int RECEIPT_QUEUED = 0;
+        static final int RECEIPT_DUPLICATE = 1;
+        static final int RECEIPT_CLOSED = 2;
+
+        /**
+         * Immutable queue contents, replaced on every write. Writes are
+         * O(size), which is fine as long as size is bounded by
+         * {@link #MAX_QUEUE_SIZE_LIMIT}.
+         */
+        static final class Snapshot {
+            private final Packet[] packets;
+            /** Receipt ids of queued packets, null for non-receipts. */
+            private final String[] receiptIds;
+            private final int bytes;
+            private final int receipts;
+
+            Snapshot(Packet[] packets, String[] receiptIds, int bytes, int receipts) {
+                this.packets = packets;
+                this.receiptIds = receiptIds;
+                this.bytes = bytes;
+                this.receipts = receipts;
+            }
 
-        public InternalQueue(int max) {
-            super();
-            maxSize = max;
+            Packet[] packets() {
+                return packets;
+            }
+
+            int size() {
+                return packets.length;
+            }
+
+            int bytes() {
+                return bytes;
+            }
+
+            int receipts() {
+                return receipts;
+            }
+
+            boolean isEmpty() {
+                return packets.length == 0;
+            }
         }
 
-        @Override
-        public Presence put(JID key, Presence value) {
-            return super.put(key, addDelay(value));
+        /** Rough size of the attributes of an element (usually from, to, id, type). */
+        private static final int ATTRIBUTES_SIZE = 96;
+
+        private static final Snapshot EMPTY = new Snapshot(new Packet[0], new String[0], 0, 0);
+        /** Marks a queue that has been removed from its session. */
+        private static final Snapshot CLOSED = new Snapshot(new Packet[0], new String[0], 0, 0);
+
+        private final AtomicReference<Snapshot> contents = new AtomicReference<>(EMPTY);
+        /** Scheduled max-delay flush, if any. */
+        private final AtomicReference<HashedTimingWheel.Timeout<?>> deadline = new AtomicReference<>();
+        private final int maxSize;
+        private final int maxBytes;
+        private final int maxReceipts;
+
+        private final LongAdder packetsCounter;
+        private final LongAdder bytesCounter;
+
+        public InternalQueue(int maxSize, int maxBytes, int maxReceipts, LongAdder packetsCounter, LongAdder bytesCounter) {
+            this.maxSize = Math.min(maxSize, MAX_QUEUE_SIZE_LIMIT);
+            this.maxBytes = maxBytes;
+            this.maxReceipts = maxReceipts;
+            this.packetsCounter = packetsCounter;
+            this.bytesCounter = bytesCounter;
         }
 
-        public void putMessage(Message packet) {
-            if (messages == null) {
-                messages = new LinkedList<>();
+        /**
+         * Queues a presence, replacing any presence from the same sender.
+         * @return false if the queue has been closed
+         */
+        public boolean putPresence(Packet packet) {
+            addDelay(packet);
+            int size = estimateSize(packet);
+            JID from = packet.getStanzaFrom();
+            while (true) {
+                Snapshot cur = contents.get();
+                if (cur == CLOSED)
+                    return false;
+
+                Packet[] packets = cur.packets;
+                int index = -1;
+                for (int i = 0; i < packets.length; i++) {
+                    if (packets[i].getElemName() == Presence.ELEM_NAME && Objects.equals(from, packets[i].getStanzaFrom())) {
+                        index = i;
+                        break;
+                    }
+                }
+
+                Snapshot next;
+                int oldSize = 0;
+                if (index >= 0) {
+                    Packet[] copy = packets.clone();
+                    oldSize = estimateSize(copy[index]);
+                    copy[index] = packet;
+                    next = new Snapshot(copy, cur.receiptIds, cur.bytes - oldSize + size, cur.receipts);
+                }
+                else {
+                    next = append(cur, packet, null, size);
+                }
+
+                if (contents.compareAndSet(cur, next)) {
+                    if (index < 0)
+                        packetsCounter.increment();
+                    bytesCounter.add(size - oldSize);
+                    return true;
+                }
             }
-            messages.add(addDelay(packet));
         }
 
-        public List<Message> getMessages() {
-            return messages;
+        /**
+         * Queues a message.
+         * @return false if the queue has been closed
+         */
+        public boolean putMessage(Packet packet) {
+            addDelay(packet);
+            int size = estimateSize(packet);
+            while (true) {
+                Snapshot cur = contents.get();
+                if (cur == CLOSED)
+                    return false;
+
+                if (contents.compareAndSet(cur, append(cur, packet, null, size))) {
+                    packetsCounter.increment();
+                    bytesCounter.add(size);
+                    return true;
+                }
+            }
         }
 
-        private <T extends Packet> T addDelay(T packet) {
+        /**
+         * Queues a delivery receipt, unless a receipt for the same message
+         * from the same sender is already queued.
+         * @param receiptId id of the acknowledged message, might be null
+         * @return one of {@link #RECEIPT_QUEUED}, {@link #RECEIPT_DUPLICATE} or {@link #RECEIPT_CLOSED}
+         */
+        public int putReceipt(Packet packet, String receiptId) {
+            JID from = packet.getStanzaFrom();
+            boolean delayed = false;
+            int size = 0;
+            while (true) {
+                Snapshot cur = contents.get();
+                if (cur == CLOSED)
+                    return RECEIPT_CLOSED;
+
+                if (receiptId != null) {
+                    for (int i = 0; i < cur.packets.length; i++) {
+                        if (receiptId.equals(cur.receiptIds[i]) && Objects.equals(from, cur.packets[i].getStanzaFrom()))
+                            return RECEIPT_DUPLICATE;
+                    }
+                }
+
+                if (!delayed) {
+                    addDelay(packet);
+                    size = estimateSize(packet);
+                    delayed = true;
+                }
+
+                // an empty string marks receipts without an id
+                if (contents.compareAndSet(cur, append(cur, packet, receiptId != null ? receiptId : "", size))) {
+                    packetsCounter.increment();
+                    bytesCounter.add(size);
+                    return RECEIPT_QUEUED;
+                }
+            }
+        }
+
+        private static Snapshot append(Snapshot cur, Packet packet, String receiptId, int size) {
+            int length = cur.packets.length;
+            Packet[] packets = Arrays.copyOf(cur.packets, length + 1);
+            packets[length] = packet;
+            String[] receiptIds = Arrays.copyOf(cur.receiptIds, length + 1);
+            receiptIds[length] = receiptId;
+            return new Snapshot(packets, receiptIds, cur.bytes + size,
+                    receiptId != null ? cur.receipts + 1 : cur.receipts);
+        }
+
+        /**
+         * Empties the queue, returning its contents.
+         * @param close true to close the queue so that no more packets will be accepted
+         * @return the queue contents, or null if the queue was already closed
+         */
+        public Snapshot drain(boolean close) {
+            Snapshot cur;
+            do {
+                cur = contents.get();
+                if (cur == CLOSED)
+                    return null;
+            }
+            while (!contents.compareAndSet(cur, close ? CLOSED : EMPTY));
+
+            HashedTimingWheel.Timeout<?> timeout = deadline.getAndSet(null);
+            if (timeout != null)
+                timeout.cancel();
+
+            packetsCounter.add(-cur.size());
+            bytesCounter.add(-cur.bytes);
+            return cur;
+        }
+
+        public int size() {
+            return contents.get().size();
+        }
+
+        public int bytes() {
+            return contents.get().bytes;
+        }
+
+        public boolean hasDeadline() {
+            return deadline.get() != null;
+        }
+
+        /** Sets the scheduled flush for this queue, returns false if one was already set. */
+        public boolean setDeadline(HashedTimingWheel.Timeout<?> timeout) {
+            return deadline.compareAndSet(null, timeout);
+        }
+
+        public boolean needsFlush() {
+            Snapshot cur = contents.get();
+            return cur.size() >= maxSize || cur.bytes >= maxBytes ||
+                    (maxReceipts > 0 && cur.receipts >= maxReceipts);
+        }
+
+        /** Estimates the serialized size of a packet, without actually serializing it. */
+        static int estimateSize(Packet packet) {
+            return estimateSize(packet.getElement());
+        }
+
+        private static int estimateSize(Element elem) {
+            // <name ...></name>
+            int size = elem.getName().length() * 2 + 5;
+            String xmlns = elem.getXMLNS();
+            if (xmlns != null)
+                size += xmlns.length() + 9;
+            String cdata = elem.getCData();
+            if (cdata != null)
+                size += cdata.length();
+            List<Element> children = elem.getChildren();
+            if (children != null) {
+                for (Element child : children)
+                    size += estimateSize(child);
+            }
+            // attributes are not exposed without copying them, count a fixed amount
+            return size + ATTRIBUTES_SIZE;
+        }
+
+        private static void addDelay(Packet packet) {
             Element elem = packet.getElement();
             // do not overwrite old delay element
             if (elem.getChild("delay", "urn:xmpp:delay") == null) {
@@ -351,19 +794,6 @@ public class ClientStateIndication extends XMPPProcessorAbstract implements XMPP
                 );
                 elem.addChild(x);
             }
-            return packet;
-        }
-
-        @Override
-        public void clear() {
-            super.clear();
-            if (messages != null) {
-                messages.clear();
-            }
-        }
-
-        public boolean needsFlush() {
-            return ((messages != null ? messages.size() : 0) + size()) >= maxSize;
         }
     }
 
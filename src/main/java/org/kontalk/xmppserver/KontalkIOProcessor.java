@@ -18,13 +18,28 @@
 
 package org.kontalk.xmppserver;
 
+import org.kontalk.xmppserver.messages.OfflineMessages;
+import org.kontalk.xmppserver.messages.StanzaCodec;
+import org.kontalk.xmppserver.util.HashedTimingWheel;
+import tigase.conf.Configurable;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.xmppclient.StreamManagementIOProcessor;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
+import tigase.xmpp.JID;
 import tigase.xmpp.XMPPIOService;
 
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,11 +52,132 @@ public class KontalkIOProcessor extends StreamManagementIOProcessor {
 
     private static final Logger log = Logger.getLogger(KontalkIOProcessor.class.getCanonicalName());
 
+    /** Codec for keeping unacked packets serialized, null to keep them as they are. */
+    private StanzaCodec unackedCodec;
+
+    private static final String ACK_REQUEST = "<r xmlns='" + XMLNS + "'/>";
+    private static final int ACK_REQUEST_WHEEL_SIZE = 512;
+
+    /** Request an ack after this many unrequested messages. */
+    private int ackRequestMaxPending = 1;
+    /** Request an ack this many milliseconds after the first unrequested message, 0 to disable. */
+    private long ackRequestMaxDelay;
+    /** Fires delayed ack requests, null if disabled. */
+    private HashedTimingWheel<MyOutQueue> ackRequestScheduler;
+
+    private final LongAdder ackRequests = new LongAdder();
+    private final LongAdder ackRequiredMessages = new LongAdder();
+
+    /** Session data key of the unacked queue of a connection, as set by the parent class. */
+    private static final String OUT_QUEUE_KEY = XMLNS + "_out";
+
+    @Override
+    public void setProperties(Map<String, Object> props) {
+        super.setProperties(props);
+        String codec = (String) props.get("unacked-codec");
+        if (codec != null) {
+            unackedCodec = "none".equalsIgnoreCase(codec) ? null : StanzaCodec.forName(codec);
+        }
+
+        ackRequestMaxPending = (int) props.getOrDefault("ack-request-max-pending", ackRequestMaxPending);
+        ackRequestMaxDelay = ((Number) props.getOrDefault("ack-request-max-delay", ackRequestMaxDelay)).longValue();
+        if (ackRequestMaxPending > 1 && ackRequestMaxDelay <= 0) {
+            // messages below the threshold would never be acked
+            log.warning("ack-request-max-pending requires ack-request-max-delay, disabling");
+            ackRequestMaxPending = 1;
+        }
+        if (ackRequestMaxDelay > 0 && ackRequestScheduler == null) {
+            ackRequestScheduler = new HashedTimingWheel<>("SM ack request scheduler",
+                    Math.max(1, ackRequestMaxDelay / 4), TimeUnit.MILLISECONDS,
+                    ACK_REQUEST_WHEEL_SIZE, this::sendDelayedAckRequests);
+        }
+    }
+
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        long requests = ackRequests.sum();
+        long messages = ackRequiredMessages.sum();
+        list.add(Configurable.DEF_C2S_NAME, "SM ack requests", requests, Level.FINE);
+        list.add(Configurable.DEF_C2S_NAME, "SM ack-required messages", messages, Level.FINE);
+        list.add(Configurable.DEF_C2S_NAME, "SM ack requests per message",
+                messages > 0 ? (float) requests / messages : 0f, Level.INFO);
+    }
+
+    private boolean isAckCoalescing() {
+        return ackRequestMaxPending > 1 || ackRequestMaxDelay > 0;
+    }
+
+    /**
+     * Hands the unacked queue of a connection to offline delivery once stream
+     * management is enabled or resumed on it: from then on, acking the last
+     * message of an offline window releases the next one. Offline window
+     * elements sent by the client are dropped, since windows are released by
+     * the server only (injected packets don't go through this method).
+     */
+    @Override
+    public boolean processIncoming(XMPPIOService service, Packet packet) {
+        if (OfflineMessages.isWindowElement(packet)) {
+            if (log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "dropping offline window element from client: {0}", packet);
+            }
+            return true;
+        }
+
+        boolean stop = super.processIncoming(service, packet);
+        if (packet.getXMLNS() == XMLNS) {
+            String name = packet.getElemName();
+            boolean enable = name == "enable";
+            if (enable || name == "resume") {
+                // the queue is moved to the new connection on resume
+                Object queue = service.getSessionData().get(OUT_QUEUE_KEY);
+                if (queue instanceof MyOutQueue) {
+                    ((MyOutQueue) queue).bind(service);
+                    if (enable) {
+                        service.addReceivedPacket(OfflineMessages.createWindowEnable());
+                    }
+                }
+            }
+        }
+        return stop;
+    }
+
     @Override
     protected boolean shouldRequestAck(XMPPIOService service, OutQueue outQueue) {
-        return super.shouldRequestAck(service, outQueue) ||
-                (outQueue instanceof MyOutQueue &&
-                        ((MyOutQueue) outQueue).messagesWaitingForAck() > 0);
+        if (outQueue instanceof MyOutQueue) {
+            ((MyOutQueue) outQueue).bind(service);
+        }
+        boolean request = super.shouldRequestAck(service, outQueue);
+        if (outQueue instanceof MyOutQueue) {
+            MyOutQueue myQueue = (MyOutQueue) outQueue;
+            if (isAckCoalescing()) {
+                request = myQueue.coalesceAckRequest(request, ackRequestMaxPending,
+                        ackRequestMaxDelay, ackRequestScheduler);
+            }
+            else {
+                request = request || myQueue.messagesWaitingForAck() > 0;
+            }
+        }
+        if (request) {
+            ackRequests.increment();
+        }
+        return request;
+    }
+
+    /** Sends ack requests for queues whose messages waited too long. Called by the scheduler thread. */
+    private void sendDelayedAckRequests(List<MyOutQueue> queues) {
+        for (MyOutQueue queue : queues) {
+            XMPPIOService service = queue.takeDelayedAckRequest();
+            if (service != null) {
+                try {
+                    service.writeRawData(ACK_REQUEST);
+                    ackRequests.increment();
+                }
+                catch (IOException e) {
+                    log.log(Level.FINE, "unable to request ack, connection closed?", e);
+                }
+            }
+        }
     }
 
     @Override
@@ -51,24 +187,132 @@ public class KontalkIOProcessor extends StreamManagementIOProcessor {
 
     @Override
     protected OutQueue newOutQueue() {
-        return new MyOutQueue();
+        return new MyOutQueue(unackedCodec, ackRequiredMessages);
+    }
+
+    /**
+     * Releases the next offline window by injecting a request for it in the
+     * incoming stream, as if the client had sent it. Must be called while
+     * processing incoming data, so that the request is routed right away.
+     */
+    static void requestNextWindow(XMPPIOService service) {
+        if (log.isLoggable(Level.FINEST)) {
+            log.log(Level.FINEST, "releasing next offline window for {0}", service);
+        }
+        service.addReceivedPacket(OfflineMessages.createWindowRequest());
+    }
+
+    /**
+     * Returns true if the given packet should be acked by the client.
+     * Delivery receipts batched by {@link ClientStateIndication} are flushed
+     * as individual stanzas, so they are counted here too.
+     */
+    static boolean isAckRequired(Packet packet) {
+        if (packet.getElemName() == Message.ELEM_NAME) {
+            Element element = packet.getElement();
+
+            // check for message body or delivery receipt
+            return (element.getChild("body") != null ||
+                    element.getChild("received", "urn:xmpp:receipts") != null);
+        }
+
+        return false;
     }
 
-    private static class MyOutQueue extends OutQueue {
+    static class MyOutQueue extends OutQueue {
+        private final StanzaCodec codec;
+        private final LongAdder ackRequiredCounter;
         private int messagesWaiting;
+        /** Ack-required messages sent since the last ack request. */
+        private int messagesUnrequested;
+        /** Pending delayed ack request, if any. */
+        private HashedTimingWheel.Timeout<MyOutQueue> ackRequestTimeout;
+        /** Entry holding the last packet of the offline window being delivered. */
+        private Entry windowEnd;
+        /** True if the last packet of an offline window was acked. */
+        private boolean windowAcked;
+        private XMPPIOService service;
+
+        MyOutQueue(StanzaCodec codec, LongAdder ackRequiredCounter) {
+            this.codec = codec;
+            this.ackRequiredCounter = ackRequiredCounter;
+        }
+
+        /**
+         * Decides whether to request an ack now: after maxPending messages,
+         * or maxDelay milliseconds after the first message not covered by a
+         * request, whichever comes first.
+         */
+        synchronized boolean coalesceAckRequest(boolean requested, int maxPending, long maxDelay,
+                HashedTimingWheel<MyOutQueue> scheduler) {
+            if (messagesUnrequested == 0)
+                return requested;
+
+            if (requested || messagesUnrequested >= maxPending) {
+                messagesUnrequested = 0;
+                if (ackRequestTimeout != null) {
+                    ackRequestTimeout.cancel();
+                    ackRequestTimeout = null;
+                }
+                return true;
+            }
+
+            if (scheduler != null && ackRequestTimeout == null) {
+                ackRequestTimeout = scheduler.schedule(this, maxDelay, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        }
+
+        /** Returns the service to request an ack to, or null if not needed anymore. */
+        synchronized XMPPIOService takeDelayedAckRequest() {
+            ackRequestTimeout = null;
+            if (messagesUnrequested > 0 && messagesWaiting > 0) {
+                messagesUnrequested = 0;
+                return service;
+            }
+            return null;
+        }
+
+        synchronized void bind(XMPPIOService service) {
+            this.service = service;
+            releaseWindow();
+        }
+
+        private void releaseWindow() {
+            // an ack processed while resuming will be handled by the new connection
+            if (windowAcked && service != null && service.isConnected()) {
+                windowAcked = false;
+                requestNextWindow(service);
+            }
+        }
 
         @Override
-        public void append(Packet packet) {
+        public synchronized void append(Packet packet) {
             if (!packet.wasProcessedBy(XMLNS)) {
-                if (shouldRequestAck(packet)) {
+                boolean ackRequired = isAckRequired(packet);
+                // the marker is not meant for the client
+                boolean windowEnd = OfflineMessages.removeWindowEnd(packet);
+                if (ackRequired) {
                     messagesWaiting++;
+                    messagesUnrequested++;
+                    ackRequiredCounter.increment();
                 }
                 super.append(packet);
+                ArrayDeque<Entry> queue = getQueue();
+                if (codec != null) {
+                    // replace the entry just added with a serialized one
+                    queue.pollLast();
+                    queue.offerLast(new SerializedEntry(packet, codec, ackRequired));
+                }
+                if (windowEnd) {
+                    // the next window is sent only after this one is acked
+                    this.windowEnd = queue.peekLast();
+                }
             }
         }
 
         @Override
-        public void ack(int value) {
+        public synchronized void ack(int value) {
             int count = get() - value;
 
             if (count < 0) {
@@ -82,30 +326,106 @@ public class KontalkIOProcessor extends StreamManagementIOProcessor {
 
             while (count < queue.size()) {
                 Entry entry = queue.poll();
-                Packet packet = entry.getPacketWithStamp();
-                if (shouldRequestAck(packet)) {
+                Object acked;
+                boolean ackRequired;
+                if (entry instanceof SerializedEntry) {
+                    // no need to decode it
+                    acked = entry;
+                    ackRequired = ((SerializedEntry) entry).ackRequired;
+                }
+                else {
+                    Packet packet = entry.getPacketWithStamp();
+                    acked = packet;
+                    ackRequired = isAckRequired(packet);
+                }
+                if (ackRequired) {
                     if (log.isLoggable(Level.FINEST)) {
-                        log.log(Level.FINEST, "acking message: {0}", packet.toString());
+                        log.log(Level.FINEST, "acking message: {0}", acked.toString());
                     }
                     messagesWaiting--;
                 }
+                if (entry == windowEnd) {
+                    windowEnd = null;
+                    windowAcked = true;
+                }
             }
+
+            releaseWindow();
+        }
+
+        public synchronized int messagesWaitingForAck() {
+            return messagesWaiting;
+        }
+    }
+
+    /**
+     * An unacked packet kept in serialized form, so that idle sessions
+     * waiting for resumption don't hold whole element trees. The packet is
+     * decoded only when it needs to be resent or redelivered.
+     */
+    static final class SerializedEntry extends OutQueue.Entry {
+        private static final DateFormat formatter;
+        static {
+            formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
         }
 
-        private boolean shouldRequestAck(Packet packet) {
-            if (packet.getElemName() == Message.ELEM_NAME) {
-                Element element = packet.getElement();
+        private final byte[] data;
+        private final StanzaCodec codec;
+        private final JID stanzaFrom;
+        private final JID stanzaTo;
+        private final JID packetFrom;
+        private final JID packetTo;
+        private final long stamp;
+        final boolean ackRequired;
 
-                // check for message body or delivery receipt
-                return (element.getChild("body") != null ||
-                        element.getChild("received", "urn:xmpp:receipts") != null);
+        SerializedEntry(Packet packet, StanzaCodec codec, boolean ackRequired) {
+            // the packet is not retained
+            super(null);
+            this.data = codec.encode(packet.getElement());
+            this.codec = codec;
+            this.stanzaFrom = packet.getStanzaFrom();
+            this.stanzaTo = packet.getStanzaTo();
+            this.packetFrom = packet.getPacketFrom();
+            this.packetTo = packet.getPacketTo();
+            this.stamp = System.currentTimeMillis();
+            this.ackRequired = ackRequired;
+        }
+
+        @Override
+        public Packet getPacketWithStamp() {
+            Element elem = codec.decode(data);
+            if (elem == null) {
+                // callers can't handle a missing packet
+                throw new IllegalStateException("unable to decode unacked packet to " + stanzaTo);
             }
 
-            return false;
+            // do not overwrite old delay element
+            if (elem.getChild("delay", "urn:xmpp:delay") == null) {
+                String stamp;
+                synchronized (formatter) {
+                    stamp = formatter.format(new Date(this.stamp));
+                }
+                elem.addChild(new Element("delay", new String[] { "xmlns", "stamp" },
+                        new String[] { "urn:xmpp:delay", stamp }));
+            }
+
+            Packet packet = Packet.packetInstance(elem, stanzaFrom, stanzaTo);
+            packet.setPacketFrom(packetFrom);
+            packet.setPacketTo(packetTo);
+            // it's still in the unacked queue
+            packet.processedBy(XMLNS);
+            return packet;
         }
 
-        public int messagesWaitingForAck() {
-            return messagesWaiting;
+        /** Size of the serialized packet. */
+        int size() {
+            return data.length;
+        }
+
+        @Override
+        public String toString() {
+            return "SerializedEntry[to=" + stanzaTo + ", size=" + data.length + "]";
         }
     }
 
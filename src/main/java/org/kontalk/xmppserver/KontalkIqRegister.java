@@ -26,6 +26,7 @@ import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.util.encoders.Hex;
 import org.kontalk.xmppserver.auth.KontalkAuth;
+import org.kontalk.xmppserver.auth.KontalkCertificateCallbackHandler;
 import org.kontalk.xmppserver.pgp.PGPUserID;
 import org.kontalk.xmppserver.pgp.PGPUtils;
 import org.kontalk.xmppserver.presence.JDBCPresenceRepository;
@@ -1063,6 +1064,8 @@ public class KontalkIqRegister extends XMPPProcessor implements XMPPProcessorIfc
         list.add(getComponentInfo().getName(), "Registration attempts", statsRegistrationAttempts, Level.INFO);
         list.add(getComponentInfo().getName(), "Registered users", statsRegisteredUsers, Level.INFO);
         list.add(getComponentInfo().getName(), "Invalid registrations", statsInvalidRegistrations, Level.INFO);
+        KontalkKeyring.getStatistics(getComponentInfo().getName(), list);
+        KontalkCertificateCallbackHandler.getStatistics(getComponentInfo().getName(), list);
     }
 
     @Override
@@ -18,18 +18,29 @@
 
 package org.kontalk.xmppserver;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKey;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.kontalk.xmppserver.pgp.*;
 import org.kontalk.xmppserver.util.Utils;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.BareJID;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
 
 
 /**
@@ -39,26 +50,91 @@ import java.util.Map;
 public class KontalkKeyring {
     private static final Map<String, KontalkKeyring> instances = new HashMap<>();
 
+    private static final long DEFAULT_KEY_CACHE_SIZE = 10000;
+    private static final long DEFAULT_KEY_CACHE_WEIGHT = 16 * 1024 * 1024;
+
+    private static final long DEFAULT_VALIDATION_CACHE_SIZE = 100000;
+    private static final long DEFAULT_VALIDATION_CACHE_TTL = TimeUnit.MINUTES.toSeconds(10);
+
+    /** A memoized result of {@link #validate}. */
+    private static final class ValidationResult {
+        /** Digest of the validated keyring, a different keyring means a stale result. */
+        final HashCode digest;
+        /** The validated JID, null if the key is not valid. */
+        final BareJID jid;
+        /** Result is not valid after this time (e.g. the key expires). */
+        final long expires;
+
+        ValidationResult(HashCode digest, BareJID jid, long expires) {
+            this.digest = digest;
+            this.jid = jid;
+            this.expires = expires;
+        }
+    }
+
     private final String domain;
     private final PGPLocalKeyring keyring;
 
     private final PGPPublicKey secretMasterKey;
     private final PGPPublicKeyRing secretPublicKeyring;
-    private final String secretKeyFingerprint;
+    private final PGPSigner signer;
+
+    /** Validation results by key fingerprint, null if disabled. */
+    private final Cache<String, ValidationResult> validations;
+    private final long validationTTL;
+    private final LongAdder validationHits = new LongAdder();
+    private final LongAdder validationMisses = new LongAdder();
 
     /** Use {@link #getInstance(String)} instead. */
     private KontalkKeyring(String domain, String secretPrivateKeyFile, String secretPublicKeyFile, String keyring) throws IOException, PGPException {
+        this(domain, createLocalKeyring(keyring), loadSigner(secretPrivateKeyFile),
+                loadPublicKeyring(secretPublicKeyFile), TimeUnit.SECONDS.toMillis(getConfiguredValidationCacheTTL()),
+                getConfiguredValidationCacheSize());
+    }
+
+    // for test only
+    KontalkKeyring(String domain, PGPLocalKeyring keyring, PGPSigner signer, PGPPublicKeyRing secretPublicKeyring,
+                   long validationTTL, long validationCacheSize) throws PGPException {
         this.domain = domain;
-        this.keyring = new BerkeleyPGPLocalKeyring(keyring);
+        this.keyring = keyring;
+        this.signer = signer;
+        this.secretPublicKeyring = secretPublicKeyring;
+        secretMasterKey = PGPUtils.getMasterKey(secretPublicKeyring);
+        if (!PGPUtils.equals(secretMasterKey, signer.getMasterKey()))
+            throw new PGPException("secret key does not match the public key");
+
+        this.validationTTL = validationTTL;
+        if (validationTTL > 0) {
+            validations = CacheBuilder.newBuilder()
+                    .expireAfterWrite(validationTTL, TimeUnit.MILLISECONDS)
+                    .maximumSize(validationCacheSize)
+                    .build();
+        }
+        else {
+            validations = null;
+        }
+    }
 
-        // import into GnuPG
-        GnuPGInterface.getInstance().importKey(secretPrivateKeyFile);
-        GnuPGInterface.getInstance().importKey(secretPublicKeyFile);
+    /** Loads the secret key once for signing. */
+    private static PGPSigner loadSigner(String secretPrivateKeyFile) throws IOException, PGPException {
+        try (InputStream in = new FileInputStream(secretPrivateKeyFile)) {
+            return PGPSigner.load(in, getConfiguredSecretPassphrase());
+        }
+    }
 
-        // calculate secret key fingerprint for signing
-        secretPublicKeyring = PGPUtils.readPublicKeyring(new FileInputStream(secretPublicKeyFile));
-        secretMasterKey = PGPUtils.getMasterKey(secretPublicKeyring);
-        secretKeyFingerprint = PGPUtils.getFingerprint(secretMasterKey);
+    private static PGPPublicKeyRing loadPublicKeyring(String secretPublicKeyFile) throws IOException, PGPException {
+        try (InputStream in = new FileInputStream(secretPublicKeyFile)) {
+            return PGPUtils.readPublicKeyring(in);
+        }
+    }
+
+    private static PGPLocalKeyring createLocalKeyring(String filename) throws IOException {
+        PGPLocalKeyring keyring = new BerkeleyPGPLocalKeyring(filename);
+        long cacheSize = getConfiguredKeyCacheSize();
+        if (cacheSize > 0) {
+            keyring = new CachingPGPLocalKeyring(keyring, cacheSize, getConfiguredKeyCacheWeight());
+        }
+        return keyring;
     }
 
     public PGPPublicKeyRing getSecretPublicKey() {
@@ -102,6 +178,16 @@ public class KontalkKeyring {
         return false;
     }
 
+    /**
+     * Checks that the key the given user authenticated with is still valid
+     * (e.g. it was not revoked in the meantime). Cheap for keys already
+     * validated, unless the keyring changed.
+     */
+    public boolean isValid(KontalkUser user) throws IOException, PGPException {
+        PGPPublicKeyRing key = keyring.getKey(user.getFingerprint());
+        return key != null && user.getJID().equals(validate(key));
+    }
+
     /**
      * Imports the given revoked key and checks if fingerprint matches and
      * key is revoked correctly.
@@ -109,13 +195,63 @@ public class KontalkKeyring {
     public boolean revoked(byte[] keyData, String fingerprint) throws IOException, PGPException {
         PGPPublicKeyRing key = keyring.importKey(keyData);
         PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
+        if (masterKey != null && validations != null)
+            validations.invalidate(PGPUtils.getFingerprint(masterKey));
 
         return masterKey != null && PGPUtils.isRevoked(masterKey) &&
                 Arrays.equals(Utils.parseHexBinary(fingerprint), masterKey.getFingerprint());
     }
 
+    /**
+     * Validates the given key, reusing a previous result if the keyring
+     * didn't change since then.
+     */
+    private BareJID validate(PGPPublicKeyRing key) throws IOException, PGPException {
+        if (validations == null)
+            return validateKey(key);
+
+        PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
+        if (masterKey == null)
+            return null;
+
+        String fingerprint = PGPUtils.getFingerprint(masterKey);
+        HashCode digest = Hashing.sha256().hashBytes(key.getEncoded());
+        long now = System.currentTimeMillis();
+
+        ValidationResult result = validations.getIfPresent(fingerprint);
+        if (result != null && result.expires > now && result.digest.equals(digest)) {
+            validationHits.increment();
+            return result.jid;
+        }
+
+        // merged signatures or a new key: validate again
+        validationMisses.increment();
+        BareJID jid = validateKey(key);
+
+        long expires = now + validationTTL;
+        Date expiry = PGPUtils.getExpirationTime(masterKey);
+        if (expiry != null)
+            expires = Math.min(expires, expiry.getTime());
+        validations.put(fingerprint, new ValidationResult(digest, jid, expires));
+        return jid;
+    }
+
+    /** Returns the time the cached validation of the given key expires, 0 if not cached. */
+    long getValidationExpiry(String fingerprint) {
+        ValidationResult result = validations != null ? validations.getIfPresent(fingerprint) : null;
+        return result != null ? result.expires : 0;
+    }
+
+    long getValidationHits() {
+        return validationHits.sum();
+    }
+
+    long getValidationMisses() {
+        return validationMisses.sum();
+    }
+
     /** Validates the given key for expiration, revocation and signature by the server. */
-    private BareJID validate(PGPPublicKeyRing key) throws PGPException {
+    private BareJID validateKey(PGPPublicKeyRing key) throws PGPException {
         PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
         if (masterKey == null || PGPUtils.isRevoked(masterKey) || PGPUtils.isExpired(masterKey))
             return null;
@@ -131,17 +267,15 @@ public class KontalkKeyring {
     }
 
     public byte[] exportKey(String fingerprint) throws IOException, PGPException {
-        PGPPublicKeyRing pk = keyring.getKey(fingerprint);
-        return (pk != null) ? pk.getEncoded() : null;
+        return keyring.exportKey(fingerprint);
     }
 
-    // TODO this needs to be implemented in Java
     public byte[] signKey(byte[] keyData) throws IOException, PGPException {
-        return GnuPGInterface.getInstance().signKey(keyData, secretKeyFingerprint);
+        return signer.signKey(keyData);
     }
 
     public byte[] signData(byte[] data) throws IOException, PGPException {
-        return GnuPGInterface.getInstance().signData(data, secretKeyFingerprint);
+        return signer.signData(data);
     }
 
     public void close() throws IOException {
@@ -163,6 +297,30 @@ public class KontalkKeyring {
         return System.getProperty("pgp.secret.private");
     }
 
+    /** Maximum number of parsed keys to keep in memory, 0 to disable the cache. */
+    private static long getConfiguredKeyCacheSize() {
+        return Long.getLong("pgp.keyring.cache.size", DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /** Maximum total size in bytes of the parsed keys kept in memory. */
+    private static long getConfiguredKeyCacheWeight() {
+        return Long.getLong("pgp.keyring.cache.weight", DEFAULT_KEY_CACHE_WEIGHT);
+    }
+
+    /** Seconds a key validation result is reused for, 0 to disable. */
+    private static long getConfiguredValidationCacheTTL() {
+        return Long.getLong("pgp.keyring.validation.ttl", DEFAULT_VALIDATION_CACHE_TTL);
+    }
+
+    private static long getConfiguredValidationCacheSize() {
+        return Long.getLong("pgp.keyring.validation.size", DEFAULT_VALIDATION_CACHE_SIZE);
+    }
+
+    private static char[] getConfiguredSecretPassphrase() {
+        String passphrase = System.getProperty("pgp.secret.passphrase");
+        return passphrase != null ? passphrase.toCharArray() : null;
+    }
+
     /** Initializes the keyring. */
     public static KontalkKeyring getInstance(String domain) throws IOException, PGPException {
         synchronized (instances) {
@@ -176,4 +334,31 @@ public class KontalkKeyring {
         }
     }
 
+    /** Adds public key cache statistics of all keyrings to the given list. */
+    public static void getStatistics(String compName, StatisticsList list) {
+        CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+        long validationHits = 0;
+        long validationMisses = 0;
+        long size = 0;
+        synchronized (instances) {
+            for (KontalkKeyring instance : instances.values()) {
+                if (instance.keyring instanceof CachingPGPLocalKeyring) {
+                    CachingPGPLocalKeyring cache = (CachingPGPLocalKeyring) instance.keyring;
+                    stats = stats.plus(cache.getStats());
+                    size += cache.size();
+                }
+                validationHits += instance.validationHits.sum();
+                validationMisses += instance.validationMisses.sum();
+            }
+        }
+
+        list.add(compName, "Public key cache size", size, Level.FINE);
+        list.add(compName, "Public key cache hits", stats.hitCount(), Level.FINE);
+        list.add(compName, "Public key cache misses", stats.missCount(), Level.FINE);
+        list.add(compName, "Public key cache hit rate", (float) stats.hitRate(), Level.FINE);
+        list.add(compName, "Public key cache evictions", stats.evictionCount(), Level.FINER);
+        list.add(compName, "Key validation cache hits", validationHits, Level.FINE);
+        list.add(compName, "Key validation cache misses", validationMisses, Level.FINE);
+    }
+
 }
@@ -0,0 +1,158 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Fingerprints of the last presence delivered to a session for each contact.
+ * Both contacts and presences are stored as 64-bit hashes in an
+ * open-addressing table, so a contact takes 16 bytes.
+ * @author Daniele Ricci
+ */
+class PresenceFingerprints {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Contact hashes, 0 for empty slots. */
+    private long[] contacts = new long[INITIAL_CAPACITY];
+    private long[] fingerprints = new long[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Records the given presence as delivered.
+     * @return false if the same presence from the same contact was already delivered
+     */
+    public boolean update(Packet presence) {
+        return update(contactHash(presence.getStanzaFrom()), fingerprint(presence.getElement()));
+    }
+
+    synchronized boolean update(long contact, long fingerprint) {
+        int index = indexOf(contacts, contact);
+        if (contacts[index] == contact) {
+            if (fingerprints[index] == fingerprint)
+                return false;
+            fingerprints[index] = fingerprint;
+            return true;
+        }
+
+        contacts[index] = contact;
+        fingerprints[index] = fingerprint;
+        if (++size > contacts.length * 3 / 4)
+            grow();
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Returns the slot holding the given contact, or the empty slot where it should go. */
+    private static int indexOf(long[] contacts, long contact) {
+        int mask = contacts.length - 1;
+        int index = (int) (contact ^ (contact >>> 32)) & mask;
+        while (contacts[index] != 0 && contacts[index] != contact) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void grow() {
+        long[] oldContacts = contacts;
+        long[] oldFingerprints = fingerprints;
+        contacts = new long[oldContacts.length * 2];
+        fingerprints = new long[oldContacts.length * 2];
+        for (int i = 0; i < oldContacts.length; i++) {
+            if (oldContacts[i] != 0) {
+                int index = indexOf(contacts, oldContacts[i]);
+                contacts[index] = oldContacts[i];
+                fingerprints[index] = oldFingerprints[i];
+            }
+        }
+    }
+
+    static long contactHash(JID jid) {
+        long hash = HASH.hashString(String.valueOf(jid), StandardCharsets.UTF_8).asLong();
+        // 0 marks empty slots
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Hashes what the client will see of a presence: its type and children,
+     * excluding delay stamps and routing attributes (from, to, id).
+     */
+    static long fingerprint(Element presence) {
+        Hasher hasher = HASH.newHasher();
+        putString(hasher, presence.getAttributeStaticStr("type"));
+        putChildren(hasher, presence.getChildren());
+        return hasher.hash().asLong();
+    }
+
+    private static void putChildren(Hasher hasher, List<Element> children) {
+        if (children == null)
+            return;
+
+        for (Element child : children) {
+            if ("delay".equals(child.getName()) && "urn:xmpp:delay".equals(child.getXMLNS()))
+                continue;
+
+            putString(hasher, child.getName());
+            putString(hasher, child.getXMLNS());
+            Map<String, String> attributes = child.getAttributes();
+            if (attributes != null) {
+                // attribute order doesn't matter
+                long attrs = 0;
+                for (Map.Entry<String, String> attr : attributes.entrySet()) {
+                    Hasher attrHasher = HASH.newHasher();
+                    putString(attrHasher, attr.getKey());
+                    putString(attrHasher, attr.getValue());
+                    attrs += attrHasher.hash().asLong();
+                }
+                hasher.putLong(attrs);
+            }
+            putString(hasher, child.getCData());
+            putChildren(hasher, child.getChildren());
+            // end of element
+            hasher.putByte((byte) 0);
+        }
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        if (value != null) {
+            hasher.putInt(value.length());
+            hasher.putString(value, StandardCharsets.UTF_8);
+        }
+        else {
+            hasher.putInt(-1);
+        }
+    }
+
+}
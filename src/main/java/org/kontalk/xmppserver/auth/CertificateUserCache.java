@@ -0,0 +1,101 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.auth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.kontalk.xmppserver.KontalkUser;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cache of users already verified through their X.509 bridge certificate.
+ * Certificates are identified by the SHA-256 digest of their DER encoding.
+ * @author Daniele Ricci
+ */
+class CertificateUserCache {
+
+    private static final class Entry {
+        final String domain;
+        final KontalkUser user;
+        /** Entry is not valid after this time (certificate or key expiration). */
+        final long expires;
+
+        Entry(String domain, KontalkUser user, long expires) {
+            this.domain = domain;
+            this.user = user;
+            this.expires = expires;
+        }
+    }
+
+    private final Cache<HashCode, Entry> cache;
+    private final long ttl;
+
+    /**
+     * @param maxSize maximum number of certificates to keep
+     * @param ttl time in milliseconds a verification is trusted for
+     */
+    CertificateUserCache(long maxSize, long ttl) {
+        this.ttl = ttl;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    static HashCode digest(X509Certificate cert) throws CertificateEncodingException {
+        return Hashing.sha256().hashBytes(cert.getEncoded());
+    }
+
+    /** Returns the user verified with the given certificate on the given domain, if any. */
+    KontalkUser get(HashCode certificate, String domain) {
+        Entry entry = cache.getIfPresent(certificate);
+        if (entry != null) {
+            if (entry.expires > System.currentTimeMillis() && entry.domain.equals(domain))
+                return entry.user;
+            cache.invalidate(certificate);
+        }
+        return null;
+    }
+
+    /**
+     * Stores a verified user.
+     * @param expires expiration time of the certificate or key, whichever comes first
+     */
+    void put(HashCode certificate, String domain, KontalkUser user, long expires) {
+        long now = System.currentTimeMillis();
+        if (expires > now) {
+            cache.put(certificate, new Entry(domain, user, Math.min(expires, now + ttl)));
+        }
+    }
+
+    void invalidate(HashCode certificate) {
+        cache.invalidate(certificate);
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+}
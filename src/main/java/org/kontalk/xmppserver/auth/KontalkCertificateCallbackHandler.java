@@ -23,20 +23,26 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.UnsupportedCallbackException;
 
+import com.google.common.hash.HashCode;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
 import org.kontalk.xmppserver.KontalkKeyring;
 import org.kontalk.xmppserver.KontalkUser;
 import org.kontalk.xmppserver.Security;
 import org.kontalk.xmppserver.pgp.PGPUtils;
 
+import org.kontalk.xmppserver.util.AdmissionControl;
 import org.kontalk.xmppserver.x509.X509Utils;
 import tigase.auth.DomainAware;
 import tigase.auth.PluginSettingsAware;
@@ -47,6 +53,7 @@ import tigase.cert.CertificateEntry;
 import tigase.cert.CertificateUtil;
 import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
+import tigase.stats.StatisticsList;
 import tigase.util.TigaseStringprepException;
 import tigase.xmpp.XMPPResourceConnection;
 
@@ -65,6 +72,16 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
         }
     }
 
+    private static final long DEFAULT_CERTIFICATE_CACHE_SIZE = 10000;
+    private static final long DEFAULT_CERTIFICATE_CACHE_TTL = TimeUnit.HOURS.toSeconds(1);
+    private static final long DEFAULT_VERIFICATION_ADMISSION_WAIT = 250;
+
+    /** Verified certificates shared by all handlers, created on first use. */
+    private static volatile CertificateUserCache certificateCache;
+    /** Limits concurrent certificate verifications, created on first use. */
+    private static volatile AdmissionControl verificationAdmission;
+    private static volatile boolean sharedInitialized;
+
     protected Logger log = Logger.getLogger(this.getClass().getName());
 
     private XMPPResourceConnection session;
@@ -88,6 +105,9 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
                         try {
                             user = verifyCertificate(peerCert);
                         }
+                        catch (RejectedExecutionException e) {
+                            log.log(Level.INFO, "Too many pending verifications, refusing login");
+                        }
                         catch (PGPException e) {
                             log.log(Level.WARNING, "Error verifying certificate", e);
                         }
@@ -124,31 +144,89 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
 
         if (peerCert instanceof X509Certificate) {
             X509Certificate cert = (X509Certificate) peerCert;
-            byte[] publicKeyData = X509Utils.getPublicKeyBlock(cert);
 
-            if (publicKeyData != null) {
-                // verify that the certificate public key matches the public key extension
-                byte[] keyDataFromExtension = PGPUtils.convertPublicKey(publicKeyData);
-                byte[] keyDataFromCertificate = cert.getPublicKey().getEncoded();
-
-                if (Arrays.equals(keyDataFromCertificate, keyDataFromExtension)) {
-                    return verifyPublicKey(publicKeyData);
+            initShared();
+            CertificateUserCache cache = certificateCache;
+            HashCode certDigest = null;
+            if (cache != null) {
+                certDigest = CertificateUserCache.digest(cert);
+                KontalkUser user = cache.get(certDigest, domain);
+                if (user != null) {
+                    if (isCurrentKey(user) && getKeyring().isValid(user)) {
+                        if (log.isLoggable(Level.FINEST)) {
+                            log.log(Level.FINEST, "Certificate already verified for {0}", user);
+                        }
+                        return user;
+                    }
+                    // user has a new key now or the key was revoked, go through the whole process
+                    cache.invalidate(certDigest);
                 }
-                else {
-                    log.log(Level.WARNING, "Public key in extension does not match certificate public key");
+            }
+
+            AdmissionControl admission = verificationAdmission;
+            if (admission == null)
+                return verifyCertificate(cert, certDigest);
+
+            // verification runs on this thread, admission only bounds how many run at once
+            try (AdmissionControl.Permit permit = admission.enter()) {
+                return verifyCertificate(cert, certDigest);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        else {
+            log.log(Level.WARNING, "Not an X.509 certificate: {0}", peerCert);
+        }
+
+        return null;
+    }
+
+    /** Verifies the certificate against the keyring, caching the verified user. */
+    private KontalkUser verifyCertificate(X509Certificate cert, HashCode certDigest) throws TigaseStringprepException, PGPException, IOException, CertificateEncodingException {
+        CertificateUserCache cache = certificateCache;
+        byte[] publicKeyData = X509Utils.getPublicKeyBlock(cert);
+
+        if (publicKeyData != null) {
+            // verify that the certificate public key matches the public key extension
+            PGPPublicKey masterKey = PGPUtils.getMasterKey(publicKeyData);
+            byte[] keyDataFromExtension = PGPUtils.convertPublicKey(masterKey).getEncoded();
+            byte[] keyDataFromCertificate = cert.getPublicKey().getEncoded();
+
+            if (Arrays.equals(keyDataFromCertificate, keyDataFromExtension)) {
+                KontalkUser user = verifyPublicKey(publicKeyData);
+                if (user != null && cache != null) {
+                    long expires = cert.getNotAfter().getTime();
+                    Date keyExpires = PGPUtils.getExpirationTime(masterKey);
+                    if (keyExpires != null)
+                        expires = Math.min(expires, keyExpires.getTime());
+                    cache.put(certDigest, domain, user, expires);
                 }
+                return user;
             }
             else {
-                log.log(Level.WARNING, "No public key extension found in certificate");
+                log.log(Level.WARNING, "Public key in extension does not match certificate public key");
             }
         }
         else {
-            log.log(Level.WARNING, "Not an X.509 certificate: {0}", peerCert);
+            log.log(Level.WARNING, "No public key extension found in certificate");
         }
 
         return null;
     }
 
+    /** Returns true if the given user is still using the key it was verified with. */
+    private boolean isCurrentKey(KontalkUser user) {
+        try {
+            return user.getFingerprint().equalsIgnoreCase(KontalkAuth.getUserFingerprint(session, user.getJID()));
+        }
+        catch (TigaseDBException e) {
+            // includes user not found
+            return false;
+        }
+    }
+
     private KontalkUser verifyPublicKey(byte[] publicKeyData) throws IOException, PGPException {
         KontalkKeyring keyring = getKeyring();
         KontalkUser user = keyring.authenticate(publicKeyData);
@@ -214,6 +292,47 @@ public class KontalkCertificateCallbackHandler extends CertBasedCallbackHandler
         this.settings = settings;
     }
 
+    /** Creates the objects shared by all handlers, using the settings of the first one. */
+    private void initShared() {
+        if (!sharedInitialized) {
+            synchronized (KontalkCertificateCallbackHandler.class) {
+                if (!sharedInitialized) {
+                    long ttl = getLongSetting("certificate-cache-ttl", DEFAULT_CERTIFICATE_CACHE_TTL);
+                    if (ttl > 0) {
+                        certificateCache = new CertificateUserCache(getLongSetting("certificate-cache-size",
+                                DEFAULT_CERTIFICATE_CACHE_SIZE), TimeUnit.SECONDS.toMillis(ttl));
+                    }
+
+                    // callers are the SASL processing threads: waiting for admission blocks them
+                    int concurrency = (int) getLongSetting("verification-concurrency", Runtime.getRuntime().availableProcessors());
+                    if (concurrency > 0) {
+                        verificationAdmission = new AdmissionControl(concurrency,
+                                getLongSetting("verification-admission-wait", DEFAULT_VERIFICATION_ADMISSION_WAIT));
+                    }
+                    sharedInitialized = true;
+                }
+            }
+        }
+    }
+
+    private long getLongSetting(String key, long defaultValue) {
+        Object value = settings != null ? settings.get(key) : null;
+        return value != null ? Long.parseLong(value.toString()) : defaultValue;
+    }
+
+    /** Adds certificate verification statistics to the given list. */
+    public static void getStatistics(String compName, StatisticsList list) {
+        AdmissionControl admission = verificationAdmission;
+        if (admission != null) {
+            list.add(compName, "Certificate verifications", admission.getCompletedCount(), Level.FINE);
+            list.add(compName, "Certificate verifications rejected", admission.getRejectedCount(), Level.FINE);
+            list.add(compName, "Certificate verifications running", admission.getActiveCount(), Level.FINE);
+            list.add(compName, "Certificate verifications waiting admission", admission.getWaitingCount(), Level.FINE);
+            list.add(compName, "Certificate verification average latency [ms]", admission.getAverageLatency(), Level.FINE);
+            list.add(compName, "Certificate verification average admission wait [ms]", admission.getAverageAdmissionWait(), Level.FINER);
+        }
+    }
+
     private KontalkKeyring getKeyring() throws IOException, PGPException {
         return KontalkKeyring.getInstance(domain);
     }
@@ -0,0 +1,529 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import com.sleepycat.je.*;
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Offline message repository backed by a local Berkeley DB JE environment.
+ * Messages are keyed by user and sequence number, so a user's messages can be
+ * read and deleted with a single range scan; a secondary index on expiration
+ * time is used for purging expired messages.
+ * The resource URI is the path to the environment home directory.
+ * All writes are transactional; how much of a commit reaches the disk before
+ * returning is set by the {@value #DURABILITY_KEY} parameter.
+ * @author Daniele Ricci
+ */
+public class BerkeleyMsgRepository implements MsgRepository {
+
+    private static final Logger log = Logger.getLogger(BerkeleyMsgRepository.class.getName());
+
+    private static final String MSG_DATABASE = "messages";
+    private static final String MSG_EXPIRE_DATABASE = "messages_expire";
+    private static final String SEQUENCE_DATABASE = "sequences";
+    private static final String MSG_SEQUENCE = "messages";
+
+    /**
+     * Commit durability: sync (flushed to disk), write-no-sync (written to the
+     * file system, survives a crash of the process but not of the machine) or
+     * no-sync (kept in the log buffer until it fills up or a checkpoint runs).
+     */
+    static final String DURABILITY_KEY = "durability";
+
+    /** Max number of expired messages deleted by a single transaction. */
+    private static final int EXPIRE_CHUNK_SIZE = 1000;
+
+    /** Separates the user part from the sequence number in keys (can't be found in a JID). */
+    private static final byte KEY_SEPARATOR = 0;
+
+    private boolean initialized = false;
+
+    private Environment env;
+    private Database db;
+    private SecondaryDatabase expireDb;
+    private Database sequenceDb;
+    private Sequence sequence;
+    private Thread shutdownHook;
+
+    @Override
+    public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+        if (initialized) {
+            return;
+        }
+
+        initialized = true;
+        log.log(Level.INFO, "Initializing message repository: {0}", resource_uri);
+
+        try {
+            EnvironmentConfig envConfig = new EnvironmentConfig();
+            envConfig.setAllowCreate(true);
+            envConfig.setTransactional(true);
+            envConfig.setDurability(getDurability(params));
+
+            File envHome = new File(resource_uri);
+            if (!envHome.isDirectory() && !envHome.mkdirs()) {
+                throw new DBInitException("Unable to create environment home: " + resource_uri);
+            }
+            env = new Environment(envHome, envConfig);
+
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setAllowCreate(true);
+            dbConfig.setTransactional(true);
+            dbConfig.setSortedDuplicates(false);
+            db = env.openDatabase(null, MSG_DATABASE, dbConfig);
+
+            SecondaryConfig expireConfig = new SecondaryConfig();
+            expireConfig.setAllowCreate(true);
+            expireConfig.setAllowPopulate(true);
+            expireConfig.setTransactional(true);
+            expireConfig.setSortedDuplicates(true);
+            expireConfig.setKeyCreator(new ExpireKeyCreator());
+            expireDb = env.openSecondaryDatabase(null, MSG_EXPIRE_DATABASE, db, expireConfig);
+
+            sequenceDb = env.openDatabase(null, SEQUENCE_DATABASE, dbConfig);
+            SequenceConfig seqConfig = new SequenceConfig();
+            seqConfig.setAllowCreate(true);
+            seqConfig.setInitialValue(1);
+            seqConfig.setCacheSize(1000);
+            sequence = sequenceDb.openSequence(null,
+                    new DatabaseEntry(MSG_SEQUENCE.getBytes(StandardCharsets.UTF_8)), seqConfig);
+
+            shutdownHook = new ShutdownThread();
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+        catch (DatabaseException e) {
+            throw new DBInitException("Error initializing message repository", e);
+        }
+    }
+
+    private static Durability getDurability(Map<String, String> params) throws DBInitException {
+        String value = params != null ? params.get(DURABILITY_KEY) : null;
+        if (value == null || "write-no-sync".equalsIgnoreCase(value))
+            return Durability.COMMIT_WRITE_NO_SYNC;
+        if ("sync".equalsIgnoreCase(value))
+            return Durability.COMMIT_SYNC;
+        if ("no-sync".equalsIgnoreCase(value))
+            return Durability.COMMIT_NO_SYNC;
+        throw new DBInitException("Unknown durability: " + value);
+    }
+
+    /** Closes the environment. The repository can't be used afterwards. */
+    public synchronized void close() {
+        if (env == null)
+            return;
+
+        try {
+            sequence.close();
+            sequenceDb.close();
+            expireDb.close();
+            db.close();
+            env.close();
+        }
+        catch (DatabaseException e) {
+            log.log(Level.WARNING, "error closing message repository", e);
+        }
+        finally {
+            env = null;
+        }
+
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            }
+            catch (IllegalStateException ignored) {
+                // shutting down already
+            }
+        }
+    }
+
+    @Override
+    public int expireMessages() throws TigaseDBException {
+        byte[] now = encodeLong(System.currentTimeMillis());
+        int count = 0;
+        int deleted;
+        // short transactions, so that locks are not held on the whole index
+        do {
+            deleted = expireMessages(now);
+            count += deleted;
+        } while (deleted == EXPIRE_CHUNK_SIZE);
+
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "Purged {0} expired messages", count);
+        }
+        return count;
+    }
+
+    /** Deletes up to {@link #EXPIRE_CHUNK_SIZE} messages expired before the given time. */
+    private int expireMessages(byte[] now) throws TigaseDBException {
+        int count = 0;
+        Transaction txn = null;
+        SecondaryCursor cursor = null;
+        try {
+            txn = env.beginTransaction(null, null);
+            cursor = expireDb.openCursor(txn, null);
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry pkey = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            // we don't need the actual messages
+            data.setPartial(0, 0, true);
+
+            // index is sorted by expiration time, stop at the first message still valid
+            while (count < EXPIRE_CHUNK_SIZE &&
+                    cursor.getNext(key, pkey, data, LockMode.RMW) == OperationStatus.SUCCESS &&
+                    compare(key.getData(), now) < 0) {
+                // deletes the primary record too
+                cursor.delete();
+                count++;
+            }
+
+            cursor.close();
+            cursor = null;
+            txn.commit();
+            txn = null;
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            close(cursor, txn);
+        }
+        return count;
+    }
+
+    @Override
+    public int loadMessagesToJID(BareJID user, boolean delete, int pageSize, int limit, Consumer<Element> consumer) throws TigaseDBException {
+        return loadMessages(user, delete, limit, (node, elem) -> consumer.accept(elem));
+    }
+
+    @Override
+    public int loadMessagesToJID(BareJID user, int pageSize, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        return loadMessages(user, false, limit, consumer);
+    }
+
+    private int loadMessages(BareJID user, boolean delete, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        byte[] prefix = userKey(user);
+        byte[] lastKey = null;
+        int count = 0;
+        int rows = 0;
+
+        Cursor cursor = null;
+        try {
+            cursor = db.openCursor(null, null);
+            DatabaseEntry key = new DatabaseEntry(prefix);
+            DatabaseEntry data = new DatabaseEntry();
+
+            OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+            while (status == OperationStatus.SUCCESS && startsWith(key.getData(), prefix) &&
+                    (limit <= 0 || rows++ < limit)) {
+                lastKey = key.getData();
+                Element elem = StanzaParser.parse(decodeStanza(data.getData()));
+                if (elem != null) {
+                    consumer.accept(String.valueOf(ByteBuffer.wrap(lastKey).getLong(prefix.length)), elem);
+                    count++;
+                }
+                status = cursor.getNext(key, data, LockMode.DEFAULT);
+            }
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        // delete only what we have actually seen: new messages might have been stored in the meantime
+        if (delete && lastKey != null)
+            deleteMessages(prefix, lastKey);
+
+        return count;
+    }
+
+    @Override
+    public int deleteMessages(BareJID user) throws TigaseDBException {
+        byte[] prefix = userKey(user);
+        return deleteMessages(prefix, messageKey(prefix, Long.MAX_VALUE));
+    }
+
+    /**
+     * Deletes all messages in the given key range (both ends included).
+     * @return number of deleted messages
+     */
+    private int deleteMessages(byte[] firstKey, byte[] lastKey) throws TigaseDBException {
+        int count = 0;
+        Transaction txn = null;
+        Cursor cursor = null;
+        try {
+            txn = env.beginTransaction(null, null);
+            cursor = db.openCursor(txn, null);
+            DatabaseEntry key = new DatabaseEntry(firstKey);
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+
+            OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.RMW);
+            while (status == OperationStatus.SUCCESS && compare(key.getData(), lastKey) <= 0) {
+                cursor.delete();
+                count++;
+                status = cursor.getNext(key, data, LockMode.RMW);
+            }
+
+            cursor.close();
+            cursor = null;
+            txn.commit();
+            txn = null;
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            close(cursor, txn);
+        }
+        return count;
+    }
+
+    /** Closes a cursor and aborts a transaction left open by a failed operation. */
+    private static void close(Cursor cursor, Transaction txn) {
+        try {
+            if (cursor != null)
+                cursor.close();
+        }
+        finally {
+            if (txn != null)
+                txn.abort();
+        }
+    }
+
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        byte[] prefix = userKey(user);
+        int count = 0;
+
+        Cursor cursor = null;
+        try {
+            cursor = db.openCursor(null, null);
+            DatabaseEntry key = new DatabaseEntry(prefix);
+            DatabaseEntry data = new DatabaseEntry();
+            // keys only
+            data.setPartial(0, 0, true);
+
+            OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+            while (status == OperationStatus.SUCCESS && startsWith(key.getData(), prefix)) {
+                count++;
+                status = cursor.getNext(key, data, LockMode.DEFAULT);
+            }
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return count;
+    }
+
+    /**
+     * The sender is not stored on its own, so stanzas are parsed anyway; only
+     * the sender and the timestamp are kept in memory though.
+     */
+    @Override
+    public List<MessageHeader> loadMessageHeaders(BareJID user) throws TigaseDBException {
+        byte[] prefix = userKey(user);
+        List<MessageHeader> headers = new ArrayList<>();
+
+        Cursor cursor = null;
+        try {
+            cursor = db.openCursor(null, null);
+            DatabaseEntry key = new DatabaseEntry(prefix);
+            DatabaseEntry data = new DatabaseEntry();
+
+            OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+            while (status == OperationStatus.SUCCESS && startsWith(key.getData(), prefix)) {
+                byte[] record = data.getData();
+                Element elem = StanzaParser.parse(decodeStanza(record));
+                headers.add(new MessageHeader(String.valueOf(ByteBuffer.wrap(key.getData()).getLong(prefix.length)),
+                        elem != null ? elem.getAttributeStaticStr("from") : null,
+                        new Date(ByteBuffer.wrap(record).getLong(0))));
+                status = cursor.getNext(key, data, LockMode.DEFAULT);
+            }
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        return headers;
+    }
+
+    @Override
+    public Element loadMessage(BareJID user, String node) throws TigaseDBException {
+        byte[] key = messageKey(user, node);
+        if (key == null)
+            return null;
+
+        try {
+            DatabaseEntry data = new DatabaseEntry();
+            if (db.get(null, new DatabaseEntry(key), data, LockMode.DEFAULT) != OperationStatus.SUCCESS)
+                return null;
+            return StanzaParser.parse(decodeStanza(data.getData()));
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public boolean deleteMessage(BareJID user, String node) throws TigaseDBException {
+        byte[] key = messageKey(user, node);
+        if (key == null)
+            return false;
+
+        try {
+            return db.delete(null, new DatabaseEntry(key)) == OperationStatus.SUCCESS;
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException {
+        try {
+            byte[] key = messageKey(userKey(user), sequence.get(null, 1));
+            db.put(null, new DatabaseEntry(key), new DatabaseEntry(encodeMessage(msg.toString(),
+                    System.currentTimeMillis(), expire != null ? expire.getTime() : 0)));
+        }
+        catch (DatabaseException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    /** Key prefix for all messages of a user: the bare JID followed by the separator. */
+    private static byte[] userKey(BareJID user) {
+        byte[] jid = user.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] key = Arrays.copyOf(jid, jid.length + 1);
+        key[jid.length] = KEY_SEPARATOR;
+        return key;
+    }
+
+    /** Message key: user prefix followed by the sequence number. */
+    private static byte[] messageKey(byte[] prefix, long seq) {
+        byte[] key = Arrays.copyOf(prefix, prefix.length + 8);
+        System.arraycopy(encodeLong(seq), 0, key, prefix.length, 8);
+        return key;
+    }
+
+    /** Message key from a node identifier, null if the identifier is not valid. */
+    private static byte[] messageKey(BareJID user, String node) {
+        try {
+            return messageKey(userKey(user), Long.parseLong(node));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Record layout: timestamp, expiration (0 for none), stanza. */
+    private static byte[] encodeMessage(String stanza, long timestamp, long expire) {
+        byte[] data = stanza.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(16 + data.length)
+                .putLong(timestamp)
+                .putLong(expire)
+                .put(data)
+                .array();
+    }
+
+    private static String decodeStanza(byte[] record) {
+        return new String(record, 16, record.length - 16, StandardCharsets.UTF_8);
+    }
+
+    /** Big-endian encoding, so that the default byte comparison of JE preserves ordering. */
+    private static byte[] encodeLong(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /** Unsigned lexicographic comparison, same as JE default comparator. */
+    private static int compare(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0)
+                return diff;
+        }
+        return a.length - b.length;
+    }
+
+    /** Indexes messages by expiration time. Messages without expiration are not indexed. */
+    private static final class ExpireKeyCreator implements SecondaryKeyCreator {
+        @Override
+        public boolean createSecondaryKey(SecondaryDatabase secondary, DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
+            long expire = ByteBuffer.wrap(data.getData(), data.getOffset(), data.getSize())
+                    .getLong(data.getOffset() + 8);
+            if (expire <= 0)
+                return false;
+
+            result.setData(encodeLong(expire));
+            return true;
+        }
+    }
+
+    private class ShutdownThread extends Thread {
+
+        ShutdownThread() {
+            super();
+            setName("BerkeleyMsgRepositoryShutdownThread");
+        }
+
+        @Override
+        public void run() {
+            close();
+        }
+    }
+
+}
@@ -19,15 +19,18 @@
 package org.kontalk.xmppserver.messages;
 
 import tigase.db.*;
-import tigase.xml.DomBuilderHandler;
+import tigase.db.jdbc.JDBCRepository;
 import tigase.xml.Element;
-import tigase.xml.SimpleParser;
-import tigase.xml.SingletonFactory;
 import tigase.xmpp.BareJID;
 
 import java.sql.*;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,101 +49,446 @@ public class JDBCMsgRepository implements MsgRepository {
     private static final String MSG_STANZA_COLUMN = "stanza";
     private static final String MSG_TIMESTAMP_COLUMN = "timestamp";
     private static final String MSG_EXPIRED_COLUMN = "expired";
+    private static final String MSG_FORMAT_COLUMN = "format";
+    private static final String MSG_SENDER_COLUMN = "sender";
 
     private static final String MYSQL_CREATE_MSG_TABLE =
             "CREATE TABLE `"+MSG_TABLE+"` (" +
             " `"+MSG_ID_COLUMN+"` bigint(20) NOT NULL PRIMARY KEY AUTO_INCREMENT," +
             " `"+MSG_UID_COLUMN+"` bigint(20) unsigned NOT NULL," +
-            " `"+MSG_STANZA_COLUMN+"` mediumtext NOT NULL," +
+            " `"+MSG_STANZA_COLUMN+"` mediumblob NOT NULL," +
             " `"+MSG_TIMESTAMP_COLUMN+"` datetime NOT NULL," +
             " `"+MSG_EXPIRED_COLUMN+"` datetime DEFAULT NULL," +
+            " `"+MSG_FORMAT_COLUMN+"` tinyint unsigned NOT NULL DEFAULT 0," +
+            " `"+MSG_SENDER_COLUMN+"` varchar(3071) DEFAULT NULL," +
+            " KEY `"+MSG_EXPIRED_COLUMN+"` (`"+MSG_EXPIRED_COLUMN+"`)," +
             "CONSTRAINT FOREIGN KEY (`"+MSG_UID_COLUMN+"`) REFERENCES `tig_users` (`uid`) ON DELETE CASCADE" +
             ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Offline message storage'";
 
+    /** Used when users are in another database: uids can't be checked by the database itself. */
+    private static final String MYSQL_CREATE_MSG_TABLE_NO_USERS =
+            "CREATE TABLE `"+MSG_TABLE+"` (" +
+            " `"+MSG_ID_COLUMN+"` bigint(20) NOT NULL PRIMARY KEY AUTO_INCREMENT," +
+            " `"+MSG_UID_COLUMN+"` bigint(20) unsigned NOT NULL," +
+            " `"+MSG_STANZA_COLUMN+"` mediumblob NOT NULL," +
+            " `"+MSG_TIMESTAMP_COLUMN+"` datetime NOT NULL," +
+            " `"+MSG_EXPIRED_COLUMN+"` datetime DEFAULT NULL," +
+            " `"+MSG_FORMAT_COLUMN+"` tinyint unsigned NOT NULL DEFAULT 0," +
+            " `"+MSG_SENDER_COLUMN+"` varchar(3071) DEFAULT NULL," +
+            " KEY `"+MSG_UID_COLUMN+"` (`"+MSG_UID_COLUMN+"`)," +
+            " KEY `"+MSG_EXPIRED_COLUMN+"` (`"+MSG_EXPIRED_COLUMN+"`)" +
+            ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Offline message storage'";
+
     private static final String MSG_QUERY_LOAD_ID = "messages_load";
-    private static final String MSG_QUERY_LOAD_SQL = "select * from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ?";
+    private static final String MSG_QUERY_LOAD_SQL = "select "+MSG_ID_COLUMN+", "+MSG_STANZA_COLUMN+", "+MSG_FORMAT_COLUMN+" from " + MSG_TABLE +
+            " where "+MSG_UID_COLUMN+" = ? and "+MSG_ID_COLUMN+" > ? order by "+MSG_ID_COLUMN+" limit ?";
 
     private static final String MSG_QUERY_STORE_ID = "messages_store";
-    private static final String MSG_QUERY_STORE_SQL = "insert into " + MSG_TABLE + " VALUES (NULL, ?, ?, ?, ?)";
+    private static final String MSG_QUERY_STORE_SQL = "insert into " + MSG_TABLE + " (" +
+            MSG_UID_COLUMN+", "+MSG_STANZA_COLUMN+", "+MSG_TIMESTAMP_COLUMN+", "+MSG_EXPIRED_COLUMN+", "+MSG_FORMAT_COLUMN+", "+MSG_SENDER_COLUMN+
+            ") VALUES (?, ?, ?, ?, ?, ?)";
 
-    private static final String MSG_QUERY_DELETE_ID = "messages_delete";
-    private static final String MSG_QUERY_DELETE_SQL = "delete from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ?";
+    private static final String MSG_QUERY_COUNT_ID = "messages_count";
+    private static final String MSG_QUERY_COUNT_SQL = "select count(*) from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ?";
+
+    private static final String MSG_QUERY_LOAD_HEADERS_ID = "messages_load_headers";
+    private static final String MSG_QUERY_LOAD_HEADERS_SQL = "select "+MSG_ID_COLUMN+", "+MSG_SENDER_COLUMN+", "+MSG_TIMESTAMP_COLUMN+" from " + MSG_TABLE +
+            " where "+MSG_UID_COLUMN+" = ? and "+MSG_ID_COLUMN+" > ? order by "+MSG_ID_COLUMN+" limit ?";
+
+    private static final String MSG_QUERY_LOAD_ONE_ID = "messages_load_one";
+    private static final String MSG_QUERY_LOAD_ONE_SQL = "select "+MSG_STANZA_COLUMN+", "+MSG_FORMAT_COLUMN+" from " + MSG_TABLE +
+            " where "+MSG_UID_COLUMN+" = ? and "+MSG_ID_COLUMN+" = ?";
 
-    private static final String MSG_QUERY_DELETE_EXPIRED_SQL = "delete from " + MSG_TABLE + " where expired < now()";
+    private static final String MSG_QUERY_DELETE_ONE_ID = "messages_delete_one";
+    private static final String MSG_QUERY_DELETE_ONE_SQL = "delete from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ? and "+MSG_ID_COLUMN+" = ?";
+
+    /** Rows read by each query while loading message headers. */
+    private static final int HEADERS_PAGE_SIZE = 1000;
+
+    private static final String MSG_QUERY_DELETE_ID = "messages_delete";
+    private static final String MSG_QUERY_DELETE_SQL = "delete from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ? and "+MSG_ID_COLUMN+" <= ?";
+
+    private static final String MSG_QUERY_DELETE_ALL_ID = "messages_delete_all";
+    private static final String MSG_QUERY_DELETE_ALL_SQL = "delete from " + MSG_TABLE + " where "+MSG_UID_COLUMN+" = ?";
+
+    private static final String MSG_QUERY_DELETE_EXPIRED_ID = "messages_delete_expired";
+    private static final String MSG_QUERY_DELETE_EXPIRED_SQL = "delete from " + MSG_TABLE + " where "+MSG_EXPIRED_COLUMN+" < ?" +
+            " order by "+MSG_EXPIRED_COLUMN+", "+MSG_ID_COLUMN+" limit ?";
+
+    /** Max number of expired messages deleted by a single statement. */
+    private static final String EXPIRE_CHUNK_SIZE_KEY = "expire-chunk-size";
+    /** Pause in milliseconds between two expire statements. */
+    private static final String EXPIRE_CHUNK_PAUSE_KEY = "expire-chunk-pause";
+
+    private static final int DEF_EXPIRE_CHUNK_SIZE = 1000;
+    private static final int DEF_EXPIRE_CHUNK_PAUSE = 100;
+
+    /** Codec used for storing new messages: xml or deflate. */
+    private static final String STANZA_CODEC_KEY = "stanza-codec";
+
+    private static final String MSG_QUERY_SCAN_USERS_ID = "messages_scan_users";
+    private static final String MSG_QUERY_SCAN_USERS_SQL = "select m."+MSG_ID_COLUMN+", u.user_id from " + MSG_TABLE + " m" +
+            " join " + JDBCRepository.DEF_USERS_TBL + " u on u.uid = m."+MSG_UID_COLUMN +
+            " where m."+MSG_ID_COLUMN+" > ? order by m."+MSG_ID_COLUMN+" limit ?";
+
+    /** Scan used when users are in another database: user ids are resolved page by page. */
+    private static final String MSG_QUERY_SCAN_UIDS_ID = "messages_scan_uids";
+    private static final String MSG_QUERY_SCAN_UIDS_SQL = "select "+MSG_ID_COLUMN+", "+MSG_UID_COLUMN+" from " + MSG_TABLE +
+            " where "+MSG_ID_COLUMN+" > ? order by "+MSG_ID_COLUMN+" limit ?";
+
+    private static final String USER_QUERY_JID_ID = "messages_user_jid";
+    private static final String USER_QUERY_JID_SQL = "select user_id from " + JDBCRepository.DEF_USERS_TBL + " where uid = ?";
+
+    /**
+     * URI of the database holding the users table, if different from the
+     * one holding messages (e.g. for shards). User ids are always resolved
+     * there, so they are the same for all shards.
+     */
+    static final String USER_DB_URI_KEY = "user-db-uri";
+
+    /** Enables the in-memory filter of users with pending messages. */
+    private static final String FILTER_KEY = "pending-filter";
+    /** Number of counters in the filter (one byte each). */
+    private static final String FILTER_SIZE_KEY = "pending-filter-size";
+
+    private static final int DEF_FILTER_SIZE = 1 << 22;
+    private static final int FILTER_HASH_COUNT = 4;
+    /** Rows read by each query while scanning for the filter. */
+    private static final int FILTER_SCAN_PAGE_SIZE = 10000;
+
+    /** Enables the write-behind queue. */
+    private static final String WRITE_BEHIND_KEY = "write-behind";
+    /** Max number of messages waiting to be written. */
+    private static final String WRITE_BEHIND_QUEUE_SIZE_KEY = "write-behind-queue-size";
+    /** Max number of messages written in a single batch. */
+    private static final String WRITE_BEHIND_BATCH_SIZE_KEY = "write-behind-batch-size";
+    /** Max time in milliseconds a message will wait before being written. */
+    private static final String WRITE_BEHIND_INTERVAL_KEY = "write-behind-interval";
+
+    private static final int DEF_WRITE_BEHIND_QUEUE_SIZE = 10000;
+    private static final int DEF_WRITE_BEHIND_BATCH_SIZE = 100;
+    private static final int DEF_WRITE_BEHIND_INTERVAL = 50;
 
     private boolean initialized = false;
 
     private DataRepository data_repo;
     private UserRepository user_repo;
+    /** Database holding the users table, null if it's the same as {@link #data_repo}. */
+    private DataRepository user_data_repo;
 
-    private SimpleParser parser = SingletonFactory.getParserInstance();
+    /** Write-behind queue, null if disabled. */
+    private WriteBehindQueue writeBehind;
 
+    private int expireChunkSize = DEF_EXPIRE_CHUNK_SIZE;
+    private int expireChunkPause = DEF_EXPIRE_CHUNK_PAUSE;
+
+    private StanzaCodec codec = StanzaCodec.XML;
+
+    /** Users with pending messages, null if disabled. */
+    private PendingMessagesFilter pendingFilter;
+    /** Runs filter rebuilds, away from the expiry timer thread. */
+    private ExecutorService filterBuilder;
+    private final AtomicBoolean filterRebuildPending = new AtomicBoolean();
+
+    /**
+     * Deletes expired messages in chunks of at most {@code expire-chunk-size}
+     * rows, following the index on the expiration column and pausing between
+     * chunks so concurrent inserts are not stalled for too long.
+     */
     @Override
     public int expireMessages() throws TigaseDBException {
-        Statement stmt = null;
+        // messages expiring while we are purging will be deleted on the next run
+        java.sql.Timestamp now = new java.sql.Timestamp(System.currentTimeMillis());
+        long started = System.currentTimeMillis();
+        int total = 0;
+        int chunks = 0;
 
         try {
-            stmt = data_repo.createStatement(null);
-            return stmt.executeUpdate(MSG_QUERY_DELETE_EXPIRED_SQL);
+            PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_DELETE_EXPIRED_ID);
+            while (true) {
+                long chunkStarted = System.currentTimeMillis();
+                int count;
+                synchronized (stmt) {
+                    stmt.setTimestamp(1, now);
+                    stmt.setInt(2, expireChunkSize);
+                    count = stmt.executeUpdate();
+                }
+
+                total += count;
+                chunks++;
+                if (log.isLoggable(Level.FINE)) {
+                    log.log(Level.FINE, "Purged {0} expired messages in {1} ms",
+                            new Object[] { count, System.currentTimeMillis() - chunkStarted });
+                }
+
+                if (count < expireChunkSize)
+                    break;
+
+                Thread.sleep(expireChunkPause);
+            }
         }
         catch (SQLException e) {
             throw new TigaseDBException("database error", e);
         }
-        finally {
-            data_repo.release(stmt, null);
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.log(Level.WARNING, "interrupted while purging expired messages");
         }
+
+        log.log(Level.INFO, "Purged {0} expired messages in {1} chunks ({2} ms)",
+                new Object[] { total, chunks, System.currentTimeMillis() - started });
+
+        // the filter doesn't know which users had expired messages
+        if (pendingFilter != null && total > 0)
+            scheduleFilterRebuild();
+
+        return total;
     }
 
     @Override
-    public Queue<Element> loadMessagesToJID(BareJID user, boolean delete) throws TigaseDBException {
-        PreparedStatement stmt;
-        ResultSet rs = null;
+    public int loadMessagesToJID(BareJID user, boolean delete, int pageSize, int limit, Consumer<Element> consumer) throws TigaseDBException {
+        return loadMessages(user, delete, pageSize, limit, (node, elem) -> consumer.accept(elem));
+    }
+
+    @Override
+    public int loadMessagesToJID(BareJID user, int pageSize, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        return loadMessages(user, false, pageSize, limit, consumer);
+    }
+
+    private int loadMessages(BareJID user, boolean delete, int pageSize, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        if (pendingFilter != null && !pendingFilter.mightHaveMessages(user)) {
+            if (log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "No pending messages for {0}", user);
+            }
+            return 0;
+        }
 
         try {
-            long uid = user_repo.getUserUID(user);
-            if (uid <= 0)
-                throw new UserNotFoundException("user not found: " + user);
-            stmt = data_repo.getPreparedStatement(user, MSG_QUERY_LOAD_ID);
-            StringBuilder sb = new StringBuilder();
+            long uid = prepareRead(user);
+            PreparedStatement stmt = data_repo.getPreparedStatement(user, MSG_QUERY_LOAD_ID);
+            List<StoredStanza> page = new ArrayList<>(pageSize);
+            long lastId = 0;
+            int count = 0;
+            int rows = 0;
+
+            while (true) {
+                int size = (limit > 0) ? Math.min(pageSize, limit - rows) : pageSize;
+                ResultSet rs = null;
+                synchronized (stmt) {
+                    try {
+                        stmt.setLong(1, uid);
+                        stmt.setLong(2, lastId);
+                        stmt.setInt(3, size);
+                        rs = stmt.executeQuery();
+
+                        while (rs.next()) {
+                            lastId = rs.getLong(MSG_ID_COLUMN);
+                            page.add(new StoredStanza(lastId, rs.getInt(MSG_FORMAT_COLUMN), rs.getBytes(MSG_STANZA_COLUMN)));
+                        }
+                    }
+                    finally {
+                        data_repo.release(null, rs);
+                    }
+                }
+
+                // decode outside the statement lock, one stanza at a time
+                for (StoredStanza stanza : page) {
+                    Element elem = stanza.decode();
+                    if (elem != null) {
+                        consumer.accept(String.valueOf(stanza.id), elem);
+                        count++;
+                    }
+                }
+
+                rows += page.size();
+                if (page.size() < size || (limit > 0 && rows >= limit))
+                    break;
+                page.clear();
+            }
+
+            // delete only what we have actually seen: new messages might have been stored in the meantime
+            if (delete && lastId > 0) {
+                int deleted = deleteMessages(uid, lastId);
+                if (pendingFilter != null)
+                    pendingFilter.deleted(user, deleted);
+            }
+
+            return count;
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    private int deleteMessages(long uid, long lastId) throws SQLException {
+        PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_DELETE_ID);
+        synchronized (stmt) {
+            stmt.setLong(1, uid);
+            stmt.setLong(2, lastId);
+            return stmt.executeUpdate();
+        }
+    }
+
+    @Override
+    public int deleteMessages(BareJID user) throws TigaseDBException {
+        if (pendingFilter != null && !pendingFilter.mightHaveMessages(user))
+            return 0;
+
+        try {
+            long uid = prepareRead(user);
+            PreparedStatement stmt = data_repo.getPreparedStatement(user, MSG_QUERY_DELETE_ALL_ID);
+            int deleted;
             synchronized (stmt) {
                 stmt.setLong(1, uid);
-                rs = stmt.executeQuery();
+                deleted = stmt.executeUpdate();
+            }
 
-                while (rs.next()) {
-                    String stanza = rs.getString(MSG_STANZA_COLUMN);
-                    sb.append(stanza);
+            if (pendingFilter != null)
+                pendingFilter.deleted(user, deleted);
+            return deleted;
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        if (pendingFilter != null && !pendingFilter.mightHaveMessages(user))
+            return 0;
+
+        try {
+            long uid = prepareRead(user);
+            PreparedStatement stmt = data_repo.getPreparedStatement(user, MSG_QUERY_COUNT_ID);
+            ResultSet rs = null;
+            synchronized (stmt) {
+                try {
+                    stmt.setLong(1, uid);
+                    rs = stmt.executeQuery();
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
+                finally {
+                    data_repo.release(null, rs);
                 }
             }
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
 
-            if (sb.length() > 0) {
-                DomBuilderHandler domHandler = new DomBuilderHandler();
-                char[] data = sb.toString().toCharArray();
-                parser.parse(domHandler, data, 0, data.length);
+    @Override
+    public List<MessageHeader> loadMessageHeaders(BareJID user) throws TigaseDBException {
+        List<MessageHeader> headers = new ArrayList<>();
+        if (pendingFilter != null && !pendingFilter.mightHaveMessages(user))
+            return headers;
 
-                Queue<Element> elements = domHandler.getParsedElements();
+        try {
+            long uid = prepareRead(user);
+            PreparedStatement stmt = data_repo.getPreparedStatement(user, MSG_QUERY_LOAD_HEADERS_ID);
+            long lastId = 0;
+            int count;
+            do {
+                count = 0;
+                ResultSet rs = null;
+                synchronized (stmt) {
+                    try {
+                        stmt.setLong(1, uid);
+                        stmt.setLong(2, lastId);
+                        stmt.setInt(3, HEADERS_PAGE_SIZE);
+                        rs = stmt.executeQuery();
+                        while (rs.next()) {
+                            lastId = rs.getLong(MSG_ID_COLUMN);
+                            headers.add(new MessageHeader(String.valueOf(lastId), rs.getString(MSG_SENDER_COLUMN),
+                                    rs.getTimestamp(MSG_TIMESTAMP_COLUMN)));
+                            count++;
+                        }
+                    }
+                    finally {
+                        data_repo.release(null, rs);
+                    }
+                }
+            } while (count == HEADERS_PAGE_SIZE);
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+        return headers;
+    }
 
-                if (delete)
-                    deleteMessages(uid);
+    @Override
+    public Element loadMessage(BareJID user, String node) throws TigaseDBException {
+        long id = parseNode(node);
+        if (id <= 0)
+            return null;
 
-                // we will return the data only when everything went well
-                return elements;
+        try {
+            long uid = prepareRead(user);
+            PreparedStatement stmt = data_repo.getPreparedStatement(user, MSG_QUERY_LOAD_ONE_ID);
+            StoredStanza stanza = null;
+            ResultSet rs = null;
+            synchronized (stmt) {
+                try {
+                    stmt.setLong(1, uid);
+                    stmt.setLong(2, id);
+                    rs = stmt.executeQuery();
+                    if (rs.next())
+                        stanza = new StoredStanza(id, rs.getInt(MSG_FORMAT_COLUMN), rs.getBytes(MSG_STANZA_COLUMN));
+                }
+                finally {
+                    data_repo.release(null, rs);
+                }
             }
+
+            return stanza != null ? stanza.decode() : null;
         }
         catch (SQLException e) {
             throw new TigaseDBException("database error", e);
         }
-        finally {
-            data_repo.release(null, rs);
+    }
+
+    @Override
+    public boolean deleteMessage(BareJID user, String node) throws TigaseDBException {
+        long id = parseNode(node);
+        if (id <= 0)
+            return false;
+
+        try {
+            long uid = prepareRead(user);
+            PreparedStatement stmt = data_repo.getPreparedStatement(user, MSG_QUERY_DELETE_ONE_ID);
+            int deleted;
+            synchronized (stmt) {
+                stmt.setLong(1, uid);
+                stmt.setLong(2, id);
+                deleted = stmt.executeUpdate();
+            }
+
+            if (pendingFilter != null && deleted > 0)
+                pendingFilter.deleted(user, deleted);
+            return deleted > 0;
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
         }
+    }
 
-        return null;
+    /** Resolves the user id and makes sure messages still waiting to be written can be read. */
+    private long prepareRead(BareJID user) throws TigaseDBException {
+        long uid = user_repo.getUserUID(user);
+        if (uid <= 0)
+            throw new UserNotFoundException("user not found: " + user);
+
+        if (writeBehind != null)
+            writeBehind.flush(uid);
+        return uid;
     }
 
-    private int deleteMessages(long uid) throws SQLException {
-        PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_DELETE_ID);
-        synchronized (stmt) {
-            stmt.setLong(1, uid);
-            return stmt.executeUpdate();
+    private static long parseNode(String node) {
+        try {
+            return Long.parseLong(node);
+        }
+        catch (NumberFormatException e) {
+            return 0;
         }
     }
 
@@ -153,16 +501,83 @@ public class JDBCMsgRepository implements MsgRepository {
             if (uid <= 0)
                 throw new UserNotFoundException("user not found: " + user);
 
-            stmt = data_repo.getPreparedStatement(user, MSG_QUERY_STORE_ID);
+            long timestamp = System.currentTimeMillis();
+            long expireTimestamp = expire != null ? expire.getTime() : 0;
+            String sender = msg.getAttributeStaticStr("from");
+
+            if (writeBehind != null) {
+                writeBehind.offer(new WriteBehindQueue.PendingMessage(uid, codec.encode(msg), codec.format(),
+                        sender, timestamp, expireTimestamp));
+            }
+            else {
+                stmt = data_repo.getPreparedStatement(user, MSG_QUERY_STORE_ID);
+                synchronized (stmt) {
+                    bindMessage(stmt, uid, codec.encode(msg), codec.format(), sender, timestamp, expireTimestamp);
+                    stmt.execute();
+                }
+            }
+
+            if (pendingFilter != null)
+                pendingFilter.stored(user);
+        }
+        catch (SQLException e) {
+            throw new TigaseDBException("database error", e);
+        }
+    }
+
+    @Override
+    public void storeMessages(BareJID user, List<Element> msgs, Date expire) throws TigaseDBException {
+        if (msgs.isEmpty())
+            return;
+
+        long uid = user_repo.getUserUID(user);
+        if (uid <= 0)
+            throw new UserNotFoundException("user not found: " + user);
+
+        long timestamp = System.currentTimeMillis();
+        long expireTimestamp = expire != null ? expire.getTime() : 0;
+        List<WriteBehindQueue.PendingMessage> batch = new ArrayList<>(msgs.size());
+        for (Element msg : msgs) {
+            batch.add(new WriteBehindQueue.PendingMessage(uid, codec.encode(msg), codec.format(),
+                    msg.getAttributeStaticStr("from"), timestamp, expireTimestamp));
+        }
+
+        if (writeBehind != null) {
+            for (WriteBehindQueue.PendingMessage msg : batch) {
+                writeBehind.offer(msg);
+            }
+        }
+        else {
+            writeBatch(batch);
+        }
+
+        if (pendingFilter != null)
+            pendingFilter.stored(user, batch.size());
+    }
+
+    /**
+     * Writes a batch of queued messages with a single JDBC batch.
+     * For MySQL, rewriteBatchedStatements=true should be set in the database
+     * URI to actually send a multi-row insert.
+     */
+    private void writeBatch(List<WriteBehindQueue.PendingMessage> batch) throws TigaseDBException {
+        try {
+            PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_STORE_ID);
             synchronized (stmt) {
-                stmt.setLong(1, uid);
-                stmt.setString(2, msg.toString());
-                stmt.setTimestamp(3, new java.sql.Timestamp(System.currentTimeMillis()));
-                if (expire != null)
-                    stmt.setTimestamp(4, new java.sql.Timestamp(expire.getTime()));
-                else
-                    stmt.setNull(4, Types.TIMESTAMP);
-                stmt.execute();
+                try {
+                    for (WriteBehindQueue.PendingMessage msg : batch) {
+                        bindMessage(stmt, msg.uid, msg.stanza, msg.format, msg.sender, msg.timestamp, msg.expire);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                finally {
+                    stmt.clearBatch();
+                }
+            }
+
+            if (log.isLoggable(Level.FINEST)) {
+                log.log(Level.FINEST, "Stored {0} offline messages", batch.size());
             }
         }
         catch (SQLException e) {
@@ -170,6 +585,22 @@ public class JDBCMsgRepository implements MsgRepository {
         }
     }
 
+    private void bindMessage(PreparedStatement stmt, long uid, byte[] stanza, int format, String sender,
+                             long timestamp, long expire) throws SQLException {
+        stmt.setLong(1, uid);
+        stmt.setBytes(2, stanza);
+        stmt.setTimestamp(3, new java.sql.Timestamp(timestamp));
+        if (expire > 0)
+            stmt.setTimestamp(4, new java.sql.Timestamp(expire));
+        else
+            stmt.setNull(4, Types.TIMESTAMP);
+        stmt.setInt(5, format);
+        if (sender != null)
+            stmt.setString(6, sender);
+        else
+            stmt.setNull(6, Types.VARCHAR);
+    }
+
     @Override
     public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
         if (initialized) {
@@ -182,24 +613,227 @@ public class JDBCMsgRepository implements MsgRepository {
         try {
             data_repo = RepositoryFactory.getDataRepository(null, resource_uri, params);
 
+            String userUri = params != null ? params.get(USER_DB_URI_KEY) : null;
+            if (userUri == null || userUri.equals(resource_uri)) {
+                userUri = resource_uri;
+            }
+            else {
+                log.log(Level.INFO, "Resolving message repository users from: {0}", userUri);
+                user_data_repo = RepositoryFactory.getDataRepository(null, userUri, params);
+                user_data_repo.initPreparedStatement(USER_QUERY_JID_ID, USER_QUERY_JID_SQL);
+                data_repo.initPreparedStatement(MSG_QUERY_SCAN_UIDS_ID, MSG_QUERY_SCAN_UIDS_SQL);
+            }
+
             checkDB();
             data_repo.initPreparedStatement(MSG_QUERY_LOAD_ID, MSG_QUERY_LOAD_SQL);
             data_repo.initPreparedStatement(MSG_QUERY_STORE_ID, MSG_QUERY_STORE_SQL);
             data_repo.initPreparedStatement(MSG_QUERY_DELETE_ID, MSG_QUERY_DELETE_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_DELETE_ALL_ID, MSG_QUERY_DELETE_ALL_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_DELETE_EXPIRED_ID, MSG_QUERY_DELETE_EXPIRED_SQL);
+            if (user_data_repo == null)
+                data_repo.initPreparedStatement(MSG_QUERY_SCAN_USERS_ID, MSG_QUERY_SCAN_USERS_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_COUNT_ID, MSG_QUERY_COUNT_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_LOAD_HEADERS_ID, MSG_QUERY_LOAD_HEADERS_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_LOAD_ONE_ID, MSG_QUERY_LOAD_ONE_SQL);
+            data_repo.initPreparedStatement(MSG_QUERY_DELETE_ONE_ID, MSG_QUERY_DELETE_ONE_SQL);
+
+            user_repo = RepositoryFactory.getUserRepository(null, userUri, params);
+
+            if (params != null) {
+                expireChunkSize = getIntParam(params, EXPIRE_CHUNK_SIZE_KEY, DEF_EXPIRE_CHUNK_SIZE);
+                expireChunkPause = getIntParam(params, EXPIRE_CHUNK_PAUSE_KEY, DEF_EXPIRE_CHUNK_PAUSE);
+                if (params.containsKey(STANZA_CODEC_KEY))
+                    codec = StanzaCodec.forName(params.get(STANZA_CODEC_KEY));
+            }
 
-            user_repo = RepositoryFactory.getUserRepository(null, resource_uri, params);
+            if (params != null && Boolean.parseBoolean(params.get(WRITE_BEHIND_KEY))) {
+                int queueSize = getIntParam(params, WRITE_BEHIND_QUEUE_SIZE_KEY, DEF_WRITE_BEHIND_QUEUE_SIZE);
+                int batchSize = getIntParam(params, WRITE_BEHIND_BATCH_SIZE_KEY, DEF_WRITE_BEHIND_BATCH_SIZE);
+                int interval = getIntParam(params, WRITE_BEHIND_INTERVAL_KEY, DEF_WRITE_BEHIND_INTERVAL);
+                log.log(Level.INFO, "Enabling write-behind queue (size={0}, batch={1}, interval={2} ms)",
+                        new Object[] { queueSize, batchSize, interval });
+                writeBehind = new WriteBehindQueue(this::writeBatch, queueSize, batchSize, interval);
+            }
+
+            if (params != null && Boolean.parseBoolean(params.get(FILTER_KEY))) {
+                pendingFilter = new PendingMessagesFilter(getIntParam(params, FILTER_SIZE_KEY, DEF_FILTER_SIZE),
+                        FILTER_HASH_COUNT);
+                filterBuilder = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "OfflineMessagesFilterBuilderThread");
+                    t.setDaemon(true);
+                    return t;
+                });
+                // until the filter is ready, all users will be looked up in storage
+                scheduleFilterRebuild();
+            }
         }
         catch (Exception e) {
             log.log(Level.WARNING, "Error initializing message repository", e);
         }
     }
 
+    /** Queues a filter rebuild, unless one is already waiting to start. */
+    private void scheduleFilterRebuild() {
+        if (filterRebuildPending.compareAndSet(false, true)) {
+            filterBuilder.execute(() -> {
+                filterRebuildPending.set(false);
+                rebuildFilter();
+            });
+        }
+    }
+
+    /** Rebuilds the filter of users with pending messages with a paged scan of the whole table. */
+    private void rebuildFilter() {
+        long started = System.currentTimeMillis();
+        try {
+            pendingFilter.rebuild(users -> {
+                // messages still queued are not tracked by the new filter: write them so the scan finds them
+                if (writeBehind != null)
+                    writeBehind.flush();
+
+                try {
+                    if (user_data_repo != null)
+                        scanUids(users);
+                    else
+                        scanUsers(users);
+                }
+                catch (SQLException e) {
+                    throw new TigaseDBException("database error", e);
+                }
+            });
+
+            log.log(Level.INFO, "Pending messages filter built in {0} ms", System.currentTimeMillis() - started);
+        }
+        catch (TigaseDBException e) {
+            log.log(Level.WARNING, "Unable to build pending messages filter", e);
+        }
+    }
+
+    private void scanUsers(Consumer<String> users) throws SQLException {
+        PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_SCAN_USERS_ID);
+        long lastId = 0;
+        int count;
+        do {
+            count = 0;
+            ResultSet rs = null;
+            synchronized (stmt) {
+                try {
+                    stmt.setLong(1, lastId);
+                    stmt.setInt(2, FILTER_SCAN_PAGE_SIZE);
+                    rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        lastId = rs.getLong(1);
+                        users.accept(BareJID.bareJIDInstanceNS(rs.getString(2)).toString());
+                        count++;
+                    }
+                }
+                finally {
+                    data_repo.release(null, rs);
+                }
+            }
+        } while (count == FILTER_SCAN_PAGE_SIZE);
+    }
+
+    /** Same as {@link #scanUsers(Consumer)}, resolving the users of each page on the users database. */
+    private void scanUids(Consumer<String> users) throws SQLException {
+        PreparedStatement stmt = data_repo.getPreparedStatement(null, MSG_QUERY_SCAN_UIDS_ID);
+        List<Long> uids = new ArrayList<>(FILTER_SCAN_PAGE_SIZE);
+        Map<Long, String> jids = new HashMap<>();
+        long lastId = 0;
+        int count;
+        do {
+            uids.clear();
+            ResultSet rs = null;
+            synchronized (stmt) {
+                try {
+                    stmt.setLong(1, lastId);
+                    stmt.setInt(2, FILTER_SCAN_PAGE_SIZE);
+                    rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        lastId = rs.getLong(1);
+                        uids.add(rs.getLong(2));
+                    }
+                }
+                finally {
+                    data_repo.release(null, rs);
+                }
+            }
+            count = uids.size();
+
+            jids.clear();
+            for (Long uid : uids) {
+                String jid = jids.get(uid);
+                if (jid == null && !jids.containsKey(uid)) {
+                    jid = getUserJID(uid);
+                    jids.put(uid, jid);
+                }
+                if (jid != null)
+                    users.accept(jid);
+            }
+        } while (count == FILTER_SCAN_PAGE_SIZE);
+    }
+
+    /** Returns the bare JID of the given user id from the users database, null if not found. */
+    private String getUserJID(long uid) throws SQLException {
+        PreparedStatement stmt = user_data_repo.getPreparedStatement(null, USER_QUERY_JID_ID);
+        ResultSet rs = null;
+        synchronized (stmt) {
+            try {
+                stmt.setLong(1, uid);
+                rs = stmt.executeQuery();
+                return rs.next() ? BareJID.bareJIDInstanceNS(rs.getString(1)).toString() : null;
+            }
+            finally {
+                user_data_repo.release(null, rs);
+            }
+        }
+    }
+
+    private static int getIntParam(Map<String, String> params, String key, int defaultValue) {
+        String value = params.get(key);
+        if (value != null) {
+            try {
+                int intValue = Integer.parseInt(value);
+                if (intValue > 0)
+                    return intValue;
+            }
+            catch (NumberFormatException e) {
+                log.log(Level.WARNING, "invalid value for {0}: {1}", new Object[] { key, value });
+            }
+        }
+        return defaultValue;
+    }
+
+    /** A stored stanza waiting to be decoded. */
+    private static final class StoredStanza {
+        private final long id;
+        private final int format;
+        private final byte[] data;
+
+        StoredStanza(long id, int format, byte[] data) {
+            this.id = id;
+            this.format = format;
+            this.data = data;
+        }
+
+        Element decode() {
+            try {
+                return StanzaCodec.forFormat(format).decode(data);
+            }
+            catch (IllegalArgumentException e) {
+                log.log(Level.WARNING, "unable to decode stored stanza", e);
+                return null;
+            }
+        }
+    }
+
     /** Performs database check, creates missing schema if necessary. */
     private void checkDB() throws SQLException {
         DataRepository.dbTypes databaseType = data_repo.getDatabaseType();
         switch (databaseType) {
             case mysql:
-                data_repo.checkTable(MSG_TABLE, MYSQL_CREATE_MSG_TABLE);
+                data_repo.checkTable(MSG_TABLE, user_data_repo != null ?
+                        MYSQL_CREATE_MSG_TABLE_NO_USERS : MYSQL_CREATE_MSG_TABLE);
                 break;
             // TODO support for other databases
         }
@@ -0,0 +1,54 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import java.util.Date;
+
+
+/**
+ * Header of a stored message: everything but the stanza itself.
+ * @author Daniele Ricci
+ */
+public final class MessageHeader {
+    private final String node;
+    private final String sender;
+    private final Date timestamp;
+
+    public MessageHeader(String node, String sender, Date timestamp) {
+        this.node = node;
+        this.sender = sender;
+        this.timestamp = timestamp;
+    }
+
+    /** Repository identifier of the message. */
+    public String getNode() {
+        return node;
+    }
+
+    /** Sender JID, might be null. */
+    public String getSender() {
+        return sender;
+    }
+
+    /** Storage time. */
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+}
@@ -20,13 +20,18 @@ package org.kontalk.xmppserver.messages;
 
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
 import tigase.xmpp.XMPPResourceConnection;
 
 import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 
 /**
@@ -36,14 +41,111 @@ import java.util.Queue;
  */
 public interface MsgRepository extends Repository {
 
+    /** Default number of rows fetched from storage at a time while restoring messages. */
+    int DEF_PAGE_SIZE = 100;
+
     /**
      * Deletes all expired messages.
      * @return number of deleted expired messages
      */
     int expireMessages() throws TigaseDBException;
 
-    /** Loads all payloads for the given user's {@link JID} from repository. */
-    Queue<Element> loadMessagesToJID(BareJID user, boolean delete) throws TigaseDBException;
+    /**
+     * Loads all payloads for the given user's {@link JID} from repository.
+     * Everything is kept in memory: use {@link #loadMessagesToJID(BareJID, boolean, int, Consumer)}
+     * for large message queues.
+     */
+    default Queue<Element> loadMessagesToJID(BareJID user, boolean delete) throws TigaseDBException {
+        Queue<Element> elements = new LinkedList<>();
+        loadMessagesToJID(user, delete, DEF_PAGE_SIZE, elements::offer);
+        return elements.size() > 0 ? elements : null;
+    }
+
+    /**
+     * Streams all payloads for the given user's {@link JID} from repository,
+     * in storage order and in pages of at most {@code pageSize} messages.
+     * Each message is parsed on its own and handed to the consumer as soon as
+     * its page has been read.
+     * @param delete true to delete the loaded messages once everything has been loaded
+     * @param pageSize max number of messages to keep in memory at once
+     * @param consumer will receive the messages
+     * @return number of loaded messages
+     */
+    default int loadMessagesToJID(BareJID user, boolean delete, int pageSize, Consumer<Element> consumer) throws TigaseDBException {
+        return loadMessagesToJID(user, delete, pageSize, 0, consumer);
+    }
+
+    /**
+     * Streams at most {@code limit} payloads for the given user's {@link JID}
+     * from repository, in storage order and in pages of at most
+     * {@code pageSize} messages. If {@code delete} is true, only the messages
+     * actually loaded are deleted, so the next call will continue from there.
+     * @param limit max number of messages to load, 0 for no limit
+     * @return number of loaded messages
+     */
+    int loadMessagesToJID(BareJID user, boolean delete, int pageSize, int limit, Consumer<Element> consumer) throws TigaseDBException;
+
+    /**
+     * Streams all payloads for the given user's {@link JID} from repository
+     * without deleting them, in storage order and in pages of at most
+     * {@code pageSize} messages. Each message is handed to the consumer
+     * together with its identifier, as returned by {@link MessageHeader#getNode()}.
+     * @return number of loaded messages
+     */
+    default int loadMessagesToJID(BareJID user, int pageSize, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        return loadMessagesToJID(user, pageSize, 0, consumer);
+    }
+
+    /**
+     * Streams at most {@code limit} payloads for the given user's {@link JID}
+     * without deleting them, together with their identifiers.
+     * @param limit max number of messages to load, 0 for no limit
+     * @return number of loaded messages
+     */
+    default int loadMessagesToJID(BareJID user, int pageSize, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        int count = 0;
+        for (MessageHeader header : loadMessageHeaders(user)) {
+            if (limit > 0 && count >= limit)
+                break;
+            Element msg = loadMessage(user, header.getNode());
+            if (msg != null) {
+                consumer.accept(header.getNode(), msg);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Returns the number of messages stored for the given user. */
+    int countMessages(BareJID user) throws TigaseDBException;
+
+    /**
+     * Loads the headers of all messages stored for the given user, in storage
+     * order, without loading the stanzas.
+     */
+    List<MessageHeader> loadMessageHeaders(BareJID user) throws TigaseDBException;
+
+    /**
+     * Loads a single message.
+     * @param node message identifier, as returned by {@link MessageHeader#getNode()}
+     * @return the message or null if not found
+     */
+    Element loadMessage(BareJID user, String node) throws TigaseDBException;
+
+    /**
+     * Deletes a single message.
+     * @param node message identifier, as returned by {@link MessageHeader#getNode()}
+     * @return true if the message was found and deleted
+     */
+    boolean deleteMessage(BareJID user, String node) throws TigaseDBException;
+
+    /**
+     * Deletes all messages stored for the given user, without loading them.
+     * @return number of deleted messages
+     */
+    default int deleteMessages(BareJID user) throws TigaseDBException {
+        return loadMessagesToJID(user, true, DEF_PAGE_SIZE, elem -> {});
+    }
 
     /**
      * Saves the massage to the repository.
@@ -51,4 +153,22 @@ public interface MsgRepository extends Repository {
      */
     void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException;
 
+    /**
+     * Saves several messages for the same user, with as few round trips to
+     * the database as the implementation allows.
+     * @param expire date of expiration (UTC)
+     */
+    default void storeMessages(BareJID user, List<Element> msgs, Date expire) throws TigaseDBException {
+        for (Element msg : msgs) {
+            storeMessage(user, msg, expire);
+        }
+    }
+
+    /**
+     * Adds repository statistics to the given list.
+     * @param compName component name the statistics will be reported under
+     */
+    default void getStatistics(String compName, StatisticsList list) {
+    }
+
 }
@@ -18,10 +18,16 @@
 
 package org.kontalk.xmppserver.messages;
 
+import org.kontalk.xmppserver.util.KeyedExecutor;
+import tigase.conf.Configurable;
 import tigase.db.NonAuthUserRepository;
 import tigase.db.TigaseDBException;
 import tigase.db.UserNotFoundException;
+import tigase.server.Iq;
 import tigase.server.Packet;
+import tigase.server.XMPPServer;
+import tigase.server.xmppsession.SessionManager;
+import tigase.stats.StatisticsList;
 import tigase.util.DNSResolver;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
@@ -36,6 +42,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,10 +58,15 @@ import static org.kontalk.xmppserver.messages.OfflineMessages.XMLNS;
  */
 @Id(ID)
 @Handles({
-    @Handle(path={PresenceState.PRESENCE_ELEMENT_NAME},xmlns=XMLNS)
+    @Handle(path={PresenceState.PRESENCE_ELEMENT_NAME},xmlns=XMLNS),
+    @Handle(path={OfflineMessages.WINDOW_ELEM_NAME},xmlns=OfflineMessages.WINDOW_XMLNS),
+    @Handle(path={Iq.ELEM_NAME, "offline"},xmlns=OfflineMessages.FLEXIBLE_OFFLINE_XMLNS),
+    @Handle(path={Iq.ELEM_NAME, "query"},xmlns=OfflineMessages.DISCO_INFO_XMLNS),
+    @Handle(path={Iq.ELEM_NAME, "query"},xmlns=OfflineMessages.DISCO_ITEMS_XMLNS)
 })
 @DiscoFeatures({
-    "msgoffline"
+    "msgoffline",
+    OfflineMessages.FLEXIBLE_OFFLINE_XMLNS
 })
 public class OfflineMessages extends AnnotatedXMPPProcessor
         implements XMPPPostprocessorIfc, XMPPProcessorIfc {
@@ -65,6 +77,33 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
      */
     protected static final String ID = "msgoffline2";
 
+    /**
+     * Element injected by the connection manager when the client has
+     * acknowledged the last offline window (see {@link #WINDOW_END_ELEM_NAME}),
+     * or with action {@link #WINDOW_ACTION_ENABLE} when the client enabled stream
+     * management and will ack windows. Clients could send it too, releasing
+     * windows early or enabling them without stream management: the
+     * connection manager must drop those (see {@code KontalkIOProcessor}).
+     */
+    public static final String WINDOW_ELEM_NAME = "offline-window";
+    public static final String WINDOW_XMLNS = "http://kontalk.org/extensions/offline#window";
+    public static final String WINDOW_ACTION_ENABLE = "enable";
+    /**
+     * Child element marking the last message of an offline window. The
+     * connection manager removes it before sending the message.
+     */
+    public static final String WINDOW_END_ELEM_NAME = "offline-window-end";
+
+    /** XEP-0013: Flexible Offline Message Retrieval. */
+    static final String FLEXIBLE_OFFLINE_XMLNS = "http://jabber.org/protocol/offline";
+    static final String DISCO_INFO_XMLNS = "http://jabber.org/protocol/disco#info";
+    static final String DISCO_ITEMS_XMLNS = "http://jabber.org/protocol/disco#items";
+
+    /** Session data key telling that windowed delivery is in progress. */
+    private static final String WINDOW_SESSION_KEY = ID + ":window-pending";
+    /** Session data key telling that the client acks offline windows. */
+    private static final String WINDOW_ENABLED_SESSION_KEY = ID + ":window-enabled";
+
     /** Field holds the default hostname of the machine. */
     private static final String defHost = DNSResolver.getDefaultHostname();
 
@@ -72,8 +111,29 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
 
     private static final int DEF_EXPIRE_SECONDS = 604800;
 
+    private static final int DEF_ASYNC_QUEUE_SIZE = 1000;
+
+    /** Tasks rejected by a full storage queue are retried a few times after this delay (ms). */
+    private static final long QUEUE_RETRY_DELAY = 500;
+    private static final int QUEUE_MAX_RETRIES = 10;
+
+    private static final String DEF_REPO_CLASS = JDBCMsgRepository.class.getName();
+
     private int messageExpire;
     private int presenceExpire;
+    private int restorePageSize;
+    /** Sort restored messages by delay stamp instead of relying on storage order. */
+    private boolean restoreSortByStamp;
+    /** Number of messages delivered at a time, waiting for the client to ack them. 0 to disable. */
+    private int deliveryWindow;
+
+    /** The last initialized instance, for use by other processors. */
+    private static volatile OfflineMessages instance;
+
+    /** Runs repository calls off the processor threads, null if disabled. */
+    private KeyedExecutor storageExecutor;
+    /** Receives packets produced by the storage executor. */
+    Consumer<Packet> asyncResultHandler;
 
     private Timer taskTimer;
 
@@ -87,7 +147,6 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     }
 
     public OfflineMessages() {
-        msgRepo = new JDBCMsgRepository();
     }
 
     // for test only
@@ -104,7 +163,14 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     public void init(Map<String, Object> settings) throws TigaseDBException {
         super.init(settings);
         String uri = (String) settings.get("db-uri");
-        msgRepo.initRepository(uri, null);
+        if (msgRepo == null) {
+            msgRepo = createRepository((String) settings.getOrDefault("msg-repo-class", DEF_REPO_CLASS));
+        }
+        Map<String, String> params = getRepositoryParams(settings);
+        if (QuotaMsgRepository.isEnabled(params) && !(msgRepo instanceof QuotaMsgRepository)) {
+            msgRepo = new QuotaMsgRepository(msgRepo);
+        }
+        msgRepo.initRepository(uri, params);
 
         try {
             messageExpire = (int) settings.get("message-expire");
@@ -118,6 +184,44 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
         catch (Exception e) {
             presenceExpire = DEF_EXPIRE_SECONDS;
         }
+        try {
+            restorePageSize = (int) settings.get("restore-page-size");
+        }
+        catch (Exception e) {
+            restorePageSize = MsgRepository.DEF_PAGE_SIZE;
+        }
+        if (restorePageSize <= 0) {
+            restorePageSize = MsgRepository.DEF_PAGE_SIZE;
+        }
+        try {
+            restoreSortByStamp = (boolean) settings.get("restore-sort-by-stamp");
+        }
+        catch (Exception e) {
+            restoreSortByStamp = false;
+        }
+        try {
+            deliveryWindow = (int) settings.get("delivery-window");
+        }
+        catch (Exception e) {
+            deliveryWindow = 0;
+        }
+        if (deliveryWindow > 0 && restoreSortByStamp) {
+            log.warning("delivery-window can't be used with restore-sort-by-stamp, disabling");
+            deliveryWindow = 0;
+        }
+
+        boolean asyncStorage;
+        try {
+            asyncStorage = (boolean) settings.get("async-storage");
+        }
+        catch (Exception e) {
+            asyncStorage = false;
+        }
+        if (asyncStorage && storageExecutor == null) {
+            int threads = (int) settings.getOrDefault("async-storage-threads", Runtime.getRuntime().availableProcessors());
+            int queueSize = (int) settings.getOrDefault("async-storage-queue-size", DEF_ASYNC_QUEUE_SIZE);
+            storageExecutor = new KeyedExecutor(ID + " storage", threads, queueSize);
+        }
 
         long hour = TimeUnit.HOURS.toMillis(1);
         taskTimer = new Timer(ID + " tasks", true);
@@ -136,6 +240,45 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
             }
         }, hour, hour);
 
+        instance = this;
+    }
+
+    @Override
+    public void getStatistics(StatisticsList list) {
+        super.getStatistics(list);
+        msgRepo.getStatistics(getComponentInfo().getName(), list);
+        if (storageExecutor != null) {
+            list.add(getComponentInfo().getName(), "Offline storage queue size", storageExecutor.getQueueSize(), Level.INFO);
+            list.add(getComponentInfo().getName(), "Offline storage rejected tasks", storageExecutor.getRejectedCount(), Level.INFO);
+            list.add(getComponentInfo().getName(), "Offline storage completed tasks", storageExecutor.getCompletedCount(), Level.INFO);
+        }
+    }
+
+    private MsgRepository createRepository(String className) throws TigaseDBException {
+        try {
+            return (MsgRepository) Class.forName(className).newInstance();
+        }
+        catch (ClassNotFoundException e) {
+            throw new TigaseDBException("Repository class not found: " + className, e);
+        }
+        catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+            throw new TigaseDBException("Unable to create message repository: " + className, e);
+        }
+    }
+
+    /**
+     * Plugin settings are passed to the message repository as parameters
+     * (e.g. for enabling the write-behind queue).
+     */
+    private Map<String, String> getRepositoryParams(Map<String, Object> settings) {
+        Map<String, String> params = new HashMap<>();
+        for (Map.Entry<String, Object> e : settings.entrySet()) {
+            Object value = e.getValue();
+            if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                params.put(e.getKey(), value.toString());
+            }
+        }
+        return params;
     }
 
     /**
@@ -143,14 +286,15 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
      * @return expiration UTC time, or null for no expiration
      */
     private Date getExpiration(Packet packet) {
-        int seconds;
         if (packet.getElemName() == tigase.server.Presence.ELEM_NAME) {
-            seconds = presenceExpire;
+            return getExpiration(presenceExpire);
         }
         else {
-            seconds = messageExpire;
+            return getExpiration(messageExpire);
         }
+    }
 
+    private Date getExpiration(int seconds) {
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.SECOND, seconds);
         return cal.getTime();
@@ -159,19 +303,97 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     @Override
     public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
                         Queue<Packet> results, Map<String, Object> settings) throws XMPPException {
-        if ( loadOfflineMessages( packet, session ) ){
+        if ( isWindowElement( packet ) ){
+            packet.processedBy( ID );
+            if ( session != null ){
+                if ( WINDOW_ACTION_ENABLE.equals( packet.getAttributeStaticStr( "action" ) ) ){
+                    session.putSessionData( WINDOW_ENABLED_SESSION_KEY, WINDOW_ENABLED_SESSION_KEY );
+                }
+                else if ( session.getSessionData( WINDOW_SESSION_KEY ) != null ){
+                    restore( session, results );
+                }
+            }
+        }
+        else if ( packet.getElemName() == Iq.ELEM_NAME ){
+            processFlexibleOffline( packet, session, results );
+        }
+        else if ( loadOfflineMessages( packet, session ) ){
+            restore( session, results );
+        }
+    }
+
+    /**
+     * Restores offline messages (or the next window of them), on the storage
+     * executor if enabled: restored packets will then be sent directly to
+     * the session connection through the session manager, page by page as
+     * they are read. Otherwise they are all queued in the results first.
+     */
+    private void restore( XMPPResourceConnection session, Queue<Packet> results ) throws NotAuthorizedException {
+        if ( storageExecutor != null ){
+            restoreAsync( session, session.getBareJID() );
+        }
+        else {
+            restoreNow( session, results::offer );
+        }
+    }
+
+    private void restoreAsync( XMPPResourceConnection session, BareJID user ) {
+        executeInOrder( user, () -> {
+            JID connectionId;
             try {
-                Queue<Packet> packets = restorePacketForOffLineUser(session, msgRepo);
+                connectionId = session.getConnectionId();
+            } catch ( NoConnectionIdException e ) {
+                // session closed in the meantime, let the session manager route them
+                connectionId = null;
+            }
+            JID to = connectionId;
+            Consumer<Packet> handler = asyncResultHandler();
+            restoreNow( session, packet -> {
+                if ( to != null && packet.getPacketTo() == null ){
+                    packet.setPacketTo( to );
+                }
+                handler.accept( packet );
+            } );
+        }, () -> log.log( Level.INFO, "unable to restore offline messages for {0}: storage queue full", user ), 0 );
+    }
 
-                if ( packets != null ){
-                    if ( log.isLoggable( Level.FINER ) ){
-                        log.finer( "Sending offline messages: " + packets.size() );
-                    }
-                    results.addAll( packets );
+    /**
+     * Runs the given task on the storage lane of the given user. If the lane
+     * is full, the task is retried later a few times: running it inline could
+     * overtake tasks still queued for the same user.
+     * @param rejected called if the task could not be queued at all
+     */
+    private void executeInOrder(BareJID user, Runnable task, Runnable rejected, int attempt) {
+        if (storageExecutor.execute(user, task))
+            return;
+
+        if (attempt < QUEUE_MAX_RETRIES) {
+            taskTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    executeInOrder(user, task, rejected, attempt + 1);
                 }
-            } catch ( TigaseDBException e ) {
-                log.info( "Something wrong, DB problem, cannot load offline messages. " + e );
+            }, QUEUE_RETRY_DELAY);
+        }
+        else {
+            rejected.run();
+        }
+    }
+
+    private void restoreNow( XMPPResourceConnection session, Consumer<Packet> results ) {
+        try {
+            // without stream management nobody will ack the window
+            int count = deliveryWindow > 0 && session.getSessionData( WINDOW_ENABLED_SESSION_KEY ) != null ?
+                    restoreWindow( session, results ) :
+                    restorePacketForOffLineUser( session, msgRepo, results );
+
+            if ( count > 0 && log.isLoggable( Level.FINER ) ){
+                log.finer( "Sending offline messages: " + count );
             }
+        } catch ( TigaseDBException e ) {
+            log.info( "Something wrong, DB problem, cannot load offline messages. " + e );
+        } catch ( XMPPException e ) {
+            log.log( Level.FINE, "unable to restore offline messages, session closed?", e );
         }
     }
 
@@ -188,13 +410,24 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
                 if (session != null && packet.getStanzaTo() != null && !session.isUserId(packet.getStanzaTo().getBareJID()))
                     return;
 
-                savePacketForOffLineUser(packet, msgRepo);
+                if (storageExecutor != null) {
+                    savePacketForOffLineUserAsync(packet, results);
+                }
+                else {
+                    savePacketForOffLineUser(packet, msgRepo);
+                }
             }
             catch (UserNotFoundException e) {
                 if (log.isLoggable(Level.FINEST)) {
                     log.log(Level.FINEST, "unable to store offline packet: user not found ({0})", packet);
                 }
             }
+            catch (QuotaExceededException e) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "unable to store offline packet: quota exceeded ({0})", packet);
+                }
+                bounceStorageFull(packet, results);
+            }
             catch (TigaseDBException e) {
                 log.log(Level.WARNING, "TigaseDBException at trying to save packet for off-line user." + packet, e);
             }
@@ -206,6 +439,175 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
         }
     }
 
+    /**
+     * Stores messages that could not be delivered to a closing session with
+     * a single repository call, instead of routing each of them back through
+     * the session manager. Done only if the user has no other available
+     * session; messages addressed to a full JID are not stored.
+     * @param packets undelivered packets, stored ones will be removed
+     * @return number of packets stored (or queued for storage)
+     */
+    public int saveUndelivered(XMPPResourceConnection session, Collection<Packet> packets) {
+        if (packets.isEmpty())
+            return 0;
+
+        for (XMPPResourceConnection other : session.getActiveSessions()) {
+            if (other != session && other.getPresence() != null) {
+                // somebody will receive them
+                return 0;
+            }
+        }
+
+        BareJID user;
+        try {
+            user = session.getBareJID();
+        }
+        catch (NotAuthorizedException e) {
+            return 0;
+        }
+
+        List<Packet> stored = new ArrayList<>(packets.size());
+        List<Element> elems = new ArrayList<>(packets.size());
+        for (Iterator<Packet> it = packets.iterator(); it.hasNext(); ) {
+            Packet packet = it.next();
+            if (packet.getElemName() != tigase.server.Message.ELEM_NAME || packet.getStanzaTo() == null ||
+                    packet.getStanzaTo().getResource() != null || !user.equals(packet.getStanzaTo().getBareJID()))
+                continue;
+
+            Element elem = prepareForOfflineStorage(packet);
+            if (elem != null) {
+                elems.add(elem);
+                stored.add(packet);
+                packet.processedBy(ID);
+                it.remove();
+            }
+        }
+
+        if (elems.isEmpty())
+            return 0;
+
+        // only messages were collected above
+        Date expire = getExpiration(messageExpire);
+        Runnable task = () -> {
+            try {
+                msgRepo.storeMessages(user, elems, expire);
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "Stored {0} undelivered messages for {1}", new Object[] { elems.size(), user });
+                }
+            }
+            catch (UserNotFoundException e) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "unable to store undelivered messages: user not found ({0})", user);
+                }
+            }
+            catch (QuotaExceededException e) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "unable to store {0} undelivered messages: quota exceeded ({1})",
+                            new Object[] { e.getRefused().size(), user });
+                }
+                bounceRefused(stored, elems, e.getRefused());
+            }
+            catch (TigaseDBException e) {
+                log.log(Level.WARNING, "unable to store " + elems.size() + " undelivered messages for " + user, e);
+            }
+        };
+
+        if (storageExecutor == null) {
+            task.run();
+        }
+        else {
+            executeInOrder(user, task, () -> {
+                log.log(Level.FINE, "storage queue full, unable to store {0} undelivered messages for {1}",
+                        new Object[] { elems.size(), user });
+                bounceRefused(stored, elems, elems);
+            }, 0);
+        }
+        return elems.size();
+    }
+
+    /**
+     * Queues the given packet for storage on the storage executor. The
+     * packet is checked and marked as processed right away; errors are sent
+     * back through the session manager.
+     */
+    private void savePacketForOffLineUserAsync(Packet packet, Queue<Packet> results) {
+        Element elem = prepareForOfflineStorage(packet);
+        if (elem == null)
+            return;
+
+        BareJID user = packet.getStanzaTo().getBareJID();
+        Date expire = getExpiration(packet);
+        packet.processedBy(ID);
+
+        boolean queued = storageExecutor.execute(user, () -> {
+            try {
+                msgRepo.storeMessage(user, elem, expire);
+            }
+            catch (UserNotFoundException e) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "unable to store offline packet: user not found ({0})", packet);
+                }
+            }
+            catch (QuotaExceededException e) {
+                if (log.isLoggable(Level.FINEST)) {
+                    log.log(Level.FINEST, "unable to store offline packet: quota exceeded ({0})", packet);
+                }
+                Queue<Packet> errors = new ArrayDeque<>(1);
+                bounceStorageFull(packet, errors);
+                errors.forEach(asyncResultHandler());
+            }
+            catch (TigaseDBException e) {
+                log.log(Level.WARNING, "TigaseDBException at trying to save packet for off-line user." + packet, e);
+            }
+        });
+
+        if (!queued) {
+            // storing inline would break per-user ordering
+            log.log(Level.FINE, "storage queue full, unable to store offline packet: {0}", packet);
+            bounceStorageFull(packet, results);
+        }
+    }
+
+    /**
+     * Bounces the packets whose elements could not be stored.
+     * @param stored packets, in the same order as their elements
+     */
+    private void bounceRefused(List<Packet> stored, List<Element> elems, List<Element> refused) {
+        Set<Element> refusedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        refusedSet.addAll(refused);
+
+        Queue<Packet> errors = new ArrayDeque<>(refused.size());
+        for (int i = 0; i < elems.size(); i++) {
+            if (refusedSet.contains(elems.get(i)))
+                bounceStorageFull(stored.get(i), errors);
+        }
+        errors.forEach(asyncResultHandler());
+    }
+
+    private void bounceStorageFull(Packet packet, Queue<Packet> results) {
+        try {
+            results.offer(Authorization.RESOURCE_CONSTRAINT.getResponseMessage(packet,
+                    "Offline storage full.", true));
+        }
+        catch (PacketErrorTypeException ignored) {
+            // error packets are not bounced
+        }
+    }
+
+    /** Packets produced outside the processor threads are sent through the session manager. */
+    private Consumer<Packet> asyncResultHandler() {
+        if (asyncResultHandler == null) {
+            SessionManager sessMan = (SessionManager) XMPPServer.getComponent(Configurable.DEF_SM_NAME);
+            asyncResultHandler = sessMan::addOutPacket;
+        }
+        return asyncResultHandler;
+    }
+
+    /** Returns the instance registered with the session manager, null if not loaded. */
+    public static OfflineMessages getInstance() {
+        return instance;
+    }
+
     protected boolean isAllowedForOfflineStorage(Packet pac) {
         StanzaType type = pac.getType();
         return ( pac.getElemName() == "message"
@@ -284,8 +686,7 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     /**
      * Method restores all messages from repository for the JID of the current
      * session. All retrieved elements are then instantiated as {@code Packet}
-     * objects added to {@code LinkedList} collection and, if possible, sorted by
-     * timestamp.
+     * objects added to {@code LinkedList} collection, in storage order.
      *
      * @param session user session which keeps all the user session data and also
      *             gives an access to the user's repository data.
@@ -301,34 +702,267 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
     public Queue<Packet> restorePacketForOffLineUser( XMPPResourceConnection session,
                                                       MsgRepository repo )
             throws TigaseDBException, NotAuthorizedException {
-        Queue<Element> elems = repo.loadMessagesToJID(session.getBareJID(), true);
-
-        if ( elems != null ){
-            LinkedList<Packet> pacs = new LinkedList<Packet>();
-            Element elem;
+        LinkedList<Packet> pacs = new LinkedList<Packet>();
+        return restorePacketForOffLineUser(session, repo, pacs::offer) > 0 ? pacs : null;
+    }
 
-            while ( ( elem = elems.poll() ) != null ) {
-                try {
-                    pacs.offer( Packet.packetInstance( elem ) );
-                } catch ( TigaseStringprepException ex ) {
-                    log.warning( "Packet addressing problem, stringprep failed: " + elem );
+    /**
+     * Method restores all messages from repository for the JID of the current
+     * session, passing them to the given consumer as they are read. Stored
+     * messages are read and parsed in pages of {@code restore-page-size} rows
+     * and delivered in storage order, so only the consumer decides how many
+     * of them are held in memory. If {@code restore-sort-by-stamp} is set
+     * (e.g. for messages imported from other sources) they are all collected
+     * and sorted by their delay stamp first; use {@code delivery-window} to
+     * bound memory on large backlogs.
+     *
+     * @return the number of restored messages
+     */
+    int restorePacketForOffLineUser( XMPPResourceConnection session, MsgRepository repo, Consumer<Packet> results )
+            throws TigaseDBException, NotAuthorizedException {
+        if ( restoreSortByStamp ){
+            List<StampedPacket> pacs = new ArrayList<>();
+            repo.loadMessagesToJID(session.getBareJID(), true, restorePageSize, elem -> {
+                Packet packet = toPacket( elem );
+                if ( packet != null ){
+                    pacs.add( new StampedPacket( packet ) );
                 }
-            }    // end of while (elem = elems.poll() != null)
-            try {
-                if (pacs.size() > 1)
-                    pacs.sort(new StampComparator());
-            } catch ( NullPointerException e ) {
-                try {
-                    log.warning( "Can not sort off line messages: " + pacs + ",\n" + e );
-                } catch ( Exception exc ) {
-                    log.log( Level.WARNING, "Can not print log message.", exc );
+            });
+
+            // stable sort: messages with the same stamp will stay in storage order
+            Collections.sort( pacs );
+            for ( StampedPacket p : pacs ) {
+                results.accept( p.packet );
+            }
+            return pacs.size();
+        }
+
+        int[] count = { 0 };
+        repo.loadMessagesToJID(session.getBareJID(), true, restorePageSize, elem -> {
+            Packet packet = toPacket( elem );
+            if ( packet != null ){
+                results.accept( packet );
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Restores the next window of at most {@code delivery-window} messages,
+     * deleting them from storage. Messages are sent directly to the session
+     * connection and the last one is marked with a {@link #WINDOW_END_ELEM_NAME}
+     * child: the connection manager will inject a {@link #WINDOW_ELEM_NAME}
+     * element when the client acks it, releasing the next window.
+     *
+     * @return the number of restored messages
+     */
+    int restoreWindow( XMPPResourceConnection session, Consumer<Packet> results )
+            throws TigaseDBException, NotAuthorizedException, NoConnectionIdException {
+        JID connectionId = session.getConnectionId();
+        // the window is small, the last packet must be marked before sending
+        List<Packet> window = new ArrayList<>( deliveryWindow );
+        msgRepo.loadMessagesToJID(session.getBareJID(), true, deliveryWindow, deliveryWindow, elem -> {
+            Packet packet = toPacket( elem );
+            if ( packet != null ){
+                packet.setPacketTo( connectionId );
+                window.add( packet );
+            }
+        });
+
+        if ( !window.isEmpty() ){
+            // an empty window will end delivery
+            window.get( window.size() - 1 ).getElement().addChild( new Element( WINDOW_END_ELEM_NAME,
+                    new String[] { "xmlns" }, new String[] { WINDOW_XMLNS } ) );
+            session.putSessionData( WINDOW_SESSION_KEY, WINDOW_SESSION_KEY );
+        }
+        else {
+            session.removeSessionData( WINDOW_SESSION_KEY );
+        }
+        window.forEach( results );
+        return window.size();
+    }
+
+    /** Returns true if the given packet is the end of an offline window. */
+    public static boolean isWindowEnd( Packet packet ) {
+        return packet.getElement().getChild( WINDOW_END_ELEM_NAME, WINDOW_XMLNS ) != null;
+    }
+
+    /**
+     * Removes the end of window marker from the given packet.
+     * @return true if the packet was the end of an offline window
+     */
+    public static boolean removeWindowEnd( Packet packet ) {
+        Element marker = packet.getElement().getChild( WINDOW_END_ELEM_NAME, WINDOW_XMLNS );
+        return marker != null && packet.getElement().removeChild( marker );
+    }
+
+    /** Returns true if the given packet is a request for the next offline window. */
+    public static boolean isWindowElement( Packet packet ) {
+        return packet.getElemName() == WINDOW_ELEM_NAME && packet.getXMLNS() == WINDOW_XMLNS;
+    }
+
+    /** Creates a request for the next offline window, as if it was sent by the client. */
+    public static Packet createWindowRequest() {
+        return Packet.packetInstance(new Element(WINDOW_ELEM_NAME, new String[] { "xmlns" }, new String[] { WINDOW_XMLNS }),
+                null, null);
+    }
+
+    /** Creates a notice that the client enabled stream management, as if it was sent by the client. */
+    public static Packet createWindowEnable() {
+        return Packet.packetInstance(new Element(WINDOW_ELEM_NAME, new String[] { "xmlns", "action" },
+                new String[] { WINDOW_XMLNS, WINDOW_ACTION_ENABLE }), null, null);
+    }
+
+    /**
+     * Handles XEP-0013 requests: message count and headers through service
+     * discovery on the offline node, and retrieval and removal of single
+     * messages by node. Using any of them disables automatic delivery of
+     * offline messages for the session.
+     */
+    private void processFlexibleOffline( Packet packet, XMPPResourceConnection session, Queue<Packet> results )
+            throws XMPPException {
+        if ( session == null || !session.isAuthorized() ){
+            return;
+        }
+
+        // only requests from the user to its own account
+        JID connectionId = session.getConnectionId();
+        if ( !connectionId.equals( packet.getPacketFrom() ) || ( packet.getStanzaTo() != null &&
+                ( packet.getStanzaTo().getResource() != null || !session.isUserId( packet.getStanzaTo().getBareJID() ) ) ) ){
+            return;
+        }
+
+        Element request = packet.getElement().getChild( "offline", FLEXIBLE_OFFLINE_XMLNS );
+        if ( request == null ){
+            request = packet.getElement().getChild( "query", DISCO_INFO_XMLNS );
+            if ( request == null ){
+                request = packet.getElement().getChild( "query", DISCO_ITEMS_XMLNS );
+            }
+            // other disco queries are not for us
+            if ( request == null || !FLEXIBLE_OFFLINE_XMLNS.equals( request.getAttributeStaticStr( "node" ) ) ){
+                return;
+            }
+        }
+
+        packet.processedBy( ID );
+        session.putCommonSessionData( FLEXIBLE_OFFLINE_XMLNS, FLEXIBLE_OFFLINE_XMLNS );
+
+        try {
+            BareJID user = session.getBareJID();
+            StanzaType type = packet.getType();
+
+            if ( request.getXMLNS() == DISCO_INFO_XMLNS && type == StanzaType.get ){
+                results.offer( packet.okResult( discoInfo( msgRepo.countMessages( user ) ), 0 ) );
+            }
+            else if ( request.getXMLNS() == DISCO_ITEMS_XMLNS && type == StanzaType.get ){
+                Element query = new Element( "query", new String[] { "xmlns", "node" },
+                        new String[] { DISCO_ITEMS_XMLNS, FLEXIBLE_OFFLINE_XMLNS } );
+                for ( MessageHeader header : msgRepo.loadMessageHeaders( user ) ) {
+                    Element item = new Element( "item", new String[] { "jid", "node" },
+                            new String[] { user.toString(), header.getNode() } );
+                    if ( header.getSender() != null ){
+                        item.setAttribute( "name", header.getSender() );
+                    }
+                    query.addChild( item );
                 }
+                results.offer( packet.okResult( query, 0 ) );
+            }
+            else if ( request.getChild( "fetch" ) != null && type == StanzaType.get ){
+                msgRepo.loadMessagesToJID( user, restorePageSize,
+                        ( node, msg ) -> deliverFlexibleOffline( msg, node, connectionId, results ) );
+                results.offer( packet.okResult( (Element) null, 0 ) );
+            }
+            else if ( request.getChild( "purge" ) != null && type == StanzaType.set ){
+                msgRepo.deleteMessages( user );
+                results.offer( packet.okResult( (Element) null, 0 ) );
             }
+            else {
+                processFlexibleOfflineItems( packet, request, user, connectionId, results );
+            }
+        } catch ( TigaseDBException e ) {
+            log.log( Level.WARNING, "Database problem handling offline messages request", e );
+            results.offer( Authorization.INTERNAL_SERVER_ERROR.getResponseMessage( packet,
+                    "Database access problem, please contact administrator.", true ) );
+        }
+    }
 
-            return pacs;
+    /** Handles view (get) and remove (set) requests for single messages. */
+    private void processFlexibleOfflineItems( Packet packet, Element request, BareJID user, JID connectionId,
+                                              Queue<Packet> results ) throws XMPPException, TigaseDBException {
+        String action = packet.getType() == StanzaType.get ? "view" :
+                packet.getType() == StanzaType.set ? "remove" : null;
+        List<Element> items = request.getChildren();
+        if ( action == null || items == null || items.isEmpty() ){
+            results.offer( Authorization.BAD_REQUEST.getResponseMessage( packet, "Bad request.", true ) );
+            return;
         }
 
-        return null;
+        List<Packet> delivered = new ArrayList<>();
+        for ( Element item : items ) {
+            String node = item.getAttributeStaticStr( "node" );
+            if ( item.getName() != "item" || node == null || !action.equals( item.getAttributeStaticStr( "action" ) ) ){
+                results.offer( Authorization.BAD_REQUEST.getResponseMessage( packet, "Bad request.", true ) );
+                return;
+            }
+
+            boolean found;
+            if ( action.equals( "view" ) ){
+                Element msg = msgRepo.loadMessage( user, node );
+                found = msg != null && deliverFlexibleOffline( msg, node, connectionId, delivered );
+            }
+            else {
+                found = msgRepo.deleteMessage( user, node );
+            }
+
+            if ( !found ){
+                results.offer( Authorization.ITEM_NOT_FOUND.getResponseMessage( packet,
+                        "Message not found: " + node, true ) );
+                return;
+            }
+        }
+
+        results.addAll( delivered );
+        results.offer( packet.okResult( (Element) null, 0 ) );
+    }
+
+    private boolean deliverFlexibleOffline( Element msg, String node, JID connectionId, Collection<Packet> results ) {
+        Element offline = new Element( "offline", new String[] { "xmlns" }, new String[] { FLEXIBLE_OFFLINE_XMLNS } );
+        offline.addChild( new Element( "item", new String[] { "node" }, new String[] { node } ) );
+        msg.addChild( offline );
+
+        Packet packet = toPacket( msg );
+        if ( packet != null ){
+            packet.setPacketTo( connectionId );
+            results.add( packet );
+            return true;
+        }
+        return false;
+    }
+
+    private static Element discoInfo( int count ) {
+        Element query = new Element( "query", new String[] { "xmlns", "node" },
+                new String[] { DISCO_INFO_XMLNS, FLEXIBLE_OFFLINE_XMLNS } );
+        query.addChild( new Element( "identity", new String[] { "category", "type" },
+                new String[] { "automation", "message-list" } ) );
+        query.addChild( new Element( "feature", new String[] { "var" }, new String[] { FLEXIBLE_OFFLINE_XMLNS } ) );
+
+        Element form = new Element( "x", new String[] { "xmlns", "type" }, new String[] { "jabber:x:data", "result" } );
+        form.addChild( new Element( "field", new Element[] { new Element( "value", FLEXIBLE_OFFLINE_XMLNS ) },
+                new String[] { "var", "type" }, new String[] { "FORM_TYPE", "hidden" } ) );
+        form.addChild( new Element( "field", new Element[] { new Element( "value", String.valueOf( count ) ) },
+                new String[] { "var" }, new String[] { "number_of_messages" } ) );
+        query.addChild( form );
+        return query;
+    }
+
+    private Packet toPacket( Element elem ) {
+        try {
+            return Packet.packetInstance( elem );
+        } catch ( TigaseStringprepException ex ) {
+            log.warning( "Packet addressing problem, stringprep failed: " + elem );
+            return null;
+        }
     }
 
     /**
@@ -361,6 +995,22 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
         // save only:
         // message stanza with either {@code <body>} or {@code <event>} child element and only of type normal, chat
         // presence stanza of type subscribe, subscribed, unsubscribe and unsubscribed
+        Element elem = prepareForOfflineStorage(pac);
+        if (elem != null) {
+            repo.storeMessage(pac.getStanzaTo().getBareJID(), elem, getExpiration(pac));
+            pac.processedBy(ID);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a copy of the packet element ready for storage, with a delay
+     * stamp added, or null if the packet should not be stored.
+     */
+    private Element prepareForOfflineStorage(Packet pac) {
         if (isAllowedForOfflineStorage(pac)){
             if ( log.isLoggable( Level.FINEST ) ){
                 log.log( Level.FINEST, "Storing packet for offline user: {0}", pac );
@@ -387,57 +1037,43 @@ public class OfflineMessages extends AnnotatedXMPPProcessor
                 elem.addChild(x);
             }
 
-            repo.storeMessage(pac.getStanzaTo().getBareJID(), elem, getExpiration(pac));
-            pac.processedBy(ID);
-
-            return true;
+            return elem;
         }
 
-        return false;
+        return null;
     }
 
     /**
-     * {@link Comparator} interface implementation for the purpose of sorting
-     * Elements retrieved from the repository by the timestamp stored in
-     * {@code delay} element.
+     * A packet with its timestamp taken from the {@code delay} element, for
+     * sorting packets by timestamp. The stamp is extracted only once.
      */
-    private static class StampComparator
-            implements Comparator<Packet> {
-
-        @Override
-        public int compare( Packet p1, Packet p2 ) {
-            String stamp1 = null;
-            String stamp2 = null;
+    private static class StampedPacket
+            implements Comparable<StampedPacket> {
 
-            // Try XEP-0203 - the new XEP...
-            Element stamp_el1 = p1.getElement().getChild( "delay", "urn:xmpp:delay" );
+        final Packet packet;
+        final String stamp;
 
-            if ( stamp_el1 == null ){
-                // XEP-0091 support - the old one...
-                stamp_el1 = p1.getElement().getChild( "x", "jabber:x:delay" );
-            }
-            if ( stamp_el1 != null ){
-                stamp1 = stamp_el1.getAttributeStaticStr( "stamp" );
-            }
-            if (stamp1 == null) {
-                stamp1 = "";
-            }
+        StampedPacket( Packet packet ) {
+            this.packet = packet;
 
             // Try XEP-0203 - the new XEP...
-            Element stamp_el2 = p2.getElement().getChild( "delay", "urn:xmpp:delay" );
+            Element stamp_el = packet.getElement().getChild( "delay", "urn:xmpp:delay" );
 
-            if ( stamp_el2 == null ){
+            if ( stamp_el == null ){
                 // XEP-0091 support - the old one...
-                stamp_el2 = p2.getElement().getChild( "x", "jabber:x:delay" );
+                stamp_el = packet.getElement().getChild( "x", "jabber:x:delay" );
             }
-            if ( stamp_el2 != null ){
-                stamp2 = stamp_el2.getAttributeStaticStr( "stamp" );
-            }
-            if (stamp2 == null) {
-                stamp2 = "";
+
+            String stamp = null;
+            if ( stamp_el != null ){
+                stamp = stamp_el.getAttributeStaticStr( "stamp" );
             }
+            this.stamp = stamp != null ? stamp : "";
+        }
 
-            return stamp1.compareTo( stamp2 );
+        @Override
+        public int compareTo( StampedPacket o ) {
+            return stamp.compareTo( o.stamp );
         }
     }
 
@@ -0,0 +1,111 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import org.kontalk.xmppserver.util.CountingBloomFilter;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.BareJID;
+
+import java.util.function.Consumer;
+
+
+/**
+ * Keeps track of which users might have offline messages waiting, so that
+ * the storage can be skipped entirely for users who have none.
+ * The filter can give false positives (e.g. after messages expired), never
+ * false negatives. Until it is built for the first time, every user is
+ * reported as possibly having messages.
+ * @author Daniele Ricci
+ */
+class PendingMessagesFilter {
+
+    /** Fills the given filter with all users having messages in storage, once per stored message. */
+    interface Scanner {
+        void scan(Consumer<String> users) throws TigaseDBException;
+    }
+
+    private final int size;
+    private final int hashCount;
+
+    private volatile CountingBloomFilter filter;
+    /** Filter being rebuilt, receives new messages too. */
+    private volatile CountingBloomFilter next;
+
+    PendingMessagesFilter(int size, int hashCount) {
+        this.size = size;
+        this.hashCount = hashCount;
+    }
+
+    boolean mightHaveMessages(BareJID user) {
+        CountingBloomFilter f = filter;
+        return f == null || f.mightContain(user.toString());
+    }
+
+    /** Must be called after the message has been stored. */
+    void stored(BareJID user) {
+        stored(user, 1);
+    }
+
+    /**
+     * Must be called after the messages have been stored. The count must
+     * match the rows that will be deleted later, or the counters shared
+     * with other users would drop too far.
+     */
+    void stored(BareJID user, int count) {
+        if (count <= 0)
+            return;
+        String key = user.toString();
+        CountingBloomFilter n = next;
+        if (n != null)
+            n.add(key, count);
+        CountingBloomFilter f = filter;
+        if (f != null)
+            f.add(key, count);
+    }
+
+    /**
+     * Must be called after the messages have been deleted.
+     * Deletions are not applied to a filter being rebuilt: at worst it will
+     * give some more false positives.
+     */
+    void deleted(BareJID user, int count) {
+        CountingBloomFilter f = filter;
+        if (f != null && count > 0)
+            f.remove(user.toString(), count);
+    }
+
+    /**
+     * Builds the filter from scratch from the given storage scan.
+     * Messages stored from now on are tracked by the new filter, so the
+     * scanner must first make visible to the scan whatever was stored before
+     * (e.g. by draining a write-behind queue), or those users would be lost.
+     */
+    synchronized void rebuild(Scanner scanner) throws TigaseDBException {
+        CountingBloomFilter n = new CountingBloomFilter(size, hashCount);
+        next = n;
+        try {
+            scanner.scan(key -> n.add(key, 1));
+            filter = n;
+        }
+        finally {
+            next = null;
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.db.TigaseDBException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Thrown when a message can't be stored because the user's offline storage
+ * is full.
+ * @author Daniele Ricci
+ */
+public class QuotaExceededException extends TigaseDBException {
+
+    private final List<Element> refused;
+
+    public QuotaExceededException(BareJID user) {
+        this(user, Collections.emptyList());
+    }
+
+    public QuotaExceededException(BareJID user, List<Element> refused) {
+        super("offline storage quota exceeded for " + user);
+        this.refused = refused;
+    }
+
+    /**
+     * Returns the messages that were not stored, when storing in bulk.
+     * Messages not in this list were stored.
+     */
+    public List<Element> getRefused() {
+        return refused;
+    }
+
+}
@@ -0,0 +1,582 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A message repository enforcing a per-user quota on top of another
+ * repository. Stored messages are counted in memory: the count for a user is
+ * read from storage once and then kept up to date, so quota checks don't need
+ * to query storage every time. Counters are reset after expiration.
+ * Receipts can also be coalesced: receipts from the same sender are collected
+ * for a short time and stored as a single message, which is split again when
+ * loaded.
+ * @author Daniele Ricci
+ */
+public class QuotaMsgRepository implements MsgRepository {
+
+    private static final Logger log = Logger.getLogger(QuotaMsgRepository.class.getName());
+
+    /** What to do when a user's quota is exceeded. */
+    public enum Policy {
+        /** Delete the oldest message. */
+        DROP_OLDEST,
+        /** Delete the oldest message without a body, or the oldest message if there is none. */
+        DROP_NON_BODY,
+        /** Refuse the new message. */
+        REFUSE,
+    }
+
+    /** Max number of messages per user, 0 for no limit. */
+    static final String QUOTA_KEY = "quota";
+    /** Eviction policy: drop-oldest, drop-non-body or refuse. */
+    static final String QUOTA_POLICY_KEY = "quota-policy";
+    /** Max number of users whose message count is kept in memory. */
+    static final String QUOTA_CACHE_SIZE_KEY = "quota-cache-size";
+    /** Enables receipt coalescing. */
+    static final String COALESCE_RECEIPTS_KEY = "coalesce-receipts";
+    /** Time in milliseconds receipts are collected before being stored. */
+    static final String COALESCE_INTERVAL_KEY = "coalesce-receipts-interval";
+    /** Max number of receipts stored in a single message. */
+    static final String COALESCE_MAX_KEY = "coalesce-receipts-max";
+
+    private static final int DEF_QUOTA_CACHE_SIZE = 100000;
+    private static final int DEF_COALESCE_INTERVAL = 1000;
+    private static final int DEF_COALESCE_MAX = 50;
+
+    /** Max number of messages checked while looking for a message to evict. */
+    private static final int MAX_EVICT_SCAN = 50;
+
+    private static final String RECEIPTS_XMLNS = "urn:xmpp:receipts";
+    private static final String DELAY_XMLNS = "urn:xmpp:delay";
+    /** Keeps the delay stamp of each coalesced receipt, removed when loading. */
+    private static final String STAMP_ATTR = "stamp";
+
+    private final MsgRepository repo;
+
+    private int quota;
+    private Policy policy = Policy.DROP_OLDEST;
+    private Cache<BareJID, AtomicInteger> counters;
+
+    private boolean coalesceReceipts;
+    private int coalesceMax = DEF_COALESCE_MAX;
+    private final Map<BatchKey, ReceiptBatch> receiptBatches = new ConcurrentHashMap<>();
+    private Timer coalesceTimer;
+
+    private final AtomicLong statsEvicted = new AtomicLong();
+    private final AtomicLong statsRefused = new AtomicLong();
+    private final AtomicLong statsCoalesced = new AtomicLong();
+
+    public QuotaMsgRepository(MsgRepository repo) {
+        this.repo = repo;
+    }
+
+    /** Returns true if the given parameters enable any feature of this repository. */
+    public static boolean isEnabled(Map<String, String> params) {
+        return getIntParam(params, QUOTA_KEY, 0) > 0 || Boolean.parseBoolean(params.get(COALESCE_RECEIPTS_KEY));
+    }
+
+    @Override
+    public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+        repo.initRepository(resource_uri, params);
+
+        quota = getIntParam(params, QUOTA_KEY, 0);
+        String policyName = params.get(QUOTA_POLICY_KEY);
+        if (policyName != null) {
+            try {
+                policy = Policy.valueOf(policyName.toUpperCase().replace('-', '_'));
+            }
+            catch (IllegalArgumentException e) {
+                throw new DBInitException("invalid quota policy: " + policyName);
+            }
+        }
+        counters = CacheBuilder.newBuilder()
+                .maximumSize(getIntParam(params, QUOTA_CACHE_SIZE_KEY, DEF_QUOTA_CACHE_SIZE))
+                .build();
+
+        coalesceReceipts = Boolean.parseBoolean(params.get(COALESCE_RECEIPTS_KEY));
+        if (coalesceReceipts) {
+            coalesceMax = getIntParam(params, COALESCE_MAX_KEY, DEF_COALESCE_MAX);
+            int interval = getIntParam(params, COALESCE_INTERVAL_KEY, DEF_COALESCE_INTERVAL);
+            coalesceTimer = new Timer("OfflineMessagesReceiptCoalescing tasks", true);
+            coalesceTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    flushReceipts(interval);
+                }
+            }, interval, interval);
+        }
+
+        log.log(Level.INFO, "Offline storage quota: {0} ({1}), receipt coalescing: {2}",
+                new Object[] { quota, policy, coalesceReceipts });
+    }
+
+    @Override
+    public int expireMessages() throws TigaseDBException {
+        int count = repo.expireMessages();
+        // we don't know which users had expired messages
+        if (count > 0)
+            counters.invalidateAll();
+        return count;
+    }
+
+    @Override
+    public int loadMessagesToJID(BareJID user, boolean delete, int pageSize, int limit, Consumer<Element> consumer) throws TigaseDBException {
+        flushReceipts(user);
+
+        int[] count = { 0 };
+        int rows = repo.loadMessagesToJID(user, delete, pageSize, limit, elem -> count[0] += expandReceipts(elem, consumer));
+        if (delete && rows > 0) {
+            AtomicInteger counter = counters.getIfPresent(user);
+            if (counter != null)
+                counter.addAndGet(-rows);
+        }
+        return count[0];
+    }
+
+    /**
+     * Coalesced receipts are split, but all parts keep the node of the stored
+     * row: a node can only be deleted as a whole, and it is still counted and
+     * listed once.
+     */
+    @Override
+    public int loadMessagesToJID(BareJID user, int pageSize, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        flushReceipts(user);
+        return repo.loadMessagesToJID(user, pageSize, limit,
+                (node, elem) -> expandReceipts(elem, msg -> consumer.accept(node, msg)));
+    }
+
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        flushReceipts(user);
+        return repo.countMessages(user);
+    }
+
+    @Override
+    public List<MessageHeader> loadMessageHeaders(BareJID user) throws TigaseDBException {
+        flushReceipts(user);
+        return repo.loadMessageHeaders(user);
+    }
+
+    /** Coalesced receipts are returned in a single message. */
+    @Override
+    public Element loadMessage(BareJID user, String node) throws TigaseDBException {
+        Element msg = repo.loadMessage(user, node);
+        if (msg != null)
+            removeStamps(getReceipts(msg));
+        return msg;
+    }
+
+    @Override
+    public boolean deleteMessage(BareJID user, String node) throws TigaseDBException {
+        boolean deleted = repo.deleteMessage(user, node);
+        if (deleted) {
+            AtomicInteger counter = counters.getIfPresent(user);
+            if (counter != null)
+                counter.decrementAndGet();
+        }
+        return deleted;
+    }
+
+    @Override
+    public int deleteMessages(BareJID user) throws TigaseDBException {
+        flushReceipts(user);
+        int count = repo.deleteMessages(user);
+        // messages might have been stored in the meantime
+        counters.invalidate(user);
+        return count;
+    }
+
+    @Override
+    public void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException {
+        if (coalesceReceipts && isReceipt(msg)) {
+            addReceipt(user, msg, expire);
+        }
+        else {
+            storeRow(user, msg, expire);
+        }
+    }
+
+    /**
+     * Stores the messages allowed by the quota with a single call, then
+     * throws {@link QuotaExceededException} if any message was refused.
+     */
+    @Override
+    public void storeMessages(BareJID user, List<Element> msgs, Date expire) throws TigaseDBException {
+        AtomicInteger counter = quota > 0 ? getCounter(user) : null;
+        List<Element> rows = new ArrayList<>(msgs.size());
+        List<Element> refused = new ArrayList<>();
+        for (Element msg : msgs) {
+            if (coalesceReceipts && isReceipt(msg)) {
+                addReceipt(user, msg, expire);
+            }
+            else if (counter != null && counter.get() >= quota && !makeRoom(user, msg, counter, rows)) {
+                refused.add(msg);
+            }
+            else {
+                rows.add(msg);
+                if (counter != null)
+                    counter.incrementAndGet();
+            }
+        }
+
+        try {
+            repo.storeMessages(user, rows, expire);
+        }
+        catch (TigaseDBException e) {
+            // counters will be reloaded
+            counters.invalidate(user);
+            throw e;
+        }
+
+        if (!refused.isEmpty()) {
+            statsRefused.addAndGet(refused.size());
+            throw new QuotaExceededException(user, refused);
+        }
+    }
+
+    @Override
+    public void getStatistics(String compName, StatisticsList list) {
+        repo.getStatistics(compName, list);
+        list.add(compName, "Offline messages evicted by quota", statsEvicted.get(), Level.INFO);
+        list.add(compName, "Offline messages refused by quota", statsRefused.get(), Level.INFO);
+        list.add(compName, "Coalesced offline receipts", statsCoalesced.get(), Level.INFO);
+    }
+
+    /** Stores a single row, enforcing the quota. */
+    private void storeRow(BareJID user, Element msg, Date expire) throws TigaseDBException {
+        AtomicInteger counter = null;
+        if (quota > 0) {
+            counter = getCounter(user);
+            // concurrent stores for the same user might exceed the quota by a few messages
+            if (counter.get() >= quota && !makeRoom(user, msg, counter, Collections.emptyList())) {
+                statsRefused.incrementAndGet();
+                throw new QuotaExceededException(user, Collections.singletonList(msg));
+            }
+        }
+
+        repo.storeMessage(user, msg, expire);
+        if (counter != null)
+            counter.incrementAndGet();
+    }
+
+    /**
+     * Evicts a message according to the quota policy. Messages in storage
+     * are evicted first, then messages of the same batch not stored yet.
+     * @param pending messages of the same batch not stored yet, already counted
+     * @return false if the new message should be refused
+     */
+    private boolean makeRoom(BareJID user, Element msg, AtomicInteger counter, List<Element> pending) throws TigaseDBException {
+        switch (policy) {
+            case REFUSE:
+                return false;
+
+            case DROP_NON_BODY:
+                if (evictNonBody(user, counter))
+                    return true;
+                for (Iterator<Element> it = pending.iterator(); it.hasNext(); ) {
+                    if (!hasBody(it.next())) {
+                        it.remove();
+                        evicted(counter);
+                        return true;
+                    }
+                }
+                // nothing to evict but messages with a body: the new message goes first
+                if (!hasBody(msg))
+                    return false;
+                // fall through
+
+            case DROP_OLDEST:
+                if (repo.loadMessagesToJID(user, true, 1, 1, e -> {}) > 0) {
+                    evicted(counter);
+                    return true;
+                }
+                // storage is empty, only the pending messages count
+                counter.set(pending.size());
+                if (pending.size() >= quota) {
+                    pending.remove(0);
+                    evicted(counter);
+                }
+                return true;
+        }
+        return false;
+    }
+
+    private void evicted(AtomicInteger counter) {
+        counter.decrementAndGet();
+        statsEvicted.incrementAndGet();
+    }
+
+    private boolean evictNonBody(BareJID user, AtomicInteger counter) throws TigaseDBException {
+        // only the oldest messages are checked, with a single query
+        String[] node = { null };
+        repo.loadMessagesToJID(user, MAX_EVICT_SCAN, MAX_EVICT_SCAN, (id, stored) -> {
+            if (node[0] == null && !hasBody(stored))
+                node[0] = id;
+        });
+        if (node[0] != null && repo.deleteMessage(user, node[0])) {
+            evicted(counter);
+            return true;
+        }
+        return false;
+    }
+
+    private AtomicInteger getCounter(BareJID user) throws TigaseDBException {
+        try {
+            return counters.get(user, () -> new AtomicInteger(repo.countMessages(user)));
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TigaseDBException)
+                throw (TigaseDBException) e.getCause();
+            throw new TigaseDBException("unable to count messages", e.getCause());
+        }
+    }
+
+    private void addReceipt(BareJID user, Element msg, Date expire) throws TigaseDBException {
+        BatchKey key = new BatchKey(user, msg.getAttributeStaticStr("from"));
+        while (true) {
+            ReceiptBatch batch = receiptBatches.computeIfAbsent(key, k -> new ReceiptBatch());
+            synchronized (batch) {
+                // batch is being stored, get a new one
+                if (batch.closed)
+                    continue;
+
+                batch.add(msg, expire);
+                if (batch.size() < coalesceMax)
+                    return;
+                receiptBatches.remove(key, batch);
+            }
+
+            storeBatch(key, batch);
+            return;
+        }
+    }
+
+    /** Stores all receipt batches older than the given age. */
+    private void flushReceipts(long maxAge) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<BatchKey, ReceiptBatch> e : receiptBatches.entrySet()) {
+            if (now - e.getValue().created >= maxAge && receiptBatches.remove(e.getKey(), e.getValue())) {
+                try {
+                    storeBatch(e.getKey(), e.getValue());
+                }
+                catch (TigaseDBException ex) {
+                    log.log(Level.WARNING, "unable to store coalesced receipts for " + e.getKey().user, ex);
+                }
+            }
+        }
+    }
+
+    /** Stores all receipt batches of the given user, so that a following read will see them. */
+    private void flushReceipts(BareJID user) throws TigaseDBException {
+        if (!coalesceReceipts)
+            return;
+
+        for (Map.Entry<BatchKey, ReceiptBatch> e : receiptBatches.entrySet()) {
+            if (e.getKey().user.equals(user) && receiptBatches.remove(e.getKey(), e.getValue())) {
+                storeBatch(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private void storeBatch(BatchKey key, ReceiptBatch batch) throws TigaseDBException {
+        Element msg;
+        Date expire;
+        synchronized (batch) {
+            batch.closed = true;
+            msg = batch.msg;
+            expire = batch.expire;
+            statsCoalesced.addAndGet(batch.size() - 1);
+        }
+        storeRow(key.user, msg, expire);
+    }
+
+    /**
+     * Hands the given message to the consumer, splitting coalesced receipts
+     * into single messages.
+     * @return number of messages
+     */
+    private static int expandReceipts(Element elem, Consumer<Element> consumer) {
+        List<Element> receipts = getReceipts(elem);
+        if (receipts.size() <= 1 || !isReceipt(elem)) {
+            removeStamps(receipts);
+            consumer.accept(elem);
+            return 1;
+        }
+
+        for (Element receipt : receipts) {
+            elem.removeChild(receipt);
+        }
+
+        String id = elem.getAttributeStaticStr("id");
+        for (int i = 0; i < receipts.size(); i++) {
+            Element receipt = receipts.get(i);
+            Element msg = elem.clone();
+            if (id != null && i > 0)
+                msg.setAttribute("id", id + "-" + i);
+
+            String stamp = receipt.getAttributeStaticStr(STAMP_ATTR);
+            Element delay = msg.getChild("delay", DELAY_XMLNS);
+            if (stamp != null && delay != null)
+                delay.setAttribute("stamp", stamp);
+            receipt.removeAttribute(STAMP_ATTR);
+
+            msg.addChild(receipt);
+            consumer.accept(msg);
+        }
+        return receipts.size();
+    }
+
+    private static void removeStamps(List<Element> receipts) {
+        for (Element receipt : receipts) {
+            receipt.removeAttribute(STAMP_ATTR);
+        }
+    }
+
+    private static List<Element> getReceipts(Element msg) {
+        List<Element> receipts = new ArrayList<>();
+        List<Element> children = msg.getChildren();
+        if (children != null) {
+            for (Element child : children) {
+                if (child.getName() == "received" && child.getXMLNS() == RECEIPTS_XMLNS)
+                    receipts.add(child);
+            }
+        }
+        return receipts;
+    }
+
+    /** Returns true if the given message only carries a receipt (and its delay stamp). */
+    private static boolean isReceipt(Element msg) {
+        if (msg.getName() != "message")
+            return false;
+
+        List<Element> children = msg.getChildren();
+        boolean receipt = false;
+        if (children != null) {
+            for (Element child : children) {
+                if (child.getName() == "received" && child.getXMLNS() == RECEIPTS_XMLNS)
+                    receipt = true;
+                else if (child.getName() != "delay" || child.getXMLNS() != DELAY_XMLNS)
+                    return false;
+            }
+        }
+        return receipt;
+    }
+
+    private static boolean hasBody(Element msg) {
+        return msg.getChild("body") != null;
+    }
+
+    private static int getIntParam(Map<String, String> params, String key, int defaultValue) {
+        String value = params.get(key);
+        if (value != null) {
+            try {
+                int intValue = Integer.parseInt(value);
+                if (intValue >= 0)
+                    return intValue;
+            }
+            catch (NumberFormatException e) {
+                log.log(Level.WARNING, "invalid value for {0}: {1}", new Object[] { key, value });
+            }
+        }
+        return defaultValue;
+    }
+
+    private static final class BatchKey {
+        final BareJID user;
+        final String sender;
+
+        BatchKey(BareJID user, String sender) {
+            this.user = user;
+            this.sender = sender;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof BatchKey))
+                return false;
+            BatchKey other = (BatchKey) o;
+            return user.equals(other.user) && Objects.equals(sender, other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * user.hashCode() + Objects.hashCode(sender);
+        }
+    }
+
+    /** Receipts from the same sender waiting to be stored as a single message. */
+    private static final class ReceiptBatch {
+        final long created = System.currentTimeMillis();
+        Element msg;
+        Date expire;
+        int size;
+        /** Set when the batch has been removed for storing. */
+        boolean closed;
+
+        void add(Element receiptMsg, Date receiptExpire) {
+            Element delay = receiptMsg.getChild("delay", DELAY_XMLNS);
+            String stamp = delay != null ? delay.getAttributeStaticStr("stamp") : null;
+
+            List<Element> receipts = getReceipts(receiptMsg);
+            for (Element receipt : receipts) {
+                if (stamp != null)
+                    receipt.setAttribute(STAMP_ATTR, stamp);
+                if (msg != null)
+                    msg.addChild(receipt);
+            }
+
+            if (msg == null) {
+                msg = receiptMsg;
+                expire = receiptExpire;
+            }
+            // keep the latest expiration so no receipt will expire too early
+            else if (expire != null && (receiptExpire == null || receiptExpire.after(expire))) {
+                expire = receiptExpire;
+            }
+            size += receipts.size();
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import com.google.common.hash.Hashing;
+import tigase.db.DBInitException;
+import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+
+/**
+ * A message repository spreading users over several repositories (shards).
+ * The resource URI is a list of shard URIs separated by {@code |}; each user
+ * is routed to a shard by a consistent hash of its bare JID, so the mapping
+ * is stable as long as the list of shards doesn't change.
+ * Users are always resolved on a single database, given by the
+ * {@code user-db-uri} parameter and defaulting to the first shard, so that
+ * JDBC shards agree on user ids: shards without the users table will create
+ * the messages table without a foreign key on it.
+ * @author Daniele Ricci
+ */
+public class ShardedMsgRepository implements MsgRepository {
+
+    private static final Logger log = Logger.getLogger(ShardedMsgRepository.class.getName());
+
+    /** Separator for shard URIs in the resource URI. */
+    private static final String SHARD_URI_SEPARATOR = "|";
+
+    /** Repository class used for each shard. */
+    private static final String SHARD_REPO_CLASS_KEY = "shard-repo-class";
+
+    private static final String DEF_SHARD_REPO_CLASS = JDBCMsgRepository.class.getName();
+
+    private boolean initialized = false;
+
+    private final List<Shard> shards = new ArrayList<>();
+
+    /** Runs expiration on all shards in parallel. */
+    private ExecutorService expireExecutor;
+
+    @Override
+    public int expireMessages() throws TigaseDBException {
+        List<Future<Integer>> results = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            results.add(expireExecutor.submit(shard::expireMessages));
+        }
+
+        int total = 0;
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                total += results.get(i).get();
+            }
+            catch (ExecutionException e) {
+                log.log(Level.WARNING, "error purging expired messages on shard " + i, e.getCause());
+                failed++;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TigaseDBException("interrupted while purging expired messages", e);
+            }
+        }
+
+        if (failed > 0)
+            throw new TigaseDBException("unable to purge expired messages on " + failed + " shards (" +
+                    total + " messages purged)");
+        return total;
+    }
+
+    @Override
+    public int loadMessagesToJID(BareJID user, boolean delete, int pageSize, int limit, Consumer<Element> consumer) throws TigaseDBException {
+        Shard shard = getShard(user);
+        int count = shard.repo.loadMessagesToJID(user, delete, pageSize, limit, consumer);
+        shard.loaded.add(count);
+        return count;
+    }
+
+    @Override
+    public int loadMessagesToJID(BareJID user, int pageSize, int limit, BiConsumer<String, Element> consumer) throws TigaseDBException {
+        Shard shard = getShard(user);
+        int count = shard.repo.loadMessagesToJID(user, pageSize, limit, consumer);
+        shard.loaded.add(count);
+        return count;
+    }
+
+    @Override
+    public int countMessages(BareJID user) throws TigaseDBException {
+        return getShard(user).repo.countMessages(user);
+    }
+
+    @Override
+    public List<MessageHeader> loadMessageHeaders(BareJID user) throws TigaseDBException {
+        return getShard(user).repo.loadMessageHeaders(user);
+    }
+
+    @Override
+    public Element loadMessage(BareJID user, String node) throws TigaseDBException {
+        Shard shard = getShard(user);
+        Element msg = shard.repo.loadMessage(user, node);
+        if (msg != null)
+            shard.loaded.increment();
+        return msg;
+    }
+
+    @Override
+    public boolean deleteMessage(BareJID user, String node) throws TigaseDBException {
+        return getShard(user).repo.deleteMessage(user, node);
+    }
+
+    @Override
+    public int deleteMessages(BareJID user) throws TigaseDBException {
+        return getShard(user).repo.deleteMessages(user);
+    }
+
+    @Override
+    public void storeMessage(BareJID user, Element msg, Date expire) throws TigaseDBException {
+        Shard shard = getShard(user);
+        shard.repo.storeMessage(user, msg, expire);
+        shard.stored.increment();
+    }
+
+    @Override
+    public void storeMessages(BareJID user, List<Element> msgs, Date expire) throws TigaseDBException {
+        Shard shard = getShard(user);
+        shard.repo.storeMessages(user, msgs, expire);
+        shard.stored.add(msgs.size());
+    }
+
+    @Override
+    public void getStatistics(String compName, StatisticsList list) {
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get(i);
+            list.add(compName, "Shard " + i + " stored messages", shard.stored.sum(), Level.INFO);
+            list.add(compName, "Shard " + i + " loaded messages", shard.loaded.sum(), Level.INFO);
+            list.add(compName, "Shard " + i + " expired messages", shard.expired.sum(), Level.INFO);
+            shard.repo.getStatistics(compName, list);
+        }
+    }
+
+    Shard getShard(BareJID user) {
+        int index = Hashing.consistentHash(Hashing.murmur3_128()
+                .hashString(user.toString(), StandardCharsets.UTF_8), shards.size());
+        return shards.get(index);
+    }
+
+    int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+        if (initialized) {
+            return;
+        }
+
+        initialized = true;
+
+        String className = params != null ? params.get(SHARD_REPO_CLASS_KEY) : null;
+        if (className == null)
+            className = DEF_SHARD_REPO_CLASS;
+
+        List<String> uris = new ArrayList<>();
+        for (String uri : resource_uri.split(Pattern.quote(SHARD_URI_SEPARATOR))) {
+            uri = uri.trim();
+            if (uri.length() > 0)
+                uris.add(uri);
+        }
+
+        if (uris.isEmpty())
+            throw new DBInitException("No shards defined: " + resource_uri);
+
+        Map<String, String> shardParams = params != null ? new HashMap<>(params) : new HashMap<>();
+        shardParams.putIfAbsent(JDBCMsgRepository.USER_DB_URI_KEY, uris.get(0));
+
+        for (String uri : uris) {
+
+            MsgRepository repo;
+            try {
+                repo = (MsgRepository) Class.forName(className).newInstance();
+            }
+            catch (ClassNotFoundException e) {
+                throw new DBInitException("Repository class not found: " + className, e);
+            }
+            catch (InstantiationException | IllegalAccessException | ClassCastException e) {
+                throw new DBInitException("Unable to create message repository: " + className, e);
+            }
+
+            repo.initRepository(uri, shardParams);
+            shards.add(new Shard(repo));
+        }
+
+        log.log(Level.INFO, "Initialized {0} message repository shards", shards.size());
+
+        expireExecutor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OfflineMessagesShardExpireThread-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /** A shard with its throughput counters. */
+    static final class Shard {
+        final MsgRepository repo;
+        final LongAdder stored = new LongAdder();
+        final LongAdder loaded = new LongAdder();
+        final LongAdder expired = new LongAdder();
+
+        Shard(MsgRepository repo) {
+            this.repo = repo;
+        }
+
+        int expireMessages() throws TigaseDBException {
+            int count = repo.expireMessages();
+            expired.add(count);
+            return count;
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Encodes stanzas for storage. Every stored stanza is tagged with the
+ * {@link #format()} of the codec that encoded it, so that it can always be
+ * decoded regardless of the codec currently in use for storing.
+ * @author Daniele Ricci
+ */
+public abstract class StanzaCodec {
+    private static final Logger log = Logger.getLogger(StanzaCodec.class.getName());
+
+    /** Plain UTF-8 XML, the format of all rows stored before codecs were introduced. */
+    public static final int FORMAT_XML = 0;
+    /** Deflate-compressed UTF-8 XML. */
+    public static final int FORMAT_DEFLATE = 1;
+
+    public static final StanzaCodec XML = new XmlCodec();
+    public static final StanzaCodec DEFLATE = new DeflateCodec();
+
+    /** Format identifier stored along with each encoded stanza. */
+    public abstract int format();
+
+    public abstract byte[] encode(Element stanza);
+
+    /** Decodes a stored stanza, returning null if it's not valid. */
+    public abstract Element decode(byte[] data);
+
+    /** Returns the codec for the given stored format. */
+    public static StanzaCodec forFormat(int format) {
+        switch (format) {
+            case FORMAT_XML:
+                return XML;
+            case FORMAT_DEFLATE:
+                return DEFLATE;
+            default:
+                throw new IllegalArgumentException("unknown stanza format: " + format);
+        }
+    }
+
+    /** Returns the codec with the given configuration name. */
+    public static StanzaCodec forName(String name) {
+        if ("xml".equalsIgnoreCase(name))
+            return XML;
+        if ("deflate".equalsIgnoreCase(name))
+            return DEFLATE;
+        throw new IllegalArgumentException("unknown stanza codec: " + name);
+    }
+
+    private static final class XmlCodec extends StanzaCodec {
+        @Override
+        public int format() {
+            return FORMAT_XML;
+        }
+
+        @Override
+        public byte[] encode(Element stanza) {
+            return stanza.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Element decode(byte[] data) {
+            return StanzaParser.parse(new String(data, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final class DeflateCodec extends StanzaCodec {
+        @Override
+        public int format() {
+            return FORMAT_DEFLATE;
+        }
+
+        @Override
+        public byte[] encode(Element stanza) {
+            byte[] xml = stanza.toString().getBytes(StandardCharsets.UTF_8);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(xml);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length / 2 + 16);
+                byte[] buf = new byte[1024];
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buf);
+                    out.write(buf, 0, count);
+                }
+                return out.toByteArray();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public Element decode(byte[] data) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+                byte[] buf = new byte[1024];
+                while (!inflater.finished()) {
+                    int count = inflater.inflate(buf);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new DataFormatException("truncated data");
+                    out.write(buf, 0, count);
+                }
+                return StanzaParser.parse(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            }
+            catch (DataFormatException e) {
+                log.log(Level.WARNING, "unable to inflate stored stanza", e);
+                return null;
+            }
+            finally {
+                inflater.end();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Parses stored stanzas back into elements.
+ * @author Daniele Ricci
+ */
+final class StanzaParser {
+    private static final Logger log = Logger.getLogger(StanzaParser.class.getName());
+
+    private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+    private StanzaParser() {
+    }
+
+    /** Parses a single stored stanza, returning null if it's not valid. */
+    static Element parse(String stanza) {
+        DomBuilderHandler domHandler = new DomBuilderHandler();
+        char[] data = stanza.toCharArray();
+        parser.parse(domHandler, data, 0, data.length);
+
+        Element elem = domHandler.getParsedElements().poll();
+        if (elem == null) {
+            log.log(Level.WARNING, "unable to parse stored stanza: {0}", stanza);
+        }
+        return elem;
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import tigase.db.TigaseDBException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A bounded write-behind queue for offline messages.
+ * Rows are queued by the storing threads and written in batches by a
+ * dedicated writer thread, either when a batch is full or when the flush
+ * interval has elapsed.
+ * @author Daniele Ricci
+ */
+class WriteBehindQueue {
+    private static final Logger log = Logger.getLogger(WriteBehindQueue.class.getName());
+
+    /** A row waiting to be written. */
+    static final class PendingMessage {
+        final long uid;
+        final byte[] stanza;
+        /** Stanza encoding format, see {@link StanzaCodec#format()}. */
+        final int format;
+        /** Sender JID, might be null. */
+        final String sender;
+        final long timestamp;
+        /** Expiration timestamp, 0 for no expiration. */
+        final long expire;
+
+        PendingMessage(long uid, byte[] stanza, int format, String sender, long timestamp, long expire) {
+            this.uid = uid;
+            this.stanza = stanza;
+            this.format = format;
+            this.sender = sender;
+            this.timestamp = timestamp;
+            this.expire = expire;
+        }
+    }
+
+    /** Writes a batch of rows to the actual storage. */
+    interface BatchWriter {
+        void write(List<PendingMessage> batch) throws TigaseDBException;
+    }
+
+    private final BlockingQueue<PendingMessage> queue;
+    private final BatchWriter writer;
+    private final int batchSize;
+    private final long flushInterval;
+
+    /** Held while a batch is being collected and written. Fair, so readers won't starve. */
+    private final ReentrantLock flushLock = new ReentrantLock(true);
+
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    WriteBehindQueue(BatchWriter writer, int capacity, int batchSize, long flushInterval) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "OfflineMessagesWriteBehindThread");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        Runtime.getRuntime().addShutdownHook(new ShutdownThread());
+    }
+
+    /**
+     * Queues a row for writing. If the queue is full, waits up to the flush
+     * interval for the writer thread to make room.
+     */
+    void offer(PendingMessage msg) throws TigaseDBException {
+        try {
+            if (!queue.offer(msg, flushInterval, TimeUnit.MILLISECONDS)) {
+                throw new TigaseDBException("write-behind queue is full");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TigaseDBException("interrupted while queueing message", e);
+        }
+    }
+
+    /**
+     * Writes all pending rows for the given user right away, so that a
+     * following read will see them. It might need to wait for the batch
+     * currently being collected by the writer thread to be written.
+     */
+    void flush(long uid) throws TigaseDBException {
+        flushLock.lock();
+        try {
+            List<PendingMessage> batch = new ArrayList<>();
+            for (Iterator<PendingMessage> it = queue.iterator(); it.hasNext(); ) {
+                PendingMessage msg = it.next();
+                if (msg.uid == uid) {
+                    batch.add(msg);
+                    it.remove();
+                }
+            }
+
+            if (batch.size() > 0)
+                writer.write(batch);
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Writes all pending rows right away. */
+    void flush() throws TigaseDBException {
+        flushLock.lock();
+        try {
+            List<PendingMessage> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                writer.write(batch);
+                batch.clear();
+            }
+        }
+        finally {
+            flushLock.unlock();
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    private void writerLoop() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                // the lock is held while the batch is filling up, so flush(uid) will wait for it
+                flushLock.lockInterruptibly();
+                try {
+                    PendingMessage first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + flushInterval;
+                    while (true) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long wait = deadline - System.currentTimeMillis();
+                        if (batch.size() >= batchSize || wait <= 0)
+                            break;
+
+                        PendingMessage next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+
+                    writer.write(batch);
+                }
+                finally {
+                    flushLock.unlock();
+                }
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            catch (TigaseDBException e) {
+                log.log(Level.WARNING, "error writing " + batch.size() + " offline messages", e);
+            }
+            catch (Exception e) {
+                log.log(Level.SEVERE, "unexpected error in write-behind thread", e);
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private class ShutdownThread extends Thread {
+
+        ShutdownThread() {
+            super();
+            setName("OfflineMessagesWriteBehindShutdownThread");
+        }
+
+        @Override
+        public void run() {
+            running = false;
+            writerThread.interrupt();
+            try {
+                flush();
+            }
+            catch (Exception e) {
+                log.log(Level.WARNING, "unable to write pending offline messages", e);
+            }
+        }
+    }
+
+}
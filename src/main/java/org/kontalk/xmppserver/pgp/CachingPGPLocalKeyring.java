@@ -0,0 +1,151 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.pgp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A {@link PGPLocalKeyring} decorator caching parsed keys by fingerprint.
+ * The cache is bounded both by number of keys and by their total encoded
+ * size. Imported keys replace the cached entry, so readers won't see a key
+ * older than the last import.
+ * @author Daniele Ricci
+ */
+public class CachingPGPLocalKeyring implements PGPLocalKeyring {
+
+    /** A parsed key together with its encoded form. */
+    private static final class CachedKey {
+        final PGPPublicKeyRing keyring;
+        final byte[] encoded;
+
+        CachedKey(PGPPublicKeyRing keyring) throws IOException {
+            this.keyring = keyring;
+            this.encoded = keyring.getEncoded();
+        }
+    }
+
+    private final PGPLocalKeyring keyring;
+    private final Cache<String, CachedKey> cache;
+
+    /**
+     * @param keyring the keyring to wrap
+     * @param maxSize maximum number of cached keys
+     * @param maxWeight maximum total size in bytes of the cached keys
+     */
+    public CachingPGPLocalKeyring(PGPLocalKeyring keyring, long maxSize, long maxWeight) {
+        if (maxSize <= 0 || maxWeight <= 0)
+            throw new IllegalArgumentException("cache bounds must be positive");
+
+        this.keyring = keyring;
+
+        // Guava can't bound both size and weight: giving every key a minimum
+        // weight keeps the number of entries within maxSize as well
+        final int minWeight = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxWeight / maxSize));
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .<String, CachedKey>weigher((fpr, key) -> Math.max(minWeight, key.encoded.length))
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public PGPPublicKeyRing getKey(String fingerprint) throws IOException, PGPException {
+        CachedKey key = getCachedKey(fingerprint);
+        return key != null ? key.keyring : null;
+    }
+
+    @Override
+    public byte[] exportKey(String fingerprint) throws IOException, PGPException {
+        CachedKey key = getCachedKey(fingerprint);
+        return key != null ? key.encoded.clone() : null;
+    }
+
+    @Override
+    public PGPPublicKeyRing importKey(InputStream in) throws IOException, PGPException {
+        return importKey(PGPUtils.readPublicKeyring(in));
+    }
+
+    @Override
+    public PGPPublicKeyRing importKey(byte[] data) throws IOException, PGPException {
+        return importKey(PGPUtils.readPublicKeyring(data));
+    }
+
+    private PGPPublicKeyRing importKey(PGPPublicKeyRing keyring) throws IOException, PGPException {
+        String fpr = PGPUtils.getFingerprint(keyring);
+
+        // importing the very same key we have (e.g. at every login) won't change anything
+        CachedKey cached = cache.asMap().get(fpr);
+        if (cached != null && Arrays.equals(cached.encoded, keyring.getEncoded()))
+            return cached.keyring;
+
+        PGPPublicKeyRing imported = this.keyring.importKey(keyring.getEncoded());
+        // a put discards any concurrent load of the old key
+        cache.put(fpr, new CachedKey(imported));
+        return imported;
+    }
+
+    private CachedKey getCachedKey(String fingerprint) throws IOException, PGPException {
+        String fpr = fingerprint.toUpperCase(Locale.US);
+        CachedKey key = cache.getIfPresent(fpr);
+        if (key == null) {
+            PGPPublicKeyRing keyring = this.keyring.getKey(fpr);
+            if (keyring == null)
+                return null;
+
+            // an import might have happened in the meantime, in that case keep its result
+            ConcurrentMap<String, CachedKey> map = cache.asMap();
+            CachedKey loaded = new CachedKey(keyring);
+            key = map.putIfAbsent(fpr, loaded);
+            if (key == null)
+                key = loaded;
+        }
+        return key;
+    }
+
+    /** Drops all cached keys. */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.invalidateAll();
+        keyring.close();
+    }
+
+}
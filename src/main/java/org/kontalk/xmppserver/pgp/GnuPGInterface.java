@@ -32,7 +32,9 @@ import java.io.OutputStream;
  * and incompatibility issues, here is some gpg2 invoking methods
  * for just the basic stuff we need.
  * @author Daniele Ricci
+ * @deprecated signing is now done in-process by {@link PGPSigner}
  */
+@Deprecated
 public class GnuPGInterface {
     private static GnuPGInterface instance;
 
@@ -30,6 +30,12 @@ public interface PGPLocalKeyring {
     /** Returns the public key represented by the given fingerprint. */
     PGPPublicKeyRing getKey(String fingerprint) throws IOException, PGPException;
 
+    /** Returns the encoded public key represented by the given fingerprint. */
+    default byte[] exportKey(String fingerprint) throws IOException, PGPException {
+        PGPPublicKeyRing key = getKey(fingerprint);
+        return key != null ? key.getEncoded() : null;
+    }
+
     /** Imports the given key. */
     PGPPublicKeyRing importKey(InputStream in) throws IOException, PGPException;
 
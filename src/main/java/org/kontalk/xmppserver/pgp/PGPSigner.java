@@ -0,0 +1,218 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.pgp;
+
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.kontalk.xmppserver.Security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+
+
+/**
+ * In-process PGP signing engine, replacing the gpg calls in {@link GnuPGInterface}.
+ * The secret keys are unlocked once when the signer is created; a new
+ * signature generator is used for every operation, so an instance can be
+ * shared by any number of threads.
+ * @author Daniele Ricci
+ */
+public class PGPSigner {
+
+    static {
+        Security.init();
+    }
+
+    /** Same digest gpg uses by default for certifications and signatures. */
+    private static final int HASH_ALGORITHM = HashAlgorithmTags.SHA256;
+
+    private final PGPPublicKey masterKey;
+
+    /** Private key used for key certifications (always the master key). */
+    private final PGPPrivateKey certifyKey;
+    private final int certifyAlgorithm;
+
+    /** Private key used for data signatures (signing subkey if any, master key otherwise). */
+    private final PGPPrivateKey signKey;
+    private final int signAlgorithm;
+
+    public PGPSigner(PGPSecretKeyRing secretKeyring, char[] passphrase) throws PGPException {
+        PGPSecretKey secretMasterKey = secretKeyring.getSecretKey();
+        if (secretMasterKey == null || !secretMasterKey.isMasterKey())
+            throw new PGPException("no master key found in secret keyring");
+
+        masterKey = secretMasterKey.getPublicKey();
+        certifyKey = extractPrivateKey(secretMasterKey, passphrase);
+        certifyAlgorithm = masterKey.getAlgorithm();
+
+        PGPSecretKey secretSignKey = findSigningKey(secretKeyring);
+        if (secretSignKey != null) {
+            signKey = extractPrivateKey(secretSignKey, passphrase);
+            signAlgorithm = secretSignKey.getPublicKey().getAlgorithm();
+        }
+        else {
+            signKey = certifyKey;
+            signAlgorithm = certifyAlgorithm;
+        }
+    }
+
+    /** Loads a signer from the given secret keyring data (binary or armored). */
+    public static PGPSigner load(InputStream secretKeyring, char[] passphrase) throws IOException, PGPException {
+        return new PGPSigner(PGPUtils.readSecretKeyring(PGPUtil.getDecoderStream(secretKeyring)), passphrase);
+    }
+
+    public PGPPublicKey getMasterKey() {
+        return masterKey;
+    }
+
+    /**
+     * Certifies the first user ID of the given key, like gpg does with
+     * <code>--edit-key &lt;key&gt; uid 1 sign</code>.
+     * @return the encoded keyring with the new certification
+     */
+    public byte[] signKey(byte[] keyData) throws IOException, PGPException {
+        return signKey(PGPUtils.readPublicKeyring(keyData)).getEncoded();
+    }
+
+    /**
+     * Certifies the first user ID of the given key with a generic certification.
+     * As gpg does by default, the certification expires together with the key.
+     * @return a new keyring including the certification
+     */
+    public PGPPublicKeyRing signKey(PGPPublicKeyRing keyring) throws PGPException {
+        PGPPublicKey key = PGPUtils.getMasterKey(keyring);
+        if (key == null)
+            throw new PGPException("invalid key data");
+
+        @SuppressWarnings("unchecked")
+        Iterator<String> uids = key.getUserIDs();
+        if (!uids.hasNext())
+            throw new PGPException("key has no user ID");
+        String uid = uids.next();
+
+        Date now = new Date();
+        PGPSignatureSubpacketGenerator hashed = new PGPSignatureSubpacketGenerator();
+        hashed.setSignatureCreationTime(false, now);
+        if (key.getValidSeconds() > 0) {
+            long expiry = key.getCreationTime().getTime() / 1000 + key.getValidSeconds();
+            long remaining = expiry - now.getTime() / 1000;
+            if (remaining <= 0)
+                throw new PGPException("key is expired");
+            hashed.setSignatureExpirationTime(false, remaining);
+        }
+
+        PGPSignatureGenerator generator = newGenerator(certifyAlgorithm);
+        generator.init(PGPSignature.DEFAULT_CERTIFICATION, certifyKey);
+        generator.setHashedSubpackets(hashed.generate());
+
+        PGPSignature certification = generator.generateCertification(uid, key);
+        PGPPublicKey signed = PGPPublicKey.addCertification(key, uid, certification);
+        return PGPPublicKeyRing.insertPublicKey(keyring, signed);
+    }
+
+    /**
+     * Signs the given data, producing the same packet layout of
+     * <code>gpg --sign</code>: a compressed message containing a one-pass
+     * signature, the literal data and the signature itself.
+     */
+    public byte[] signData(byte[] data) throws IOException, PGPException {
+        PGPSignatureSubpacketGenerator hashed = new PGPSignatureSubpacketGenerator();
+        Date now = new Date();
+        hashed.setSignatureCreationTime(false, now);
+
+        PGPSignatureGenerator generator = newGenerator(signAlgorithm);
+        generator.init(PGPSignature.BINARY_DOCUMENT, signKey);
+        generator.setHashedSubpackets(hashed.generate());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 512);
+        PGPCompressedDataGenerator compressor = new PGPCompressedDataGenerator(CompressionAlgorithmTags.ZIP);
+        BCPGOutputStream compressed = new BCPGOutputStream(compressor.open(out));
+
+        generator.generateOnePassVersion(false).encode(compressed);
+
+        PGPLiteralDataGenerator literal = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literal.open(compressed, PGPLiteralData.BINARY, "", data.length, now);
+        literalOut.write(data);
+        generator.update(data);
+        literal.close();
+
+        generator.generate().encode(compressed);
+        compressor.close();
+
+        return out.toByteArray();
+    }
+
+    private static PGPSignatureGenerator newGenerator(int keyAlgorithm) {
+        return new PGPSignatureGenerator(new BcPGPContentSignerBuilder(keyAlgorithm, HASH_ALGORITHM));
+    }
+
+    private static PGPPrivateKey extractPrivateKey(PGPSecretKey secretKey, char[] passphrase) throws PGPException {
+        PGPPrivateKey key = secretKey.extractPrivateKey(new BcPBESecretKeyDecryptorBuilder(new BcPGPDigestCalculatorProvider())
+                .build(passphrase != null ? passphrase : new char[0]));
+        if (key == null)
+            throw new PGPException("secret key " + Long.toHexString(secretKey.getKeyID()) + " is not available");
+        return key;
+    }
+
+    /**
+     * Looks for the newest valid subkey flagged for signing, which is what
+     * gpg would pick for signing data.
+     * @return the signing subkey or null if the master key should be used
+     */
+    private static PGPSecretKey findSigningKey(PGPSecretKeyRing secretKeyring) {
+        PGPSecretKey found = null;
+
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSecretKey> keys = secretKeyring.getSecretKeys();
+        while (keys.hasNext()) {
+            PGPSecretKey key = keys.next();
+            PGPPublicKey pk = key.getPublicKey();
+            if (key.isMasterKey() || key.isPrivateKeyEmpty() || !key.isSigningKey() ||
+                    PGPUtils.isExpired(pk) || pk.hasRevocation() || !hasKeyFlag(pk, KeyFlags.SIGN_DATA))
+                continue;
+
+            if (found == null || found.getPublicKey().getCreationTime().before(pk.getCreationTime()))
+                found = key;
+        }
+
+        return found;
+    }
+
+    private static boolean hasKeyFlag(PGPPublicKey key, int flag) {
+        @SuppressWarnings("unchecked")
+        Iterator<PGPSignature> sigs = key.getSignaturesOfType(PGPSignature.SUBKEY_BINDING);
+        while (sigs.hasNext()) {
+            PGPSignatureSubpacketVector hashed = sigs.next().getHashedSubPackets();
+            if (hashed != null && (hashed.getKeyFlags() & flag) != 0)
+                return true;
+        }
+        return false;
+    }
+
+}
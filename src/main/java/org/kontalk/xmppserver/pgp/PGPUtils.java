@@ -112,13 +112,18 @@ public class PGPUtils {
     public static boolean isExpired(PGPPublicKey key) {
         // TODO check creation time signature
         Date creationDate = key.getCreationTime();
-        Date expiryDate = key.getValidSeconds() > 0
-                ? new Date(creationDate.getTime() + key.getValidSeconds() * 1000) : null;
+        Date expiryDate = getExpirationTime(key);
 
         Date now = new Date();
         return creationDate.after(now) || (expiryDate != null && expiryDate.before(now));
     }
 
+    /** Returns the expiration time of the given key, null if it doesn't expire. */
+    public static Date getExpirationTime(PGPPublicKey key) {
+        return key.getValidSeconds() > 0
+                ? new Date(key.getCreationTime().getTime() + key.getValidSeconds() * 1000) : null;
+    }
+
     /** Converts a PGP public key into a public key. */
     public static byte[] convertPublicKey(byte[] publicKeyData) throws PGPException, IOException {
         PGPPublicKey pk = PGPUtils.getMasterKey(publicKeyData);
@@ -298,8 +303,8 @@ public class PGPUtils {
             // Modifiable version of the old key, which we merge stuff into (keep old for comparison)
             PGPPublicKey modified = resultKey;
 
-            // Iterate certifications
-            for (@SuppressWarnings("unchecked") Iterator<PGPSignature> j = key.getSignatures(); j.hasNext(); ) {
+            // Iterate key signatures (user ID certifications are merged below)
+            for (@SuppressWarnings("unchecked") Iterator<PGPSignature> j = key.getKeySignatures(); j.hasNext(); ) {
                 PGPSignature cert = j.next();
                 byte[] encoded = cert.getEncoded();
                 // Known cert, skip it
@@ -0,0 +1,130 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Limits how many callers can run a CPU-bound task at the same time.
+ * Tasks run on the caller thread, there is no handoff to other threads:
+ * callers beyond the limit wait up to a configured time to be admitted,
+ * after which they are rejected. Since waiting callers are blocked, the
+ * wait should be kept short; the number of callers that can wait is bounded
+ * by the number of threads calling in (e.g. the SASL processing threads).
+ * <pre>
+ * try (AdmissionControl.Permit permit = admission.enter()) {
+ *     // run the task
+ * }
+ * </pre>
+ */
+public class AdmissionControl {
+
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long admissionWait;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAdder totalAdmissionWait = new LongAdder();
+
+    /** An admitted task, to be closed when the task completes. */
+    public final class Permit implements AutoCloseable {
+        private final long start;
+        private boolean closed;
+
+        Permit(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                totalLatency.add(System.nanoTime() - start);
+                completed.increment();
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * @param maxConcurrent max number of tasks running at the same time
+     * @param admissionWait max time in milliseconds a caller will wait to be admitted, 0 to reject immediately
+     */
+    public AdmissionControl(int maxConcurrent, long admissionWait) {
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.admissionWait = admissionWait;
+    }
+
+    /**
+     * Waits for the task to be admitted.
+     * @throws RejectedExecutionException if the task was not admitted in time
+     */
+    public Permit enter() throws InterruptedException {
+        long start = System.nanoTime();
+        boolean admitted = admissionWait > 0 ?
+                permits.tryAcquire(admissionWait, TimeUnit.MILLISECONDS) : permits.tryAcquire();
+        if (!admitted) {
+            rejected.increment();
+            throw new RejectedExecutionException("too many concurrent tasks");
+        }
+
+        totalAdmissionWait.add(System.nanoTime() - start);
+        return new Permit(start);
+    }
+
+    /** Number of callers waiting to be admitted. */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    /** Number of tasks being run right now. */
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /** Number of tasks completed so far, successfully or not. */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    /** Number of tasks rejected so far. */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /** Average time in milliseconds from admission request to completion. */
+    public double getAverageLatency() {
+        long count = completed.sum();
+        return count > 0 ? totalLatency.sum() / 1e6 / count : 0;
+    }
+
+    /** Average time in milliseconds tasks waited to be admitted. */
+    public double getAverageAdmissionWait() {
+        long count = completed.sum();
+        return count > 0 ? totalAdmissionWait.sum() / 1e6 / count : 0;
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * A thread-safe counting Bloom filter with 8-bit saturating counters.
+ * Unlike a plain Bloom filter, items can be removed. A counter that reached
+ * its maximum value is never decremented again, so the filter can give
+ * false positives but never false negatives.
+ */
+public class CountingBloomFilter {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final int MAX_COUNT = 0xff;
+
+    /** Four 8-bit counters packed in each integer. */
+    private final AtomicIntegerArray counters;
+    private final int size;
+    private final int hashCount;
+
+    /**
+     * @param size number of counters
+     * @param hashCount number of counters used by each item
+     */
+    public CountingBloomFilter(int size, int hashCount) {
+        this.size = size;
+        this.hashCount = hashCount;
+        this.counters = new AtomicIntegerArray((size + 3) / 4);
+    }
+
+    /** Returns false if the item was definitely never added (or was removed as many times). */
+    public boolean mightContain(String item) {
+        long[] h = hash(item);
+        for (int i = 0; i < hashCount; i++) {
+            if (get(index(h[0], h[1], i)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void add(String item, int count) {
+        long[] h = hash(item);
+        for (int i = 0; i < hashCount; i++) {
+            update(index(h[0], h[1], i), count);
+        }
+    }
+
+    public void remove(String item, int count) {
+        long[] h = hash(item);
+        for (int i = 0; i < hashCount; i++) {
+            update(index(h[0], h[1], i), -count);
+        }
+    }
+
+    private long[] hash(String item) {
+        byte[] bytes = HASH.hashString(item, StandardCharsets.UTF_8).asBytes();
+        long h1 = 0, h2 = 0;
+        for (int i = 0; i < 8; i++) {
+            h1 = (h1 << 8) | (bytes[i] & 0xff);
+            h2 = (h2 << 8) | (bytes[i + 8] & 0xff);
+        }
+        return new long[] { h1, h2 };
+    }
+
+    /** Double hashing: the i-th counter for an item. */
+    private int index(long h1, long h2, int i) {
+        return (int) (((h1 + i * h2) & Long.MAX_VALUE) % size);
+    }
+
+    private int get(int index) {
+        return (counters.get(index >> 2) >>> ((index & 3) << 3)) & MAX_COUNT;
+    }
+
+    private void update(int index, int delta) {
+        int slot = index >> 2;
+        int shift = (index & 3) << 3;
+        while (true) {
+            int packed = counters.get(slot);
+            int value = (packed >>> shift) & MAX_COUNT;
+            // saturated counters stay saturated
+            if (value == MAX_COUNT)
+                return;
+
+            int newValue = Math.max(0, Math.min(MAX_COUNT, value + delta));
+            if (newValue == value)
+                return;
+
+            int newPacked = (packed & ~(MAX_COUNT << shift)) | (newValue << shift);
+            if (counters.compareAndSet(slot, packed, newPacked))
+                return;
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A hashed timing wheel for a large number of coarse-grained timeouts.
+ * Scheduling and cancelling are O(1) and never block: both are queued and
+ * applied by the single wheel thread on its next tick. Items expiring on the
+ * same tick are handed to the expiration handler in a single batch.
+ */
+public class HashedTimingWheel<T> {
+    private static final Logger log = Logger.getLogger(HashedTimingWheel.class.getName());
+
+    /** Receives items whose timeout has expired, called by the wheel thread. */
+    public interface ExpirationHandler<T> {
+        void expired(List<T> items);
+    }
+
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    /** A scheduled timeout. Bucket links are only touched by the wheel thread. */
+    public static final class Timeout<T> {
+        private final HashedTimingWheel<T> wheel;
+        private final T item;
+        private final long deadline;
+        volatile int state = ST_PENDING;
+
+        private long remainingRounds;
+        private Bucket<T> bucket;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        Timeout(HashedTimingWheel<T> wheel, T item, long deadline) {
+            this.wheel = wheel;
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Cancels this timeout.
+         * @return false if the timeout has already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_PENDING, ST_CANCELLED))
+                return false;
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    /** A doubly-linked list of timeouts. */
+    private static final class Bucket<T> {
+        private Timeout<T> head;
+        private Timeout<T> tail;
+
+        void add(Timeout<T> timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            else
+                tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire(List<T> expired) {
+            Timeout<T> timeout = head;
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (STATE_UPDATER.compareAndSet(timeout, ST_PENDING, ST_EXPIRED))
+                        expired.add(timeout.item);
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private final Bucket<T>[] wheel;
+    private final int mask;
+    private final long tickDuration;
+    private final ExpirationHandler<T> handler;
+
+    private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout<T>> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+
+    private final Thread workerThread;
+    private final long startTime;
+    private volatile boolean running = true;
+
+    /**
+     * @param name name of the wheel thread
+     * @param tickDuration duration of a tick, that is the timeouts resolution
+     * @param unit unit of tickDuration
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param handler handler for expired items
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int wheelSize, ExpirationHandler<T> handler) {
+        if (tickDuration <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("tick duration and wheel size must be positive");
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket<>();
+        mask = size - 1;
+        this.tickDuration = unit.toNanos(tickDuration);
+        this.handler = handler;
+
+        startTime = System.nanoTime();
+        workerThread = new Thread(this::run, name);
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    /** Schedules a timeout for the given item. */
+    public Timeout<T> schedule(T item, long delay, TimeUnit unit) {
+        Timeout<T> timeout = new Timeout<>(this, item, System.nanoTime() - startTime + unit.toNanos(delay));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /** Number of scheduled timeouts not expired or cancelled yet (approximate). */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    public void stop() {
+        running = false;
+        workerThread.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        List<T> expired = new ArrayList<>();
+        while (running) {
+            long deadline = tickDuration * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                catch (InterruptedException e) {
+                    if (!running)
+                        break;
+                }
+                continue;
+            }
+
+            try {
+                removeCancelled();
+                transferScheduled(tick);
+                wheel[(int) (tick & mask)].expire(expired);
+                if (!expired.isEmpty()) {
+                    pending.addAndGet(-expired.size());
+                    handler.expired(expired);
+                }
+            }
+            catch (Exception e) {
+                log.log(Level.WARNING, "error processing expired timeouts", e);
+            }
+            finally {
+                expired.clear();
+            }
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout<T> timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            // might still be in the scheduled queue, it will be skipped then
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+            pending.decrementAndGet();
+        }
+    }
+
+    private void transferScheduled(long currentTick) {
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state != ST_PENDING)
+                continue;
+
+            long ticks = timeout.deadline / tickDuration;
+            timeout.remainingRounds = (ticks - currentTick) / wheel.length;
+            // already late timeouts go in the current bucket
+            long target = Math.max(ticks, currentTick);
+            wheel[(int) (target & mask)].add(timeout);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded executor running tasks with the same key in submission order.
+ * Tasks are spread over a fixed number of single-threaded lanes by the hash
+ * of their key; each lane has its own bounded queue, and tasks not fitting in
+ * it are rejected.
+ */
+public class KeyedExecutor {
+
+    private final ThreadPoolExecutor[] lanes;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param name thread name prefix
+     * @param threads number of lanes
+     * @param queueSize max number of tasks waiting in each lane
+     */
+    public KeyedExecutor(String name, int threads, int queueSize) {
+        lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            String threadName = name + "-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), r -> {
+                        Thread t = new Thread(r, threadName);
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * Queues a task after all other tasks with the same key.
+     * @return false if the queue was full and the task was rejected
+     */
+    public boolean execute(Object key, Runnable task) {
+        try {
+            lanes[(key.hashCode() & Integer.MAX_VALUE) % lanes.length].execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /** Number of tasks waiting to be run. */
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            size += lane.getQueue().size();
+        }
+        return size;
+    }
+
+    /** Number of tasks rejected so far. */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /** Number of tasks completed so far. */
+    public long getCompletedCount() {
+        long count = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            count += lane.getCompletedTaskCount();
+        }
+        return count;
+    }
+
+    /** Stops accepting tasks, waiting for queued tasks to complete. */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,3 @@
+ALTER TABLE `messages`
+  MODIFY `stanza` mediumblob NOT NULL,
+  ADD `format` tinyint unsigned NOT NULL DEFAULT 0;
@@ -0,0 +1,2 @@
+ALTER TABLE `messages`
+  ADD `sender` varchar(3071) DEFAULT NULL;
@@ -15,7 +15,12 @@ import tigase.xmpp.impl.ProcessorTestCase;
 
 import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.junit.Assert.*;
 
@@ -135,8 +140,202 @@ public class ClientStateIndicationTest extends ProcessorTestCase {
         results.offer(m);
         results.clear();
         csi.stopped(session1, results, new HashMap<>());
+        // the delayed receipt is redelivered to the bare JID
         Packet[] processed = results.toArray(new Packet[results.size()]);
-        Assert.assertEquals(0, processed.length);
+        Assert.assertEquals(1, processed.length);
+        Assert.assertNull(processed[0].getPacketTo());
+    }
+
+    @Test
+    public void testQueueBudget() throws TigaseStringprepException {
+        LongAdder packets = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        ClientStateIndication.InternalQueue queue = new ClientStateIndication.InternalQueue(3, Integer.MAX_VALUE, 0, packets, bytes);
+
+        // presence from the same sender replaces the queued one
+        queue.putPresence(Packet.packetInstance("presence", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.available));
+        queue.putPresence(Packet.packetInstance("presence", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.unavailable));
+        queue.putPresence(Packet.packetInstance("presence", "sender-2@localhost/res1", "recipient-1@localhost/res1", StanzaType.available));
+        assertEquals(2, queue.size());
+        assertFalse(queue.needsFlush());
+        assertEquals(2, packets.sum());
+        assertEquals(queue.bytes(), bytes.sum());
+
+        queue.putMessage(Packet.packetInstance("message", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.chat));
+        assertTrue(queue.needsFlush());
+
+        ClientStateIndication.InternalQueue.Snapshot queued = queue.drain(true);
+        assertEquals(3, queued.size());
+        assertEquals(StanzaType.unavailable, queued.packets()[0].getType());
+        assertEquals(0, packets.sum());
+        assertEquals(0, bytes.sum());
+
+        // closed queue won't accept packets
+        assertFalse(queue.putMessage(Packet.packetInstance("message", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.chat)));
+        assertNull(queue.drain(false));
+    }
+
+    @Test
+    public void testQueueByteBudget() throws TigaseStringprepException {
+        Packet p = Packet.packetInstance("presence", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.available);
+        ClientStateIndication.InternalQueue queue = new ClientStateIndication.InternalQueue(50,
+                ClientStateIndication.InternalQueue.estimateSize(p) + 1, 0, new LongAdder(), new LongAdder());
+        queue.putPresence(p);
+        assertFalse(queue.needsFlush());
+        queue.putPresence(Packet.packetInstance("presence", "sender-2@localhost/res1", "recipient-1@localhost/res1", StanzaType.available));
+        assertTrue(queue.needsFlush());
+    }
+
+    @Test
+    public void testQueueSizeLimit() throws TigaseStringprepException {
+        ClientStateIndication.InternalQueue queue = new ClientStateIndication.InternalQueue(Integer.MAX_VALUE,
+                Integer.MAX_VALUE, 0, new LongAdder(), new LongAdder());
+        for (int i = 1; i < ClientStateIndication.MAX_QUEUE_SIZE_LIMIT; i++) {
+            queue.putMessage(Packet.packetInstance("message", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.chat));
+        }
+        assertFalse(queue.needsFlush());
+        queue.putMessage(Packet.packetInstance("message", "sender-1@localhost/res1", "recipient-1@localhost/res1", StanzaType.chat));
+        assertTrue(queue.needsFlush());
+    }
+
+    @Test
+    public void testReceiptsToInactive() throws XMPPException, TigaseStringprepException {
+        String recipient = "recipient-1@localhost";
+        JID recp1 = JID.jidInstanceNS(recipient + "/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        XMPPResourceConnection session1 = getSession(connId1, recp1);
+
+        enableCSI(session1);
+
+        // the same receipt twice, then another one
+        ArrayDeque<Packet> results = new ArrayDeque<>();
+        results.offer(receipt("sender-1@localhost/res1", recp1, connId1, "msg-1"));
+        results.offer(receipt("sender-1@localhost/res1", recp1, connId1, "msg-1"));
+        results.offer(receipt("sender-1@localhost/res1", recp1, connId1, "msg-2"));
+        csi.filter(results.peek(), session1, null, results);
+        assertTrue(results.isEmpty());
+
+        ClientStateIndication.InternalQueue queue = (ClientStateIndication.InternalQueue)
+                session1.getSessionData(ClientStateIndication.SESSION_QUEUE);
+        assertEquals(2, queue.size());
+
+        // receipts are flushed in one go when the client becomes active
+        results.addAll(disableCSI(session1));
+        assertEquals(2, results.size());
+        for (Packet p : results) {
+            assertEquals(connId1, p.getPacketTo());
+            assertTrue(KontalkIOProcessor.isAckRequired(p));
+        }
+    }
+
+    @Test
+    public void testReceiptsCap() throws TigaseStringprepException {
+        ClientStateIndication.InternalQueue queue = new ClientStateIndication.InternalQueue(50, Integer.MAX_VALUE, 2,
+                new LongAdder(), new LongAdder());
+        JID recp1 = JID.jidInstanceNS("recipient-1@localhost/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        assertEquals(ClientStateIndication.InternalQueue.RECEIPT_QUEUED,
+                queue.putReceipt(receipt("sender-1@localhost/res1", recp1, connId1, "msg-1"), "msg-1"));
+        assertEquals(ClientStateIndication.InternalQueue.RECEIPT_QUEUED,
+                queue.putReceipt(receipt("sender-2@localhost/res1", recp1, connId1, "msg-1"), "msg-1"));
+        assertTrue(queue.needsFlush());
+        assertEquals(2, queue.drain(true).receipts());
+        assertEquals(ClientStateIndication.InternalQueue.RECEIPT_CLOSED,
+                queue.putReceipt(receipt("sender-1@localhost/res1", recp1, connId1, "msg-2"), "msg-2"));
+    }
+
+    @Test
+    public void testPresenceDiffing() throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("presence-diffing", true);
+        csi.init(settings);
+
+        String recipient = "recipient-1@localhost";
+        JID recp1 = JID.jidInstanceNS(recipient + "/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        XMPPResourceConnection session1 = getSession(connId1, recp1);
+
+        enableCSI(session1);
+        ArrayDeque<Packet> results = new ArrayDeque<>();
+        Packet p = Packet.packetInstance("presence", "sender-1@localhost/res1", recp1.toString(), StanzaType.available);
+        p.setPacketTo(connId1);
+        results.offer(p);
+        csi.filter(p, session1, null, results);
+        assertEquals(1, disableCSI(session1).size());
+
+        // contact flapped while inactive, client has already seen the last presence
+        enableCSI(session1);
+        results.clear();
+        p = Packet.packetInstance("presence", "sender-1@localhost/res1", recp1.toString(), StanzaType.unavailable);
+        p.setPacketTo(connId1);
+        results.offer(p);
+        csi.filter(p, session1, null, results);
+        p = Packet.packetInstance("presence", "sender-1@localhost/res1", recp1.toString(), StanzaType.available);
+        p.setPacketTo(connId1);
+        results.offer(p);
+        csi.filter(p, session1, null, results);
+        assertTrue(disableCSI(session1).isEmpty());
+    }
+
+    @Test
+    public void testMaxDelayFlush() throws Exception {
+        BlockingQueue<Packet> flushed = initMaxDelay();
+        String recipient = "recipient-1@localhost";
+        JID recp1 = JID.jidInstanceNS(recipient + "/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        XMPPResourceConnection session1 = getSession(connId1, recp1);
+
+        enableCSI(session1);
+        Packet p = queuePresence(session1, recp1, connId1);
+
+        // flushed by the scheduler thread
+        assertSame(p, flushed.poll(5, TimeUnit.SECONDS));
+        assertTrue(disableCSI(session1).isEmpty());
+    }
+
+    @Test
+    public void testMaxDelayCancelledOnActive() throws Exception {
+        BlockingQueue<Packet> flushed = initMaxDelay();
+        String recipient = "recipient-1@localhost";
+        JID recp1 = JID.jidInstanceNS(recipient + "/res1");
+        JID connId1 = JID.jidInstanceNS("c2s@localhost/recipient1-res1");
+        XMPPResourceConnection session1 = getSession(connId1, recp1);
+
+        enableCSI(session1);
+        Packet p = queuePresence(session1, recp1, connId1);
+
+        // going active flushes the queue right away
+        Queue<Packet> results = disableCSI(session1);
+        assertEquals(1, results.size());
+        assertSame(p, results.poll());
+        assertNull(flushed.poll(3, TimeUnit.SECONDS));
+    }
+
+    /** Enables a max delay of one second, returning the queue of packets flushed by the scheduler. */
+    private BlockingQueue<Packet> initMaxDelay() throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("max-delay", 1);
+        csi.init(settings);
+        BlockingQueue<Packet> flushed = new LinkedBlockingQueue<>();
+        csi.asyncResultHandler = flushed::offer;
+        return flushed;
+    }
+
+    private Packet queuePresence(XMPPResourceConnection session, JID to, JID connId) throws Exception {
+        ArrayDeque<Packet> results = new ArrayDeque<>();
+        Packet p = Packet.packetInstance("presence", "sender-1@localhost/res1", to.toString(), StanzaType.available);
+        p.setPacketTo(connId);
+        results.offer(p);
+        csi.filter(p, session, null, results);
+        assertTrue(results.isEmpty());
+        return p;
+    }
+
+    private Packet receipt(String from, JID to, JID connId, String id) throws TigaseStringprepException {
+        Packet m = Packet.packetInstance("message", from, to.toString(), StanzaType.chat);
+        m.getElement().addChild(new Element("received", new String[]{ "xmlns", "id" }, new String[] { "urn:xmpp:receipts", id }));
+        m.setPacketTo(connId);
+        return m;
     }
 
     private Queue<Packet> enableCSI(XMPPResourceConnection session) throws TigaseStringprepException, XMPPException {
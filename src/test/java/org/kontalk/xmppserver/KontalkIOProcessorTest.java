@@ -0,0 +1,267 @@
+package org.kontalk.xmppserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kontalk.xmppserver.messages.OfflineMessages;
+import org.kontalk.xmppserver.messages.StanzaCodec;
+import org.kontalk.xmppserver.util.HashedTimingWheel;
+import tigase.server.Packet;
+import tigase.server.xmppclient.StreamManagementIOProcessor;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+import tigase.xmpp.XMPPIOService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for ack request coalescing, unacked queues and offline windows in {@link KontalkIOProcessor}. */
+public class KontalkIOProcessorTest {
+    private static final int MAX_PENDING = 3;
+    private static final long MAX_DELAY = 50;
+
+    private XMPPIOService<Object> service;
+    private KontalkIOProcessor.MyOutQueue queue;
+    private HashedTimingWheel<KontalkIOProcessor.MyOutQueue> scheduler;
+    private final List<XMPPIOService> delayedRequests = new CopyOnWriteArrayList<>();
+    private final CountDownLatch delayedRequest = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        service = new XMPPIOService<>();
+        queue = new KontalkIOProcessor.MyOutQueue(null, new LongAdder());
+        queue.bind(service);
+        scheduler = new HashedTimingWheel<>("test ack request scheduler", 10, TimeUnit.MILLISECONDS, 64,
+                queues -> {
+                    for (KontalkIOProcessor.MyOutQueue q : queues) {
+                        XMPPIOService s = q.takeDelayedAckRequest();
+                        if (s != null) {
+                            delayedRequests.add(s);
+                            delayedRequest.countDown();
+                        }
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testRequestAfterMaxPending() {
+        for (int i = 1; i < MAX_PENDING; i++) {
+            queue.append(message(i));
+            assertFalse(coalesce(false));
+        }
+        queue.append(message(MAX_PENDING));
+        assertTrue(coalesce(false));
+
+        // nothing new to request
+        assertFalse(coalesce(false));
+        assertEquals(MAX_PENDING, queue.messagesWaitingForAck());
+    }
+
+    @Test
+    public void testDelayedRequest() throws Exception {
+        queue.append(message(1));
+        assertFalse(coalesce(false));
+
+        assertTrue(delayedRequest.await(5, TimeUnit.SECONDS));
+        assertEquals(1, delayedRequests.size());
+        assertSame(service, delayedRequests.get(0));
+
+        // already requested
+        assertNull(queue.takeDelayedAckRequest());
+        assertFalse(coalesce(false));
+    }
+
+    @Test
+    public void testExplicitRequestCancelsDelay() throws Exception {
+        queue.append(message(1));
+        assertFalse(coalesce(false));
+
+        // an ack request sent for other reasons covers the message
+        assertTrue(coalesce(true));
+        assertFalse(delayedRequest.await(MAX_DELAY * 4, TimeUnit.MILLISECONDS));
+        assertTrue(delayedRequests.isEmpty());
+        assertNull(queue.takeDelayedAckRequest());
+    }
+
+    @Test
+    public void testSerializedEntryRestoresPacket() {
+        Packet packet = message(1);
+        packet.setPacketFrom(JID.jidInstanceNS("sess-man@example.com"));
+        packet.setPacketTo(JID.jidInstanceNS("c2s@example.com/conn1"));
+
+        KontalkIOProcessor.SerializedEntry entry =
+                new KontalkIOProcessor.SerializedEntry(packet, StanzaCodec.forName("deflate"), true);
+        Packet restored = entry.getPacketWithStamp();
+        assertEquals(packet.getStanzaFrom(), restored.getStanzaFrom());
+        assertEquals(packet.getStanzaTo(), restored.getStanzaTo());
+        assertEquals(packet.getPacketFrom(), restored.getPacketFrom());
+        assertEquals(packet.getPacketTo(), restored.getPacketTo());
+        assertTrue(restored.wasProcessedBy(KontalkIOProcessor.XMLNS));
+
+        Element elem = restored.getElement();
+        assertEquals("message", elem.getName());
+        assertEquals("1", elem.getAttributeStaticStr("id"));
+        assertEquals("user@example.com", elem.getAttributeStaticStr("to"));
+        assertEquals("test 1", elem.getChildCData(new String[] { "message", "body" }));
+        // body and the added delay
+        assertEquals(2, elem.getChildren().size());
+        assertEquals(1, countDelays(restored));
+
+        // every resend decodes a new copy
+        assertEquals(1, countDelays(entry.getPacketWithStamp()));
+    }
+
+    @Test
+    public void testSerializedEntryKeepsDelay() {
+        Packet packet = message(1);
+        packet.getElement().addChild(new Element("delay", new String[] { "xmlns", "stamp" },
+                new String[] { "urn:xmpp:delay", "2017-01-01T10:00:00.000Z" }));
+
+        Packet restored = new KontalkIOProcessor.SerializedEntry(packet, StanzaCodec.forName("xml"), true)
+                .getPacketWithStamp();
+        assertEquals(1, countDelays(restored));
+        assertEquals("2017-01-01T10:00:00.000Z",
+                restored.getElement().getChild("delay", "urn:xmpp:delay").getAttributeStaticStr("stamp"));
+    }
+
+    @Test
+    public void testAckSerializedEntries() {
+        LongAdder ackRequired = new LongAdder();
+        KontalkIOProcessor.MyOutQueue serialized =
+                new KontalkIOProcessor.MyOutQueue(StanzaCodec.forName("deflate"), ackRequired);
+        serialized.append(message(1));
+        serialized.append(Packet.packetInstance(new Element("presence"),
+                JID.jidInstanceNS("sender@example.com/res"), JID.jidInstanceNS("user@example.com")));
+        serialized.append(message(2));
+        for (StreamManagementIOProcessor.OutQueue.Entry entry : serialized.getQueue()) {
+            assertTrue(entry instanceof KontalkIOProcessor.SerializedEntry);
+        }
+        assertEquals(2, serialized.messagesWaitingForAck());
+        assertEquals(2, ackRequired.sum());
+
+        // first message and the presence
+        serialized.ack(2);
+        assertEquals(1, serialized.getQueue().size());
+        assertEquals(1, serialized.messagesWaitingForAck());
+
+        serialized.ack(3);
+        assertTrue(serialized.getQueue().isEmpty());
+        assertEquals(0, serialized.messagesWaitingForAck());
+    }
+
+    @Test
+    public void testWindowReleasedOnAck() {
+        TestService conn = new TestService();
+        queue.bind(conn);
+        queue.append(message(1));
+        queue.append(windowEnd(message(2)));
+        queue.append(message(3));
+
+        queue.ack(1);
+        assertTrue(conn.received.isEmpty());
+
+        // window end acked with the message after it
+        queue.ack(3);
+        assertEquals(1, conn.received.size());
+        assertTrue(OfflineMessages.isWindowElement(conn.received.get(0)));
+        assertNull(conn.received.get(0).getAttributeStaticStr("action"));
+
+        // nothing else to release
+        queue.ack(3);
+        queue.bind(conn);
+        assertEquals(1, conn.received.size());
+    }
+
+    @Test
+    public void testWindowReleasedOnResume() {
+        TestService oldConn = new TestService();
+        queue.bind(oldConn);
+        queue.append(windowEnd(message(1)));
+        oldConn.connected = false;
+
+        // acked while resuming: the old connection is gone
+        queue.ack(1);
+        assertTrue(oldConn.received.isEmpty());
+
+        TestService newConn = new TestService();
+        queue.bind(newConn);
+        assertEquals(1, newConn.received.size());
+        assertTrue(OfflineMessages.isWindowElement(newConn.received.get(0)));
+
+        queue.bind(newConn);
+        assertEquals(1, newConn.received.size());
+        assertTrue(oldConn.received.isEmpty());
+    }
+
+    @Test
+    public void testWindowEndMarkerRemoved() {
+        queue.append(windowEnd(message(1)));
+        Packet queued = queue.getQueue().peekLast().getPacketWithStamp();
+        assertNull(queued.getElement().getChild(OfflineMessages.WINDOW_END_ELEM_NAME, OfflineMessages.WINDOW_XMLNS));
+    }
+
+    @Test
+    public void testClientWindowElementDropped() {
+        TestService conn = new TestService();
+        KontalkIOProcessor processor = new KontalkIOProcessor();
+        assertTrue(processor.processIncoming(conn, OfflineMessages.createWindowRequest()));
+        assertTrue(processor.processIncoming(conn, OfflineMessages.createWindowEnable()));
+        assertTrue(conn.received.isEmpty());
+    }
+
+    private static Packet windowEnd(Packet packet) {
+        packet.getElement().addChild(new Element(OfflineMessages.WINDOW_END_ELEM_NAME,
+                new String[] { "xmlns" }, new String[] { OfflineMessages.WINDOW_XMLNS }));
+        return packet;
+    }
+
+    /** Records injected packets. */
+    private static final class TestService extends XMPPIOService<Object> {
+        final List<Packet> received = new ArrayList<>();
+        volatile boolean connected = true;
+
+        @Override
+        public void addReceivedPacket(Packet packet) {
+            received.add(packet);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+    }
+
+    private static int countDelays(Packet packet) {
+        int count = 0;
+        for (Element child : packet.getElement().getChildren()) {
+            if (child.getName().equals("delay"))
+                count++;
+        }
+        return count;
+    }
+
+    private boolean coalesce(boolean requested) {
+        return queue.coalesceAckRequest(requested, MAX_PENDING, MAX_DELAY, scheduler);
+    }
+
+    private static Packet message(int id) {
+        Element message = new Element("message", new String[] { "id", "to" },
+                new String[] { String.valueOf(id), "user@example.com" });
+        message.addChild(new Element("body", "test " + id));
+        return Packet.packetInstance(message, JID.jidInstanceNS("sender@example.com/res"),
+                JID.jidInstanceNS("user@example.com"));
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.kontalk.xmppserver;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.junit.Before;
+import org.junit.Test;
+import org.kontalk.xmppserver.pgp.PGPLocalKeyring;
+import org.kontalk.xmppserver.pgp.PGPSigner;
+import org.kontalk.xmppserver.pgp.PGPUtils;
+import tigase.xmpp.BareJID;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for the validation cache of {@link KontalkKeyring}. */
+public class KontalkKeyringTest {
+    private static final String DOMAIN = "example.com";
+    private static final String USER_UID = "Test user <user@example.com>";
+
+    /** In-memory keyring merging imported keys. */
+    private static final class MemoryKeyring implements PGPLocalKeyring {
+        final Map<String, PGPPublicKeyRing> keys = new HashMap<>();
+
+        @Override
+        public PGPPublicKeyRing getKey(String fingerprint) {
+            return keys.get(fingerprint.toUpperCase());
+        }
+
+        @Override
+        public PGPPublicKeyRing importKey(InputStream in) throws IOException, PGPException {
+            return importKey(PGPUtils.readPublicKeyring(in));
+        }
+
+        @Override
+        public PGPPublicKeyRing importKey(byte[] data) throws IOException, PGPException {
+            return importKey(PGPUtils.readPublicKeyring(data));
+        }
+
+        private PGPPublicKeyRing importKey(PGPPublicKeyRing key) throws IOException, PGPException {
+            String fpr = PGPUtils.getFingerprint(key);
+            PGPPublicKeyRing old = keys.get(fpr);
+            PGPPublicKeyRing merged = old != null ? PGPUtils.merge(old, key) : key;
+            keys.put(fpr, merged);
+            return merged;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private PGPSigner signer;
+    private KontalkKeyring keyring;
+
+    @Before
+    public void setUp() throws Exception {
+        PGPKeyRingGenerator server = generateKey("Test server <test@example.com>", new Date(), 0);
+        signer = new PGPSigner(server.generateSecretKeyRing(), null);
+        keyring = new KontalkKeyring(DOMAIN, new MemoryKeyring(), signer, server.generatePublicKeyRing(),
+                TimeUnit.MINUTES.toMillis(10), 100);
+    }
+
+    @Test
+    public void testValidationHit() throws Exception {
+        PGPPublicKeyRing signed = signer.signKey(generateKey(USER_UID, new Date(), 0).generatePublicKeyRing());
+
+        KontalkUser user = keyring.authenticate(signed.getEncoded());
+        assertNotNull(user);
+        assertEquals("user@example.com", user.getJID().toString());
+        assertEquals(0, keyring.getValidationHits());
+        assertEquals(1, keyring.getValidationMisses());
+
+        assertNotNull(keyring.authenticate(signed.getEncoded()));
+        assertEquals(1, keyring.getValidationHits());
+        assertEquals(1, keyring.getValidationMisses());
+    }
+
+    @Test
+    public void testValidationDigestMismatch() throws Exception {
+        PGPPublicKeyRing key = generateKey(USER_UID, new Date(), 0).generatePublicKeyRing();
+        assertNull(keyring.authenticate(key.getEncoded()));
+
+        // merging the server certification changes the keyring
+        assertNotNull(keyring.authenticate(signer.signKey(key).getEncoded()));
+        assertEquals(0, keyring.getValidationHits());
+        assertEquals(2, keyring.getValidationMisses());
+    }
+
+    @Test
+    public void testRevokedInvalidation() throws Exception {
+        PGPKeyRingGenerator generator = generateKey(USER_UID, new Date(), 0);
+        PGPSecretKeyRing secret = generator.generateSecretKeyRing();
+        PGPPublicKeyRing key = generator.generatePublicKeyRing();
+        String fpr = PGPUtils.getFingerprint(key);
+
+        assertNotNull(keyring.authenticate(signer.signKey(key).getEncoded()));
+        assertTrue(keyring.getValidationExpiry(fpr) > 0);
+
+        PGPPublicKeyRing revoked = revoke(secret, key);
+        assertTrue(keyring.revoked(revoked.getEncoded(), fpr));
+        assertEquals(0, keyring.getValidationExpiry(fpr));
+        assertNull(keyring.authenticate(signer.signKey(key).getEncoded()));
+    }
+
+    @Test
+    public void testIsValid() throws Exception {
+        PGPKeyRingGenerator generator = generateKey(USER_UID, new Date(), 0);
+        PGPSecretKeyRing secret = generator.generateSecretKeyRing();
+        PGPPublicKeyRing key = generator.generatePublicKeyRing();
+
+        KontalkUser user = keyring.authenticate(signer.signKey(key).getEncoded());
+        assertNotNull(user);
+        assertTrue(keyring.isValid(user));
+        assertFalse(keyring.isValid(new KontalkUser(BareJID.bareJIDInstanceNS("other@example.com"), user.getFingerprint())));
+
+        // a user logged in with a key revoked afterwards
+        keyring.revoked(revoke(secret, key).getEncoded(), user.getFingerprint());
+        assertFalse(keyring.isValid(user));
+    }
+
+    @Test
+    public void testValidationExpiresWithKey() throws Exception {
+        // key expires in one minute, well before the cache TTL
+        long now = System.currentTimeMillis();
+        PGPPublicKeyRing key = generateKey(USER_UID, new Date(now - TimeUnit.HOURS.toMillis(1)),
+                TimeUnit.MINUTES.toSeconds(61)).generatePublicKeyRing();
+        String fpr = PGPUtils.getFingerprint(key);
+
+        assertNotNull(keyring.authenticate(signer.signKey(key).getEncoded()));
+        assertEquals(PGPUtils.getExpirationTime(PGPUtils.getMasterKey(key)).getTime(), keyring.getValidationExpiry(fpr));
+    }
+
+    private static PGPPublicKeyRing revoke(PGPSecretKeyRing secret, PGPPublicKeyRing key) throws PGPException {
+        PGPSignatureGenerator sigGenerator = new PGPSignatureGenerator(new BcPGPContentSignerBuilder(
+                PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256));
+        sigGenerator.init(PGPSignature.KEY_REVOCATION, secret.getSecretKey().extractPrivateKey(null));
+        PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
+        PGPPublicKey revokedKey = PGPPublicKey.addCertification(masterKey, sigGenerator.generateCertification(masterKey));
+        return PGPPublicKeyRing.insertPublicKey(key, revokedKey);
+    }
+
+    private static PGPKeyRingGenerator generateKey(String uid, Date creation, long validSeconds) throws PGPException {
+        RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+        kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 1024, 12));
+        PGPKeyPair keyPair = new BcPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, kpg.generateKeyPair(), creation);
+
+        PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+        if (validSeconds > 0)
+            subpackets.setKeyExpirationTime(false, validSeconds);
+
+        return new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair, uid,
+                new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1), subpackets.generate(), null,
+                new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256), null);
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PresenceFingerprintsTest {
+
+    @Test
+    public void testUpdate() {
+        PresenceFingerprints seen = new PresenceFingerprints();
+        for (long contact = 1; contact <= 1000; contact++) {
+            assertTrue(seen.update(contact, contact * 31));
+        }
+        assertEquals(1000, seen.size());
+
+        for (long contact = 1; contact <= 1000; contact++) {
+            assertFalse(seen.update(contact, contact * 31));
+        }
+        assertTrue(seen.update(500, 42));
+        assertFalse(seen.update(500, 42));
+        assertEquals(1000, seen.size());
+    }
+
+}
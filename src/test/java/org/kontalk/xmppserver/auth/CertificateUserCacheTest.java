@@ -0,0 +1,65 @@
+package org.kontalk.xmppserver.auth;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.kontalk.xmppserver.KontalkUser;
+import tigase.xmpp.BareJID;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link CertificateUserCache}. */
+public class CertificateUserCacheTest {
+    private static final String DOMAIN = "example.com";
+
+    private static HashCode certificate(String data) {
+        return Hashing.sha256().hashBytes(data.getBytes());
+    }
+
+    @Test
+    public void testGet() {
+        CertificateUserCache cache = new CertificateUserCache(10, TimeUnit.HOURS.toMillis(1));
+        KontalkUser user = new KontalkUser(BareJID.bareJIDInstanceNS("user@" + DOMAIN), "AABBCC");
+        long expires = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+
+        assertNull(cache.get(certificate("cert1"), DOMAIN));
+        cache.put(certificate("cert1"), DOMAIN, user, expires);
+        assertSame(user, cache.get(certificate("cert1"), DOMAIN));
+        assertNull(cache.get(certificate("cert2"), DOMAIN));
+
+        // verified for another domain
+        assertNull(cache.get(certificate("cert1"), "other.example.com"));
+        assertNull(cache.get(certificate("cert1"), DOMAIN));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        CertificateUserCache cache = new CertificateUserCache(10, TimeUnit.HOURS.toMillis(1));
+        KontalkUser user = new KontalkUser(BareJID.bareJIDInstanceNS("user@" + DOMAIN), "AABBCC");
+
+        // certificate already expired
+        cache.put(certificate("cert1"), DOMAIN, user, System.currentTimeMillis() - 1);
+        assertNull(cache.get(certificate("cert1"), DOMAIN));
+        assertEquals(0, cache.size());
+
+        // certificate expiring before the cache TTL
+        cache.put(certificate("cert2"), DOMAIN, user, System.currentTimeMillis() + 50);
+        assertSame(user, cache.get(certificate("cert2"), DOMAIN));
+        Thread.sleep(100);
+        assertNull(cache.get(certificate("cert2"), DOMAIN));
+    }
+
+    @Test
+    public void testInvalidate() {
+        CertificateUserCache cache = new CertificateUserCache(10, TimeUnit.HOURS.toMillis(1));
+        KontalkUser user = new KontalkUser(BareJID.bareJIDInstanceNS("user@" + DOMAIN), "AABBCC");
+
+        cache.put(certificate("cert1"), DOMAIN, user, Long.MAX_VALUE);
+        cache.invalidate(certificate("cert1"));
+        assertNull(cache.get(certificate("cert1"), DOMAIN));
+    }
+
+}
@@ -0,0 +1,191 @@
+package org.kontalk.xmppserver.auth;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.kontalk.xmppserver.Security;
+import org.kontalk.xmppserver.pgp.PGPSigner;
+import org.kontalk.xmppserver.pgp.PGPUserID;
+import org.kontalk.xmppserver.pgp.PGPUtils;
+import org.kontalk.xmppserver.util.AdmissionControl;
+import org.kontalk.xmppserver.x509.SubjectPGPPublicKeyInfo;
+import org.kontalk.xmppserver.x509.X509Utils;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Replays a login storm of synthetic bridge certificates through certificate
+ * verification admission control, reporting throughput, latency and
+ * rejections. As in the server, verifications run on a fixed number of
+ * caller threads modelling the SASL processing threads. Each verification
+ * performs the CPU-bound steps of a SASL EXTERNAL login: public key
+ * extraction and matching, keyring parsing and server signature check.
+ * Not a unit test; run it with e.g.:
+ * <pre>java -cp ... org.kontalk.xmppserver.auth.CertificateVerificationLoadHarness [certificates] [keys] [SASL threads] [concurrency] [admission wait ms]</pre>
+ * Set concurrency to 0 to disable admission control for comparison.
+ */
+public class CertificateVerificationLoadHarness {
+    private static final String DOMAIN = "loadtest.kontalk.net";
+
+    public static void main(String[] args) throws Exception {
+        int certificates = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int callers = args.length > 2 ? Integer.parseInt(args[2]) : 4 * Runtime.getRuntime().availableProcessors();
+        int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        long admissionWait = args.length > 4 ? Long.parseLong(args[4]) : 250;
+
+        Security.init();
+
+        System.out.printf("generating %,d keys and %,d certificates...%n", keys, certificates);
+        PGPSecretKeyRing serverKey = generateKeyring(generateKeyPair(), "Kontalk server <server@" + DOMAIN + ">");
+        PGPSigner signer = new PGPSigner(serverKey, null);
+        X509Certificate[] certs = generateCertificates(signer, certificates, keys);
+
+        AdmissionControl admission = concurrency > 0 ? new AdmissionControl(concurrency, admissionWait) : null;
+        PGPPublicKey serverMasterKey = signer.getMasterKey();
+
+        long[] latencies = new long[certificates];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger verified = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong maxWaiting = new AtomicLong();
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        if (admission != null) {
+            monitor.scheduleAtFixedRate(() -> maxWaiting.accumulateAndGet(admission.getWaitingCount(), Math::max),
+                    0, 10, TimeUnit.MILLISECONDS);
+        }
+
+        ExecutorService clients = Executors.newFixedThreadPool(callers);
+        CountDownLatch done = new CountDownLatch(callers);
+        long start = System.nanoTime();
+        for (int i = 0; i < callers; i++) {
+            clients.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < certs.length) {
+                    X509Certificate cert = certs[index];
+                    long callStart = System.nanoTime();
+                    try {
+                        boolean ok;
+                        if (admission != null) {
+                            try (AdmissionControl.Permit permit = admission.enter()) {
+                                ok = verify(cert, serverMasterKey);
+                            }
+                        }
+                        else {
+                            ok = verify(cert, serverMasterKey);
+                        }
+                        (ok ? verified : failed).incrementAndGet();
+                    }
+                    catch (RejectedExecutionException e) {
+                        rejected.incrementAndGet();
+                    }
+                    catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                    latencies[index] = System.nanoTime() - callStart;
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+        monitor.shutdown();
+
+        Arrays.sort(latencies);
+        System.out.printf("SASL threads %d, concurrency %d, admission wait %d ms%n",
+                callers, concurrency, admissionWait);
+        System.out.printf("%,d verified, %,d rejected, %,d failed in %,d ms (%,.0f logins/s)%n",
+                verified.get(), rejected.get(), failed.get(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                certificates / (elapsed / 1e9));
+        System.out.printf("latency ms: p50 %.1f, p95 %.1f, p99 %.1f, max %.1f%n",
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99),
+                latencies[latencies.length - 1] / 1e6);
+        if (admission != null) {
+            System.out.printf("max waiting callers %,d, average admission wait %.1f ms%n",
+                    maxWaiting.get(), admission.getAverageAdmissionWait());
+        }
+    }
+
+    /** Same checks as a login, without touching the keyring storage. */
+    private static boolean verify(X509Certificate cert, PGPPublicKey serverKey) throws Exception {
+        byte[] publicKeyData = X509Utils.getMatchingPublicKey(cert);
+        if (publicKeyData == null)
+            return false;
+
+        PGPPublicKey masterKey = PGPUtils.getMasterKey(publicKeyData);
+        if (masterKey == null || PGPUtils.isRevoked(masterKey) || PGPUtils.isExpired(masterKey))
+            return false;
+
+        PGPUserID uid = PGPUtils.findUserID(masterKey, DOMAIN);
+        return uid != null && PGPUtils.findValidKeySignature(masterKey, uid.toString(), serverKey);
+    }
+
+    private static X509Certificate[] generateCertificates(PGPSigner signer, int count, int keys) throws Exception {
+        KeyPair[] keyPairs = new KeyPair[keys];
+        byte[][] publicKeys = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            keyPairs[i] = generateKeyPair();
+            PGPSecretKeyRing keyring = generateKeyring(keyPairs[i], "User " + i + " <user" + i + "@" + DOMAIN + ">");
+            publicKeys[i] = signer.signKey(publicKeyring(keyring).getEncoded());
+        }
+
+        JcaX509CertificateConverter converter = new JcaX509CertificateConverter().setProvider(Security.PROVIDER);
+        Date notBefore = new Date();
+        Date notAfter = new Date(notBefore.getTime() + TimeUnit.DAYS.toMillis(365));
+        X509Certificate[] certs = new X509Certificate[count];
+        for (int i = 0; i < count; i++) {
+            int k = i % keys;
+            X500Name subject = new X500Name("CN=user" + k + ",EMAILADDRESS=user" + k + "@" + DOMAIN);
+            JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject,
+                    BigInteger.valueOf(i + 1), notBefore, notAfter, subject, keyPairs[k].getPublic());
+            builder.addExtension(SubjectPGPPublicKeyInfo.OID, false, new SubjectPGPPublicKeyInfo(publicKeys[k]));
+            certs[i] = converter.getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA")
+                    .setProvider(Security.PROVIDER).build(keyPairs[k].getPrivate())));
+        }
+        return certs;
+    }
+
+    private static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", Security.PROVIDER);
+        kpg.initialize(2048);
+        return kpg.generateKeyPair();
+    }
+
+    private static PGPSecretKeyRing generateKeyring(KeyPair keyPair, String uid) throws Exception {
+        PGPKeyPair pgpKeyPair = new JcaPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, keyPair, new Date());
+        PGPKeyRingGenerator generator = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, pgpKeyPair, uid,
+                new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1), null, null,
+                new JcaPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256), null);
+        return generator.generateSecretKeyRing();
+    }
+
+    private static PGPPublicKeyRing publicKeyring(PGPSecretKeyRing keyring) {
+        return new PGPPublicKeyRing(Collections.singletonList(keyring.getPublicKey()));
+    }
+
+    private static double percentile(long[] sorted, int percentile) {
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile / 100.0) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+}
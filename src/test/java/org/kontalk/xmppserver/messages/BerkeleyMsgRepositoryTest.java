@@ -0,0 +1,167 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.DBInitException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+
+public class BerkeleyMsgRepositoryTest {
+
+    private BareJID user1;
+    private BareJID user2;
+
+    private BerkeleyMsgRepository repo;
+    private Path home;
+
+    @Before
+    public void setUp() throws Exception {
+        user1 = BareJID.bareJIDInstance("user1@example.com");
+        // same prefix as user1
+        user2 = BareJID.bareJIDInstance("user1@example.com.org");
+
+        home = Files.createTempDirectory("messages");
+        repo = new BerkeleyMsgRepository();
+        repo.initRepository(home.toString(), new HashMap<>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        repo.close();
+        deleteRecursively(home);
+    }
+
+    static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testLoadMessages() throws Exception {
+        repo.storeMessage(user1, message(user1, "1"), null);
+        repo.storeMessage(user2, message(user2, "2"), null);
+        repo.storeMessage(user1, message(user1, "3"), null);
+
+        List<Element> loaded = new ArrayList<>();
+        assertEquals(2, repo.loadMessagesToJID(user1, false, MsgRepository.DEF_PAGE_SIZE, loaded::add));
+        assertEquals("1", loaded.get(0).getChildCData(new String[] { "message", "body" }));
+        assertEquals("3", loaded.get(1).getChildCData(new String[] { "message", "body" }));
+
+        // messages were not deleted
+        assertEquals(2, repo.loadMessagesToJID(user1, true, MsgRepository.DEF_PAGE_SIZE, e -> {}));
+        assertEquals(0, repo.loadMessagesToJID(user1, true, MsgRepository.DEF_PAGE_SIZE, e -> {}));
+        assertEquals(1, repo.loadMessagesToJID(user2, true, MsgRepository.DEF_PAGE_SIZE, e -> {}));
+    }
+
+    @Test
+    public void testExpireMessages() throws Exception {
+        repo.storeMessage(user1, message(user1, "1"), new Date(System.currentTimeMillis() - 1000));
+        repo.storeMessage(user1, message(user1, "2"), new Date(System.currentTimeMillis() + 60000));
+        repo.storeMessage(user1, message(user1, "3"), null);
+
+        assertEquals(1, repo.expireMessages());
+        assertEquals(2, repo.loadMessagesToJID(user1, false, MsgRepository.DEF_PAGE_SIZE, e -> {}));
+    }
+
+    @Test
+    public void testMessageHeaders() throws Exception {
+        repo.storeMessage(user1, message(user1, "1"), null);
+        repo.storeMessage(user2, message(user2, "2"), null);
+        repo.storeMessage(user1, message(user1, "3"), null);
+
+        assertEquals(2, repo.countMessages(user1));
+        List<MessageHeader> headers = repo.loadMessageHeaders(user1);
+        assertEquals(2, headers.size());
+
+        String node = headers.get(1).getNode();
+        assertNotNull(repo.loadMessage(user1, node));
+        // not a message of user2
+        assertNull(repo.loadMessage(user2, node));
+        assertNull(repo.loadMessage(user1, "invalid"));
+
+        assertTrue(repo.deleteMessage(user1, node));
+        assertFalse(repo.deleteMessage(user1, node));
+        assertEquals(1, repo.countMessages(user1));
+        assertEquals(1, repo.countMessages(user2));
+    }
+
+    @Test
+    public void testLoadMessagesWithNodes() throws Exception {
+        repo.storeMessage(user1, message(user1, "1"), null);
+        repo.storeMessage(user2, message(user2, "2"), null);
+        repo.storeMessage(user1, message(user1, "3"), null);
+
+        List<String> nodes = new ArrayList<>();
+        assertEquals(2, repo.loadMessagesToJID(user1, MsgRepository.DEF_PAGE_SIZE, (node, msg) -> nodes.add(node)));
+        List<MessageHeader> headers = repo.loadMessageHeaders(user1);
+        assertEquals(headers.get(0).getNode(), nodes.get(0));
+        assertEquals(headers.get(1).getNode(), nodes.get(1));
+        assertEquals(2, repo.countMessages(user1));
+
+        nodes.clear();
+        assertEquals(1, repo.loadMessagesToJID(user1, MsgRepository.DEF_PAGE_SIZE, 1, (node, msg) -> nodes.add(node)));
+        assertEquals(headers.get(0).getNode(), nodes.get(0));
+    }
+
+    @Test
+    public void testDeleteMessages() throws Exception {
+        repo.storeMessage(user1, message(user1, "1"), null);
+        repo.storeMessage(user2, message(user2, "2"), null);
+        repo.storeMessage(user1, message(user1, "3"), null);
+
+        assertEquals(2, repo.deleteMessages(user1));
+        assertEquals(0, repo.countMessages(user1));
+        assertEquals(1, repo.countMessages(user2));
+        assertEquals(0, repo.deleteMessages(user1));
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        repo.close();
+        Map<String, String> params = new HashMap<>();
+        params.put(BerkeleyMsgRepository.DURABILITY_KEY, "sync");
+        repo = new BerkeleyMsgRepository();
+        repo.initRepository(home.toString(), params);
+
+        repo.storeMessage(user1, message(user1, "1"), null);
+        repo.storeMessage(user1, message(user1, "2"), new Date(System.currentTimeMillis() - 1000));
+        repo.close();
+
+        repo = new BerkeleyMsgRepository();
+        repo.initRepository(home.toString(), params);
+        assertEquals(2, repo.countMessages(user1));
+        assertEquals(1, repo.expireMessages());
+        assertEquals(1, repo.countMessages(user1));
+    }
+
+    @Test(expected = DBInitException.class)
+    public void testUnknownDurability() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put(BerkeleyMsgRepository.DURABILITY_KEY, "fsync");
+        new BerkeleyMsgRepository().initRepository(home.resolve("other").toString(), params);
+    }
+
+    private Element message(BareJID to, String body) {
+        Element msg = new Element("message", new String[] { "type", "from", "to" },
+                new String[] { "chat", "remote-user@test.com/res1", to.toString() });
+        msg.addChild(new Element("body", body));
+        return msg;
+    }
+
+}
@@ -26,10 +26,15 @@ import tigase.server.Packet;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
+import tigase.xmpp.StanzaType;
 import tigase.xmpp.XMPPResourceConnection;
 import tigase.xmpp.impl.ProcessorTestCase;
 
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.*;
 
@@ -167,6 +172,256 @@ public class OfflineMessagesTest extends ProcessorTestCase {
 		msgRepo.getStored().clear();
 	}
 
+	@Test
+	public void testRestorePacketForOffLineUserSortByStamp() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()), res1);
+
+		String[] stamps = { "2017-01-02T10:00:00.000Z", "2017-01-01T10:00:00.000Z" };
+		storeStampedMessages(userJid, stamps);
+
+		// storage order
+		Queue<Packet> restored = offlineProcessor.restorePacketForOffLineUser(session1, msgRepo);
+		assertEquals(stamps[0], restored.poll().getElemCDataStaticStr(tigase.server.Message.MESSAGE_BODY_PATH));
+
+		Map<String, Object> settings = new HashMap<>();
+		settings.put("restore-sort-by-stamp", true);
+		offlineProcessor.init(settings);
+
+		storeStampedMessages(userJid, stamps);
+		restored = offlineProcessor.restorePacketForOffLineUser(session1, msgRepo);
+		assertEquals(stamps[1], restored.poll().getElemCDataStaticStr(tigase.server.Message.MESSAGE_BODY_PATH));
+		assertEquals(stamps[0], restored.poll().getElemCDataStaticStr(tigase.server.Message.MESSAGE_BODY_PATH));
+
+		msgRepo.getStored().clear();
+	}
+
+	private void storeStampedMessages(BareJID userJid, String[] stamps) throws Exception {
+		for (String stamp : stamps) {
+			Element packetEl = new Element("message", new String[] { "type", "from", "to" },
+					new String[] { "chat", "remote-user@test.com/res1", userJid.toString() });
+			packetEl.addChild(new Element("body", stamp));
+			packetEl.addChild(new Element("delay", new String[] { "stamp", "xmlns" },
+					new String[] { stamp, "urn:xmpp:delay" }));
+			msgRepo.storeMessage(userJid, packetEl, null);
+		}
+	}
+
+	@Test
+	public void testRestoreDeliveryWindow() throws Exception {
+		Map<String, Object> settings = new HashMap<>();
+		settings.put("delivery-window", 2);
+		offlineProcessor.init(settings);
+
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		JID connId = JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString());
+		XMPPResourceConnection session1 = getSession(connId, res1);
+
+		storeStampedMessages(userJid, new String[] { "1", "2", "3" });
+
+		// client enabled stream management
+		Queue<Packet> results = new ArrayDeque<>();
+		offlineProcessor.process(OfflineMessages.createWindowEnable(), session1, null, results, settings);
+		assertTrue(results.isEmpty());
+
+		// initial presence: first window
+		Packet presence = Packet.packetInstance(new Element("presence", new String[] { "from" }, new String[] { res1.toString() }));
+		offlineProcessor.process(presence, session1, null, results, settings);
+		assertEquals(2, results.size());
+		assertEquals(1, msgRepo.getStored().size());
+		assertFalse(OfflineMessages.isWindowEnd(results.poll()));
+		Packet last = results.poll();
+		assertTrue(OfflineMessages.isWindowEnd(last));
+		assertEquals(connId, last.getPacketTo());
+
+		// client acked the first window
+		offlineProcessor.process(OfflineMessages.createWindowRequest(), session1, null, results, settings);
+		assertEquals(1, results.size());
+		assertTrue(OfflineMessages.isWindowEnd(results.poll()));
+		assertTrue(msgRepo.getStored().isEmpty());
+
+		// empty window ends delivery
+		offlineProcessor.process(OfflineMessages.createWindowRequest(), session1, null, results, settings);
+		assertTrue(results.isEmpty());
+
+		storeStampedMessages(userJid, new String[] { "4" });
+		offlineProcessor.process(OfflineMessages.createWindowRequest(), session1, null, results, settings);
+		assertTrue(results.isEmpty());
+	}
+
+	@Test
+	public void testRestoreDeliveryWindowWithoutAcks() throws Exception {
+		Map<String, Object> settings = new HashMap<>();
+		settings.put("delivery-window", 2);
+		offlineProcessor.init(settings);
+
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		JID connId = JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString());
+		XMPPResourceConnection session1 = getSession(connId, res1);
+
+		storeStampedMessages(userJid, new String[] { "1", "2", "3" });
+
+		// no stream management: nobody would ack the window
+		Queue<Packet> results = new ArrayDeque<>();
+		Packet presence = Packet.packetInstance(new Element("presence", new String[] { "from" }, new String[] { res1.toString() }));
+		offlineProcessor.process(presence, session1, null, results, settings);
+		assertEquals(3, results.size());
+		assertTrue(msgRepo.getStored().isEmpty());
+		for (Packet packet : results) {
+			assertFalse(OfflineMessages.isWindowEnd(packet));
+		}
+	}
+
+	@Test
+	public void testAsyncStorage() throws Exception {
+		Map<String, Object> settings = new HashMap<>();
+		settings.put("async-storage", true);
+		settings.put("async-storage-threads", 1);
+		offlineProcessor.init(settings);
+		BlockingQueue<Packet> asyncResults = new LinkedBlockingQueue<>();
+		offlineProcessor.asyncResultHandler = asyncResults::offer;
+
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()), res1);
+
+		Element packetEl = new Element("message", new String[] { "type", "from", "to" },
+				new String[] { "chat", "remote-user@test.com/res1", userJid.toString() });
+		packetEl.addChild(new Element("body", "Test message"));
+		Packet packet = Packet.packetInstance(packetEl);
+		Queue<Packet> results = new ArrayDeque<>();
+		offlineProcessor.postProcess(packet, session1, null, results, null);
+		assertTrue("generated result even than no result should be generated", results.isEmpty());
+		assertTrue(packet.wasProcessedBy(OfflineMessages.ID));
+
+		// restore is queued after the store for the same user
+		Packet presence = Packet.packetInstance(new Element("presence", new String[] { "from" }, new String[] { res1.toString() }));
+		offlineProcessor.process(presence, session1, null, results, settings);
+		assertTrue(results.isEmpty());
+
+		Packet restored = asyncResults.poll(5, TimeUnit.SECONDS);
+		assertNotNull("offline message not restored", restored);
+		assertEquals(session1.getConnectionId(), restored.getPacketTo());
+		assertTrue(msgRepo.getStored().isEmpty());
+	}
+
+	@Test
+	public void testAsyncRestoreHandsOffWhileReading() throws Exception {
+		Map<String, Object> settings = new HashMap<>();
+		settings.put("async-storage", true);
+		settings.put("async-storage-threads", 1);
+		settings.put("restore-page-size", 1);
+		offlineProcessor.init(settings);
+		// messages still in storage when each packet reaches the session manager
+		BlockingQueue<Integer> remaining = new LinkedBlockingQueue<>();
+		offlineProcessor.asyncResultHandler = p -> remaining.offer(msgRepo.getStored().size());
+
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()), res1);
+
+		storeStampedMessages(userJid, new String[] { "1", "2", "3" });
+
+		Queue<Packet> results = new ArrayDeque<>();
+		Packet presence = Packet.packetInstance(new Element("presence", new String[] { "from" }, new String[] { res1.toString() }));
+		offlineProcessor.process(presence, session1, null, results, settings);
+		assertTrue(results.isEmpty());
+
+		// not collected first: each message is sent as soon as it is read
+		for (int expected = 3; expected > 0; expected--) {
+			assertEquals(Integer.valueOf(expected), remaining.poll(5, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void testSaveUndelivered() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		XMPPResourceConnection session1 = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()), res1);
+
+		List<Packet> undelivered = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Element packetEl = new Element("message", new String[] { "type", "from", "to" },
+					new String[] { "chat", "remote-user@test.com/res1", userJid.toString() });
+			packetEl.addChild(new Element("body", "Test message " + i));
+			undelivered.add(Packet.packetInstance(packetEl));
+		}
+		// messages to a full JID are not stored
+		Element packetEl = new Element("message", new String[] { "type", "from", "to" },
+				new String[] { "chat", "remote-user@test.com/res1", res1.toString() });
+		packetEl.addChild(new Element("body", "Test message"));
+		undelivered.add(Packet.packetInstance(packetEl));
+
+		assertEquals(3, offlineProcessor.saveUndelivered(session1, undelivered));
+		assertEquals(1, undelivered.size());
+		assertEquals(3, msgRepo.getStored().size());
+	}
+
+	@Test
+	public void testFlexibleOfflineRetrieval() throws Exception {
+		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
+		JID res1 = JID.jidInstance(userJid, "res1");
+		JID connId = JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString());
+		XMPPResourceConnection session1 = getSession(connId, res1);
+
+		storeStampedMessages(userJid, new String[] { "1", "2" });
+
+		// message count
+		Queue<Packet> results = new ArrayDeque<>();
+		offlineProcessor.process(flexibleRequest(connId, "get",
+				new Element("query", new String[] { "xmlns", "node" },
+						new String[] { OfflineMessages.DISCO_INFO_XMLNS, OfflineMessages.FLEXIBLE_OFFLINE_XMLNS })),
+				session1, null, results, null);
+		assertEquals(1, results.size());
+		Element form = results.poll().getElement().getChild("query", OfflineMessages.DISCO_INFO_XMLNS)
+				.getChild("x", "jabber:x:data");
+		assertEquals("2", form.getChildren().get(1).getChildCData(new String[] { "field", "value" }));
+
+		// message headers
+		offlineProcessor.process(flexibleRequest(connId, "get",
+				new Element("query", new String[] { "xmlns", "node" },
+						new String[] { OfflineMessages.DISCO_ITEMS_XMLNS, OfflineMessages.FLEXIBLE_OFFLINE_XMLNS })),
+				session1, null, results, null);
+		assertEquals(1, results.size());
+		List<Element> items = results.poll().getElement().getChild("query", OfflineMessages.DISCO_ITEMS_XMLNS).getChildren();
+		assertEquals(2, items.size());
+		assertEquals("remote-user@test.com/res1", items.get(0).getAttributeStaticStr("name"));
+		String node = items.get(1).getAttributeStaticStr("node");
+
+		// view a single message
+		Element offline = new Element("offline", new String[] { "xmlns" }, new String[] { OfflineMessages.FLEXIBLE_OFFLINE_XMLNS });
+		offline.addChild(new Element("item", new String[] { "action", "node" }, new String[] { "view", node }));
+		offlineProcessor.process(flexibleRequest(connId, "get", offline), session1, null, results, null);
+		assertEquals(2, results.size());
+		Packet msg = results.poll();
+		assertEquals(connId, msg.getPacketTo());
+		assertEquals("2", msg.getElemCDataStaticStr(tigase.server.Message.MESSAGE_BODY_PATH));
+		assertEquals(StanzaType.result, results.poll().getType());
+		assertEquals(2, msgRepo.getStored().size());
+
+		// remove it
+		offline = new Element("offline", new String[] { "xmlns" }, new String[] { OfflineMessages.FLEXIBLE_OFFLINE_XMLNS });
+		offline.addChild(new Element("item", new String[] { "action", "node" }, new String[] { "remove", node }));
+		offlineProcessor.process(flexibleRequest(connId, "set", offline), session1, null, results, null);
+		assertEquals(StanzaType.result, results.poll().getType());
+		assertEquals(1, msgRepo.getStored().size());
+
+		// no automatic delivery anymore
+		Packet presence = Packet.packetInstance(new Element("presence", new String[] { "from" }, new String[] { res1.toString() }));
+		assertFalse(offlineProcessor.loadOfflineMessages(presence, session1));
+	}
+
+	private Packet flexibleRequest(JID connId, String type, Element request) throws Exception {
+		Element iq = new Element("iq", new String[] { "type", "id" }, new String[] { type, UUID.randomUUID().toString() });
+		iq.addChild(request);
+		Packet packet = Packet.packetInstance(iq);
+		packet.setPacketFrom(connId);
+		return packet;
+	}
+
 	@Test
 	public void testLoadOfflineMessages() throws Exception {
 		BareJID userJid = BareJID.bareJIDInstance("user1@example.com");
@@ -240,7 +495,8 @@ public class OfflineMessagesTest extends ProcessorTestCase {
 	}
 	
 	private static class MsgRepositoryImpl implements MsgRepository {
-		private final Queue<Packet> stored = new ArrayDeque<>();
+		private final Map<String, Packet> stored = new LinkedHashMap<>();
+		private long nextId = 1;
 
 		public MsgRepositoryImpl() {
 		}
@@ -252,27 +508,55 @@ public class OfflineMessagesTest extends ProcessorTestCase {
 		}
 
 		@Override
-		public Queue<Element> loadMessagesToJID(BareJID user, boolean delete) {
-			Queue<Element> res = new LinkedList<Element>();
-			for (Packet pac : stored) {
-				res.add(pac.getElement());
+		public int loadMessagesToJID(BareJID user, boolean delete, int pageSize, int limit, Consumer<Element> consumer) {
+			int count = 0;
+			for (Iterator<Packet> it = stored.values().iterator(); it.hasNext() && (limit <= 0 || count < limit); count++) {
+				consumer.accept(it.next().getElement());
+				if (delete) {
+					it.remove();
+				}
 			}
-			return res;
+			return count;
+		}
+
+		@Override
+		public int countMessages(BareJID user) {
+			return stored.size();
+		}
+
+		@Override
+		public List<MessageHeader> loadMessageHeaders(BareJID user) {
+			List<MessageHeader> headers = new ArrayList<>();
+			for (Map.Entry<String, Packet> e : stored.entrySet()) {
+				headers.add(new MessageHeader(e.getKey(), e.getValue().getStanzaFrom().toString(), new Date()));
+			}
+			return headers;
+		}
+
+		@Override
+		public Element loadMessage(BareJID user, String node) {
+			Packet packet = stored.get(node);
+			return packet != null ? packet.getElement().clone() : null;
+		}
+
+		@Override
+		public boolean deleteMessage(BareJID user, String node) {
+			return stored.remove(node) != null;
 		}
 
 		@Override
 		public void storeMessage(BareJID user, Element msg, Date expire) {
 			JID from = JID.jidInstanceNS(msg.getAttributeStaticStr("from"));
 			JID to = JID.jidInstance(user);
-			stored.offer(Packet.packetInstance(msg, from, to));
+			stored.put(String.valueOf(nextId++), Packet.packetInstance(msg, from, to));
 		}
 		
 		@Override
 		public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
 		}
 		
-		public Queue<Packet> getStored() {
-			return stored;
+		public Collection<Packet> getStored() {
+			return stored.values();
 		}
 	}
 	
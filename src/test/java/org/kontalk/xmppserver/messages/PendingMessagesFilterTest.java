@@ -0,0 +1,58 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xmpp.BareJID;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link PendingMessagesFilter}. */
+public class PendingMessagesFilterTest {
+
+    private BareJID user;
+    private BareJID other;
+    private PendingMessagesFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        user = BareJID.bareJIDInstance("user@example.com");
+        other = BareJID.bareJIDInstance("other@example.com");
+        // a single counter: every user collides with every other
+        filter = new PendingMessagesFilter(1, 1);
+        filter.rebuild(users -> {});
+    }
+
+    @Test
+    public void testEmpty() {
+        assertFalse(filter.mightHaveMessages(user));
+        filter.stored(user);
+        assertTrue(filter.mightHaveMessages(user));
+        filter.deleted(user, 1);
+        assertFalse(filter.mightHaveMessages(user));
+    }
+
+    @Test
+    public void testBatchStoreKeepsCollidingUser() {
+        filter.stored(other);
+        filter.stored(user, 5);
+        filter.deleted(user, 5);
+        assertTrue(filter.mightHaveMessages(other));
+
+        filter.deleted(other, 1);
+        assertFalse(filter.mightHaveMessages(other));
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        filter.rebuild(users -> {
+            users.accept(other.toString());
+            // stored while the scan is running
+            filter.stored(user, 2);
+        });
+        assertTrue(filter.mightHaveMessages(user));
+        filter.deleted(user, 2);
+        assertTrue(filter.mightHaveMessages(other));
+    }
+
+}
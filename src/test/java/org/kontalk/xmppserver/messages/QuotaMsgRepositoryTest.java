@@ -0,0 +1,204 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+public class QuotaMsgRepositoryTest {
+
+    private BareJID user;
+    private BerkeleyMsgRepository storage;
+
+    @Before
+    public void setUp() throws Exception {
+        user = BareJID.bareJIDInstance("user1@example.com");
+        storage = new BerkeleyMsgRepository();
+    }
+
+    private QuotaMsgRepository createRepository(String... params) throws Exception {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < params.length; i += 2) {
+            map.put(params[i], params[i + 1]);
+        }
+        QuotaMsgRepository repo = new QuotaMsgRepository(storage);
+        repo.initRepository(Files.createTempDirectory("messages").toString(), map);
+        return repo;
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.QUOTA_KEY, "2");
+        repo.storeMessage(user, message("1"), null);
+        repo.storeMessage(user, message("2"), null);
+        repo.storeMessage(user, message("3"), null);
+
+        List<Element> loaded = new ArrayList<>();
+        assertEquals(2, repo.loadMessagesToJID(user, true, MsgRepository.DEF_PAGE_SIZE, loaded::add));
+        assertEquals("2", loaded.get(0).getChildCData(new String[] { "message", "body" }));
+
+        // counter was updated by delete
+        repo.storeMessage(user, message("4"), null);
+        repo.storeMessage(user, message("5"), null);
+        assertEquals(2, storage.countMessages(user));
+    }
+
+    @Test
+    public void testDropOldestBatch() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.QUOTA_KEY, "2");
+        repo.storeMessage(user, message("1"), null);
+        // batch bigger than the quota: the oldest messages of the batch are evicted too
+        repo.storeMessages(user, Arrays.asList(message("2"), message("3"), message("4"), message("5")), null);
+        assertEquals(2, storage.countMessages(user));
+
+        List<Element> loaded = new ArrayList<>();
+        assertEquals(2, repo.loadMessagesToJID(user, true, MsgRepository.DEF_PAGE_SIZE, loaded::add));
+        assertEquals("4", loaded.get(0).getChildCData(new String[] { "message", "body" }));
+        assertEquals("5", loaded.get(1).getChildCData(new String[] { "message", "body" }));
+    }
+
+    @Test(expected = QuotaExceededException.class)
+    public void testRefuse() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.QUOTA_KEY, "1",
+                QuotaMsgRepository.QUOTA_POLICY_KEY, "refuse");
+        repo.storeMessage(user, message("1"), null);
+        repo.storeMessage(user, message("2"), null);
+    }
+
+    @Test
+    public void testRefuseBulk() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.QUOTA_KEY, "2",
+                QuotaMsgRepository.QUOTA_POLICY_KEY, "refuse");
+        List<Element> msgs = Arrays.asList(message("1"), message("2"), message("3"), message("4"));
+        try {
+            repo.storeMessages(user, msgs, null);
+            fail("messages were stored");
+        }
+        catch (QuotaExceededException e) {
+            assertEquals(msgs.subList(2, 4), e.getRefused());
+        }
+        assertEquals(2, repo.loadMessagesToJID(user, false, MsgRepository.DEF_PAGE_SIZE, m -> {}));
+    }
+
+    @Test
+    public void testDropNonBody() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.QUOTA_KEY, "2",
+                QuotaMsgRepository.QUOTA_POLICY_KEY, "drop-non-body");
+        repo.storeMessage(user, message("1"), null);
+        repo.storeMessage(user, receipt("a"), null);
+        repo.storeMessage(user, message("2"), null);
+
+        List<Element> loaded = new ArrayList<>();
+        assertEquals(2, repo.loadMessagesToJID(user, false, MsgRepository.DEF_PAGE_SIZE, loaded::add));
+        assertEquals("1", loaded.get(0).getChildCData(new String[] { "message", "body" }));
+        assertEquals("2", loaded.get(1).getChildCData(new String[] { "message", "body" }));
+
+        // no room for another receipt
+        try {
+            repo.storeMessage(user, receipt("b"), null);
+            fail("receipt was stored");
+        }
+        catch (QuotaExceededException ignored) {
+        }
+    }
+
+    @Test
+    public void testCoalesceReceipts() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.COALESCE_RECEIPTS_KEY, "true",
+                QuotaMsgRepository.COALESCE_INTERVAL_KEY, "60000");
+        repo.storeMessage(user, receipt("a"), null);
+        repo.storeMessage(user, receipt("b"), null);
+        repo.storeMessage(user, receipt("c"), null);
+        repo.storeMessage(user, message("1"), null);
+
+        // receipts are stored on read
+        assertEquals(2, repo.countMessages(user));
+
+        List<Element> loaded = new ArrayList<>();
+        assertEquals(4, repo.loadMessagesToJID(user, true, MsgRepository.DEF_PAGE_SIZE, loaded::add));
+        assertEquals("1", loaded.get(0).getChildCData(new String[] { "message", "body" }));
+        assertEquals("a", loaded.get(1).getChild("received", "urn:xmpp:receipts").getAttributeStaticStr("id"));
+        assertNull(loaded.get(1).getChild("received", "urn:xmpp:receipts").getAttributeStaticStr("stamp"));
+        assertEquals("c", loaded.get(3).getChild("received", "urn:xmpp:receipts").getAttributeStaticStr("id"));
+        assertEquals(2, loaded.get(3).getChildren().size());
+    }
+
+    @Test
+    public void testCoalescedReceiptsByNode() throws Exception {
+        QuotaMsgRepository repo = createRepository(QuotaMsgRepository.COALESCE_RECEIPTS_KEY, "true",
+                QuotaMsgRepository.COALESCE_INTERVAL_KEY, "60000");
+        repo.storeMessage(user, receipt("a"), null);
+        repo.storeMessage(user, receipt("b"), null);
+
+        // XEP-0013 fetch: split, but still a single node
+        List<String> nodes = new ArrayList<>();
+        List<Element> loaded = new ArrayList<>();
+        assertEquals(1, repo.loadMessagesToJID(user, MsgRepository.DEF_PAGE_SIZE, (node, msg) -> {
+            nodes.add(node);
+            loaded.add(msg);
+        }));
+        assertEquals(2, loaded.size());
+        assertEquals(nodes.get(0), nodes.get(1));
+        for (Element msg : loaded) {
+            Element receipt = msg.getChild("received", "urn:xmpp:receipts");
+            assertNull(receipt.getAttributeStaticStr("stamp"));
+            assertEquals(2, msg.getChildren().size());
+        }
+
+        // XEP-0013 view: a single message
+        Element msg = repo.loadMessage(user, nodes.get(0));
+        assertEquals(3, msg.getChildren().size());
+        for (Element child : msg.getChildren()) {
+            if (child.getName().equals("received"))
+                assertNull(child.getAttributeStaticStr("stamp"));
+        }
+
+        assertTrue(repo.deleteMessage(user, nodes.get(0)));
+        assertEquals(0, repo.countMessages(user));
+    }
+
+    private Element message(String body) {
+        Element msg = new Element("message", new String[] { "type", "from", "to" },
+                new String[] { "chat", "remote-user@test.com/res1", user.toString() });
+        msg.addChild(new Element("body", body));
+        return msg;
+    }
+
+    private Element receipt(String id) {
+        Element msg = new Element("message", new String[] { "type", "from", "to", "id" },
+                new String[] { "chat", "remote-user@test.com/res1", user.toString(), "receipt-" + id });
+        msg.addChild(new Element("received", new String[] { "xmlns", "id" }, new String[] { "urn:xmpp:receipts", id }));
+        msg.addChild(new Element("delay", new String[] { "xmlns", "stamp" },
+                new String[] { "urn:xmpp:delay", "2017-01-01T10:00:00.000Z" }));
+        return msg;
+    }
+
+}
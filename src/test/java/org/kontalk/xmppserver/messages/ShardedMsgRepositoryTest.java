@@ -0,0 +1,143 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.DBInitException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+
+public class ShardedMsgRepositoryTest {
+
+    private static final int SHARDS = 3;
+
+    private ShardedMsgRepository repo;
+
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder uri = new StringBuilder();
+        for (int i = 0; i < SHARDS; i++) {
+            Path home = Files.createTempDirectory("messages-shard");
+            if (uri.length() > 0)
+                uri.append('|');
+            uri.append(home.toString());
+        }
+
+        Map<String, String> params = new HashMap<>();
+        params.put("shard-repo-class", BerkeleyMsgRepository.class.getName());
+        repo = new ShardedMsgRepository();
+        repo.initRepository(uri.toString(), params);
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        assertEquals(SHARDS, repo.getShardCount());
+
+        Set<ShardedMsgRepository.Shard> used = new HashSet<>();
+        for (int i = 0; i < 30; i++) {
+            BareJID user = BareJID.bareJIDInstance("user" + i + "@example.com");
+            repo.storeMessage(user, message(user, String.valueOf(i)), null);
+            // routing is stable
+            assertSame(repo.getShard(user), repo.getShard(BareJID.bareJIDInstance(user.toString())));
+            used.add(repo.getShard(user));
+        }
+        assertEquals(SHARDS, used.size());
+
+        for (int i = 0; i < 30; i++) {
+            BareJID user = BareJID.bareJIDInstance("user" + i + "@example.com");
+            List<Element> loaded = new ArrayList<>();
+            assertEquals(1, repo.loadMessagesToJID(user, true, MsgRepository.DEF_PAGE_SIZE, loaded::add));
+            assertEquals(String.valueOf(i), loaded.get(0).getChildCData(new String[] { "message", "body" }));
+        }
+
+        long stored = 0;
+        long loaded = 0;
+        for (ShardedMsgRepository.Shard shard : used) {
+            stored += shard.stored.sum();
+            loaded += shard.loaded.sum();
+        }
+        assertEquals(30, stored);
+        assertEquals(30, loaded);
+    }
+
+    @Test
+    public void testExpireMessages() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            BareJID user = BareJID.bareJIDInstance("user" + i + "@example.com");
+            repo.storeMessage(user, message(user, "expired"), new Date(System.currentTimeMillis() - 1000));
+            repo.storeMessage(user, message(user, "valid"), null);
+        }
+
+        assertEquals(30, repo.expireMessages());
+        BareJID user = BareJID.bareJIDInstance("user0@example.com");
+        assertEquals(1, repo.loadMessagesToJID(user, false, MsgRepository.DEF_PAGE_SIZE, e -> {}));
+    }
+
+    @Test
+    public void testUserRepository() throws Exception {
+        String uri = "jdbc:mysql://shard0/kontalk|jdbc:mysql://shard1/kontalk|jdbc:mysql://shard2/kontalk";
+
+        // shards resolve users on the first shard by default
+        RecordingMsgRepository.params.clear();
+        Map<String, String> params = new HashMap<>();
+        params.put("shard-repo-class", RecordingMsgRepository.class.getName());
+        ShardedMsgRepository sharded = new ShardedMsgRepository();
+        sharded.initRepository(uri, params);
+        assertEquals(SHARDS, RecordingMsgRepository.params.size());
+        for (Map<String, String> p : RecordingMsgRepository.params) {
+            assertEquals("jdbc:mysql://shard0/kontalk", p.get(JDBCMsgRepository.USER_DB_URI_KEY));
+        }
+        assertFalse(params.containsKey(JDBCMsgRepository.USER_DB_URI_KEY));
+
+        // unless configured otherwise
+        RecordingMsgRepository.params.clear();
+        params.put(JDBCMsgRepository.USER_DB_URI_KEY, "jdbc:mysql://localhost/kontalk");
+        sharded = new ShardedMsgRepository();
+        sharded.initRepository(uri, params);
+        for (Map<String, String> p : RecordingMsgRepository.params) {
+            assertEquals("jdbc:mysql://localhost/kontalk", p.get(JDBCMsgRepository.USER_DB_URI_KEY));
+        }
+    }
+
+    /** Records the parameters each shard is initialized with. */
+    public static class RecordingMsgRepository extends BerkeleyMsgRepository {
+        static final List<Map<String, String>> params = new ArrayList<>();
+
+        @Override
+        public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+            RecordingMsgRepository.params.add(params);
+        }
+    }
+
+    private Element message(BareJID to, String body) {
+        Element msg = new Element("message", new String[] { "type", "from", "to" },
+                new String[] { "chat", "remote-user@test.com/res1", to.toString() });
+        msg.addChild(new Element("body", body));
+        return msg;
+    }
+
+}
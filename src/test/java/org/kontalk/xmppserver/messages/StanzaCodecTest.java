@@ -0,0 +1,44 @@
+package org.kontalk.xmppserver.messages;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+
+public class StanzaCodecTest {
+
+    @Test
+    public void testXml() throws Exception {
+        Element msg = message();
+        byte[] data = StanzaCodec.XML.encode(msg);
+        assertArrayEquals(msg.toString().getBytes(StandardCharsets.UTF_8), data);
+        assertEquals(msg.toString(), StanzaCodec.forFormat(StanzaCodec.FORMAT_XML).decode(data).toString());
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        Element msg = message();
+        byte[] data = StanzaCodec.DEFLATE.encode(msg);
+        assertTrue(data.length < msg.toString().length());
+        assertEquals(msg.toString(), StanzaCodec.forFormat(StanzaCodec.FORMAT_DEFLATE).decode(data).toString());
+    }
+
+    @Test
+    public void testDeflateInvalid() throws Exception {
+        assertNull(StanzaCodec.DEFLATE.decode(new byte[] { 1, 2, 3 }));
+    }
+
+    private Element message() {
+        Element msg = new Element("message", new String[] { "type", "from", "to", "id" },
+                new String[] { "chat", "remote-user@test.com/res1", "user1@example.com", "Xe7aCG1Nm0" });
+        msg.addChild(new Element("body", "This is a test message, this is a test message, this is a test message."));
+        msg.addChild(new Element("request", new String[] { "xmlns" }, new String[] { "urn:xmpp:receipts" }));
+        msg.addChild(new Element("delay", new String[] { "from", "stamp", "xmlns" },
+                new String[] { "example.com", "2017-01-01T10:00:00.000Z", "urn:xmpp:delay" }));
+        return msg;
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.kontalk.xmppserver.pgp;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link CachingPGPLocalKeyring}. */
+public class CachingPGPLocalKeyringTest {
+    private static final String TEST_KEY = "/test.key";
+
+    /** In-memory keyring counting reads and writes. */
+    private static final class MemoryKeyring implements PGPLocalKeyring {
+        final Map<String, byte[]> keys = new HashMap<>();
+        int reads;
+        int imports;
+
+        @Override
+        public PGPPublicKeyRing getKey(String fingerprint) throws IOException, PGPException {
+            reads++;
+            byte[] data = keys.get(fingerprint);
+            return data != null ? PGPUtils.readPublicKeyring(data) : null;
+        }
+
+        @Override
+        public PGPPublicKeyRing importKey(InputStream in) throws IOException, PGPException {
+            return importKey(PGPUtils.readPublicKeyring(in).getEncoded());
+        }
+
+        @Override
+        public PGPPublicKeyRing importKey(byte[] data) throws IOException, PGPException {
+            imports++;
+            PGPPublicKeyRing key = PGPUtils.readPublicKeyring(data);
+            keys.put(PGPUtils.getFingerprint(key), key.getEncoded());
+            return key;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private MemoryKeyring backend;
+    private CachingPGPLocalKeyring keyring;
+    private byte[] keyData;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new MemoryKeyring();
+        keyring = new CachingPGPLocalKeyring(backend, 10, 1024 * 1024);
+
+        InputStream in = getClass().getResourceAsStream(TEST_KEY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf)) > 0)
+            out.write(buf, 0, len);
+        in.close();
+        keyData = out.toByteArray();
+    }
+
+    @Test
+    public void testGetKey() throws Exception {
+        PGPPublicKeyRing key = backend.importKey(keyData);
+        String fpr = PGPUtils.getFingerprint(key);
+
+        assertNull(keyring.getKey("0000000000000000000000000000000000000000"));
+        assertArrayEquals(key.getEncoded(), keyring.getKey(fpr).getEncoded());
+        assertSame(keyring.getKey(fpr), keyring.getKey(fpr.toLowerCase()));
+        assertArrayEquals(key.getEncoded(), keyring.exportKey(fpr));
+
+        // one read for the missing key, one for the actual key
+        assertEquals(2, backend.reads);
+        assertEquals(3, keyring.getStats().hitCount());
+        assertEquals(2, keyring.getStats().missCount());
+    }
+
+    @Test
+    public void testImportKey() throws Exception {
+        PGPPublicKeyRing key = keyring.importKey(keyData);
+        String fpr = PGPUtils.getFingerprint(key);
+        assertEquals(1, backend.imports);
+
+        // served from the import result
+        assertSame(key, keyring.getKey(fpr));
+        assertEquals(0, backend.reads);
+
+        // same key again won't hit the backend
+        assertSame(key, keyring.importKey(keyData));
+        assertEquals(1, backend.imports);
+    }
+
+    @Test
+    public void testImportReplacesCached() throws Exception {
+        PGPPublicKeyRing key = PGPUtils.readPublicKeyring(keyData);
+        PGPPublicKey masterKey = PGPUtils.getMasterKey(key);
+        String uid = (String) masterKey.getUserIDs().next();
+        PGPPublicKeyRing stripped = PGPPublicKeyRing.insertPublicKey(key,
+                PGPPublicKey.removeCertification(masterKey, uid));
+        String fpr = PGPUtils.getFingerprint(key);
+
+        backend.importKey(stripped.getEncoded());
+        assertArrayEquals(stripped.getEncoded(), keyring.exportKey(fpr));
+
+        keyring.importKey(keyData);
+        assertEquals(2, backend.imports);
+        assertArrayEquals(key.getEncoded(), keyring.exportKey(fpr));
+        assertEquals(1, backend.reads);
+    }
+
+    @Test
+    public void testWeightBound() throws Exception {
+        PGPPublicKeyRing key = backend.importKey(keyData);
+        String fpr = PGPUtils.getFingerprint(key);
+
+        // too small to keep anything
+        keyring = new CachingPGPLocalKeyring(backend, 10, 1);
+        keyring.getKey(fpr);
+        keyring.getKey(fpr);
+        assertEquals(0, keyring.size());
+        assertEquals(2, keyring.getStats().missCount());
+    }
+
+}
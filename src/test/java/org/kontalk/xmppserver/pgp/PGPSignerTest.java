@@ -0,0 +1,114 @@
+package org.kontalk.xmppserver.pgp;
+
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.bc.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link PGPSigner}. */
+public class PGPSignerTest {
+    private static final String TEST_KEY = "/test.key";
+    private static final String SERVER_UID = "Test server <test@example.com>";
+
+    private static PGPSecretKeyRing serverKey;
+    private static byte[] testKeyData;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+        kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 1024, 12));
+        PGPKeyPair keyPair = new BcPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+
+        PGPKeyRingGenerator generator = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair,
+                SERVER_UID, new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1), null, null,
+                new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256), null);
+        serverKey = generator.generateSecretKeyRing();
+
+        InputStream in = PGPSignerTest.class.getResourceAsStream(TEST_KEY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf)) > 0)
+            out.write(buf, 0, len);
+        in.close();
+        testKeyData = out.toByteArray();
+    }
+
+    @Test
+    public void testSignKey() throws Exception {
+        PGPSigner signer = new PGPSigner(serverKey, null);
+        PGPPublicKeyRing signed = PGPUtils.readPublicKeyring(signer.signKey(testKeyData));
+
+        PGPPublicKey key = PGPUtils.getMasterKey(signed);
+        String uid = (String) key.getUserIDs().next();
+        assertEquals(PGPUtils.getFingerprint(PGPUtils.readPublicKeyring(testKeyData)), PGPUtils.getFingerprint(signed));
+        assertTrue(PGPUtils.findValidKeySignature(key, uid, signer.getMasterKey()));
+    }
+
+    @Test
+    public void testSignKeyConcurrent() throws Exception {
+        final PGPSigner signer = new PGPSigner(serverKey, null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(() -> signer.signKey(testKeyData)));
+            }
+            for (Future<byte[]> result : results) {
+                PGPPublicKey key = PGPUtils.getMasterKey(result.get());
+                assertTrue(PGPUtils.findValidKeySignature(key, (String) key.getUserIDs().next(), signer.getMasterKey()));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSignData() throws Exception {
+        PGPSigner signer = new PGPSigner(serverKey, null);
+        byte[] data = "Hello world".getBytes();
+        byte[] signed = signer.signData(data);
+
+        PGPObjectFactory factory = new PGPObjectFactory(signed, new BcKeyFingerprintCalculator());
+        PGPCompressedData compressed = (PGPCompressedData) factory.nextObject();
+        factory = new PGPObjectFactory(compressed.getDataStream(), new BcKeyFingerprintCalculator());
+
+        PGPOnePassSignature ops = ((PGPOnePassSignatureList) factory.nextObject()).get(0);
+        assertEquals(signer.getMasterKey().getKeyID(), ops.getKeyID());
+        ops.init(new BcPGPContentVerifierBuilderProvider(), signer.getMasterKey());
+
+        PGPLiteralData literal = (PGPLiteralData) factory.nextObject();
+        InputStream in = literal.getInputStream();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            content.write(b);
+            ops.update((byte) b);
+        }
+        assertArrayEquals(data, content.toByteArray());
+
+        PGPSignature sig = ((PGPSignatureList) factory.nextObject()).get(0);
+        assertEquals(PGPSignature.BINARY_DOCUMENT, sig.getSignatureType());
+        assertTrue(ops.verify(sig));
+    }
+
+}
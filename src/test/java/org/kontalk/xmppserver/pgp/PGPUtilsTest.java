@@ -1,7 +1,20 @@
 package org.kontalk.xmppserver.pgp;
 
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Date;
+
 import static org.junit.Assert.*;
 
 
@@ -27,4 +40,27 @@ public class PGPUtilsTest {
         assertNotNull(uid);
         assertEquals("user@example.com", uid.getEmail());
     }
+
+    @Test
+    public void testMergeUserIDCertification() throws Exception {
+        RSAKeyPairGenerator kpg = new RSAKeyPairGenerator();
+        kpg.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 1024, 12));
+        PGPKeyPair keyPair = new BcPGPKeyPair(PublicKeyAlgorithmTags.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+        PGPKeyRingGenerator generator = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair,
+                "Test server <test@example.com>", new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1),
+                null, null, new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256), null);
+        PGPSigner signer = new PGPSigner(generator.generateSecretKeyRing(), null);
+
+        PGPPublicKeyRing key;
+        try (InputStream in = getClass().getResourceAsStream("/test.key")) {
+            key = PGPUtils.readPublicKeyring(in);
+        }
+        String uid = (String) PGPUtils.getMasterKey(key).getUserIDs().next();
+        assertFalse(PGPUtils.findValidKeySignature(PGPUtils.getMasterKey(key), uid, signer.getMasterKey()));
+
+        // the server certification must be merged under its user ID
+        PGPPublicKeyRing signed = signer.signKey(key);
+        PGPPublicKeyRing merged = PGPUtils.merge(key, signed);
+        assertTrue(PGPUtils.findValidKeySignature(PGPUtils.getMasterKey(merged), uid, signer.getMasterKey()));
+    }
 }
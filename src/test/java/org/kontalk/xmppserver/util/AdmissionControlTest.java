@@ -0,0 +1,92 @@
+package org.kontalk.xmppserver.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+
+/** Test class for {@link AdmissionControl}. */
+public class AdmissionControlTest {
+
+    @Test
+    public void testEnter() throws Exception {
+        AdmissionControl admission = new AdmissionControl(2, 0);
+        try (AdmissionControl.Permit permit = admission.enter()) {
+            assertEquals(1, admission.getActiveCount());
+        }
+        assertEquals(0, admission.getActiveCount());
+        assertEquals(1, admission.getCompletedCount());
+
+        // closing twice releases only once
+        AdmissionControl.Permit permit = admission.enter();
+        permit.close();
+        permit.close();
+        assertEquals(0, admission.getActiveCount());
+        assertEquals(2, admission.getCompletedCount());
+        assertEquals(0, admission.getRejectedCount());
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        // one running task at most, on the caller thread
+        final AdmissionControl admission = new AdmissionControl(1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        Future<Thread> running = callers.submit(() -> {
+            try (AdmissionControl.Permit permit = admission.enter()) {
+                started.countDown();
+                release.await();
+                return Thread.currentThread();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertEquals(1, admission.getActiveCount());
+
+        try {
+            admission.enter();
+            fail("task not rejected");
+        }
+        catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, admission.getRejectedCount());
+
+        release.countDown();
+        assertNotSame(Thread.currentThread(), running.get(5, TimeUnit.SECONDS));
+        admission.enter().close();
+        assertEquals(2, admission.getCompletedCount());
+
+        callers.shutdown();
+    }
+
+    @Test
+    public void testAdmissionWait() throws Exception {
+        final AdmissionControl admission = new AdmissionControl(1, 5000);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        Future<String> running = callers.submit(() -> {
+            try (AdmissionControl.Permit permit = admission.enter()) {
+                started.countDown();
+                Thread.sleep(100);
+                return "running";
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // waits for the running task to complete
+        try (AdmissionControl.Permit permit = admission.enter()) {
+            assertEquals(1, admission.getCompletedCount());
+        }
+        assertEquals("running", running.get(5, TimeUnit.SECONDS));
+        assertEquals(0, admission.getRejectedCount());
+        assertTrue(admission.getAverageAdmissionWait() > 0);
+        assertTrue(admission.getAverageLatency() > 0);
+
+        callers.shutdown();
+    }
+
+}
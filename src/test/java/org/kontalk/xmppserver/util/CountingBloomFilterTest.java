@@ -0,0 +1,45 @@
+package org.kontalk.xmppserver.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CountingBloomFilterTest {
+
+    @Test
+    public void testAddRemove() {
+        CountingBloomFilter filter = new CountingBloomFilter(1024, 4);
+        assertFalse(filter.mightContain("user1@example.com"));
+
+        filter.add("user1@example.com", 2);
+        filter.add("user2@example.com", 1);
+        assertTrue(filter.mightContain("user1@example.com"));
+        assertTrue(filter.mightContain("user2@example.com"));
+
+        filter.remove("user1@example.com", 1);
+        assertTrue(filter.mightContain("user1@example.com"));
+        filter.remove("user1@example.com", 1);
+        assertFalse(filter.mightContain("user1@example.com"));
+        assertTrue(filter.mightContain("user2@example.com"));
+    }
+
+    @Test
+    public void testSaturation() {
+        CountingBloomFilter filter = new CountingBloomFilter(1024, 4);
+        filter.add("user1@example.com", 1000);
+        filter.remove("user1@example.com", 1000);
+        // saturated counters are never decremented
+        assertTrue(filter.mightContain("user1@example.com"));
+    }
+
+    @Test
+    public void testRemoveMissing() {
+        CountingBloomFilter filter = new CountingBloomFilter(1024, 4);
+        filter.remove("user1@example.com", 1);
+        filter.add("user1@example.com", 1);
+        assertTrue(filter.mightContain("user1@example.com"));
+    }
+
+}
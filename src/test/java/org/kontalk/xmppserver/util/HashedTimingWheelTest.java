@@ -0,0 +1,81 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class HashedTimingWheelTest {
+
+    private HashedTimingWheel<String> wheel;
+
+    @After
+    public void tearDown() {
+        if (wheel != null)
+            wheel.stop();
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(2);
+        wheel = new HashedTimingWheel<>("test", 10, TimeUnit.MILLISECONDS, 8, items -> {
+            expired.addAll(items);
+            for (int i = 0; i < items.size(); i++)
+                latch.countDown();
+        });
+
+        // longer than a full round of the wheel
+        wheel.schedule("late", 200, TimeUnit.MILLISECONDS);
+        wheel.schedule("early", 20, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, expired.size());
+        assertEquals("early", expired.get(0));
+        assertEquals("late", expired.get(1));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch latch = new CountDownLatch(1);
+        wheel = new HashedTimingWheel<>("test", 10, TimeUnit.MILLISECONDS, 8, items -> {
+            expired.addAll(items);
+            latch.countDown();
+        });
+
+        HashedTimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", 30, TimeUnit.MILLISECONDS);
+        wheel.schedule("expired", 60, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("expired"), expired);
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Kontalk XMPP Tigase extension
+ * Copyright (C) 2017 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.xmppserver.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+
+public class KeyedExecutorTest {
+
+    @Test
+    public void testOrdering() throws Exception {
+        KeyedExecutor executor = new KeyedExecutor("test", 4, 1000);
+        List<List<Integer>> results = new ArrayList<>();
+        for (int key = 0; key < 8; key++) {
+            results.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            for (int key = 0; key < 8; key++) {
+                List<Integer> list = results.get(key);
+                int value = i;
+                assertTrue(executor.execute("key" + key, () -> list.add(value)));
+            }
+        }
+        executor.shutdown(10, TimeUnit.SECONDS);
+
+        for (List<Integer> list : results) {
+            assertEquals(100, list.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, (int) list.get(i));
+            }
+        }
+        assertEquals(800, executor.getCompletedCount());
+    }
+
+    @Test
+    public void testRejection() throws Exception {
+        KeyedExecutor executor = new KeyedExecutor("test", 1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(executor.execute("key", () -> {
+            running.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException ignored) {
+            }
+        }));
+        running.await();
+
+        assertTrue(executor.execute("key", () -> {}));
+        assertEquals(1, executor.getQueueSize());
+        assertFalse(executor.execute("key", () -> {}));
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        executor.shutdown(10, TimeUnit.SECONDS);
+        assertEquals(0, executor.getQueueSize());
+    }
+
+}